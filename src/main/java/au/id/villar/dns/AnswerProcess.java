@@ -16,13 +16,18 @@
 package au.id.villar.dns;
 
 import au.id.villar.dns.cache.DNSCache;
+import au.id.villar.dns.cache.DelegationCache;
+import au.id.villar.dns.cache.RefreshHandler;
 import au.id.villar.dns.converter.SoaValueConverter;
+import au.id.villar.dns.engine.BufferPool;
 import au.id.villar.dns.engine.DNSClass;
 import au.id.villar.dns.engine.DNSEngine;
 import au.id.villar.dns.engine.DNSMessage;
+import au.id.villar.dns.engine.DNSMessageView;
 import au.id.villar.dns.engine.DNSType;
 import au.id.villar.dns.engine.Question;
 import au.id.villar.dns.engine.ResourceRecord;
+import au.id.villar.dns.engine.ResponseCode;
 import au.id.villar.dns.net.DNSNetClient;
 
 import java.io.Closeable;
@@ -35,6 +40,11 @@ import java.util.Collections;
 import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -47,27 +57,115 @@ public class AnswerProcess implements Closeable {
 
     private final AtomicInteger nextId = new AtomicInteger(1);
     private final DNSEngine engine;
-    private final DNSNetClient netClient = new DNSNetClient();
+    private final DNSNetClient netClient = new DNSNetClient(BufferPool.getDefault());
     private DNSCache cache;
+    private RefreshHandler refreshHandler;
+    private InFlightLookups inFlightLookups;
+    private DelegationCache delegationCache;
     private Deque<SearchingTask> pendingTasks = new LinkedList<>();
 
     private TaskMessage lastResult;
+    private Question question;
+    private boolean useCache;
 
     public AnswerProcess(DNSEngine engine, DNSCache cache) {
+        this(engine, cache, null);
+    }
+
+    /* when stale records are served from the cache they are also given to the refresh handler, if any */
+    public AnswerProcess(DNSEngine engine, DNSCache cache, RefreshHandler refreshHandler) {
+        this(engine, cache, refreshHandler, null);
+    }
+
+    /* processes sharing the same InFlightLookups wait for each other instead of resolving the same question twice
+     * (only for lookUp(), refreshes and lookups started with startLookUp() are always done by the process itself) */
+    public AnswerProcess(DNSEngine engine, DNSCache cache, RefreshHandler refreshHandler,
+            InFlightLookups inFlightLookups) {
         this.engine = engine;
         this.cache = cache;
+        this.refreshHandler = refreshHandler;
+        this.inFlightLookups = inFlightLookups;
+    }
+
+    /* Zone cuts found during the resolution are added to the delegation cache, and the search for names not in the
+     * cache starts from the closest zone cut known instead of probing the cache for NS records of each parent name */
+    public void setDelegationCache(DelegationCache delegationCache) {
+        this.delegationCache = delegationCache;
     }
 
-    // TODO throw TimeoutException when time is up
+    /* If the lookup fails or takes more than "timeout" milliseconds, stale records from the cache are returned if
+     * there are any (see RFC-8767), otherwise the error or a TimeoutException is thrown */
     public List<ResourceRecord> lookUp(String name, DNSType type, long timeout)
             throws DNSException, InterruptedException, TimeoutException {
+        return lookUp(name, type, true, timeout);
+    }
+
+    /* Resolves the name again without looking for the answer in the cache, the answers found are added to the cache */
+    public List<ResourceRecord> refresh(String name, DNSType type, long timeout)
+            throws DNSException, InterruptedException, TimeoutException {
+        return lookUp(name, type, false, timeout);
+    }
+
+    private List<ResourceRecord> lookUp(String name, DNSType type, boolean useCache, long timeout)
+            throws DNSException, InterruptedException, TimeoutException {
+
+        if(inFlightLookups == null || !useCache) return resolve(name, type, useCache, timeout);
+
+        Question key = engine.createQuestion(name, type, DNSClass.IN);
+        long deadline = System.currentTimeMillis() + timeout;
+        CompletableFuture<List<ResourceRecord>> own = new CompletableFuture<>();
+        CompletableFuture<List<ResourceRecord>> leader;
+        while((leader = inFlightLookups.join(key, own)) != null) {
+            List<ResourceRecord> result = waitFor(key, leader, deadline - System.currentTimeMillis(), timeout);
+            if(result != null) return result;
+        }
+        try {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            List<ResourceRecord> result = resolve(name, type, true, remaining);
+            own.complete(Collections.unmodifiableList(new ArrayList<>(result)));
+            return result;
+        } catch(DNSException | InterruptedException | TimeoutException | RuntimeException e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLookups.remove(key, own);
+        }
+    }
+
+    /* waits for the result of the same lookup done by another process. If that process was interrupted the
+     * interruption isn't given to this one, null is returned instead so the lookup is tried again */
+    private List<ResourceRecord> waitFor(Question key, CompletableFuture<List<ResourceRecord>> leader, long remaining,
+            long timeout) throws DNSException, InterruptedException, TimeoutException {
+        try {
+            return new ArrayList<>(leader.get(Math.max(0, remaining), TimeUnit.MILLISECONDS));
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof InterruptedException) return null;
+            if(cause instanceof TimeoutException) throw new TimeoutException(cause.getMessage());
+            throw new DNSException(cause.getMessage(), cause);
+        } catch(TimeoutException e) {
+            List<ResourceRecord> stale = getStaleResourceRecords(key, true);
+            if(!stale.isEmpty()) return stale;
+            throw new TimeoutException("No answer for " + key.getDnsName() + " after " + timeout + "ms");
+        }
+    }
+
+    private List<ResourceRecord> resolve(String name, DNSType type, boolean useCache, long timeout)
+            throws DNSException, InterruptedException, TimeoutException {
 
         TaskMessage message = new TaskMessage(null, null);
-        boolean done = startLookUp(name, type, (rr, e) -> {
+        boolean done = startLookUp(name, type, useCache, null, (rr, e) -> {
             message.error = e;
             message.result = rr;
         });
+        long deadline = System.currentTimeMillis() + timeout;
         while(!done) {
+            if(System.currentTimeMillis() - deadline >= 0) {
+                cancelPendingTasks();
+                List<ResourceRecord> stale = getStaleResourceRecords(question, useCache);
+                if(!stale.isEmpty()) return stale;
+                throw new TimeoutException("No answer for " + name + " after " + timeout + "ms");
+            }
             Thread.sleep(10);
             done = retryLookUp();
         }
@@ -76,8 +174,16 @@ public class AnswerProcess implements Closeable {
     }
 
     public boolean startLookUp(String name, DNSType type, Selector selector, ResourceRecordHandler handler) {
-        pendingTasks.clear();
-        pendingTasks.offerFirst(new StartSearch(name, type));
+        return startLookUp(name, type, true, selector, handler);
+    }
+
+    private boolean startLookUp(String name, DNSType type, boolean useCache, Selector selector,
+            ResourceRecordHandler handler) {
+        StartSearch start = new StartSearch(name, type, useCache);
+        this.question = start.question;
+        this.useCache = useCache;
+        cancelPendingTasks();
+        pendingTasks.offerFirst(start);
         lastResult = new TaskMessage(selector, handler);
         return retryLookUp();
     }
@@ -104,6 +210,13 @@ public class AnswerProcess implements Closeable {
             lastResult = task.tryToGetRRs(lastResult);
             if(lastResult.waitingIO) return false;
         }
+        if(lastResult.error != null) {
+            List<ResourceRecord> stale = getStaleResourceRecords(question, useCache);
+            if(!stale.isEmpty()) {
+                lastResult.result = stale;
+                lastResult.error = null;
+            }
+        }
         lastResult.handler.handleResourceRecord(lastResult.result, lastResult.error);
         return true;
     }
@@ -117,41 +230,56 @@ public class AnswerProcess implements Closeable {
     private class StartSearch implements SearchingTask {
 
         private Question question;
+        private boolean useCache;
+        private CompletableFuture<List<ResourceRecord>> cacheLookUp;
 
         StartSearch(String name, DNSType type) {
+            this(name, type, true);
+        }
+
+        StartSearch(String name, DNSType type, boolean useCache) {
             this.question = engine.createQuestion(name, type, DNSClass.IN);
+            this.useCache = useCache;
         }
 
         @Override
         public TaskMessage tryToGetRRs(TaskMessage message) {
 
-            if(!message.waitingIO) {
-                message.waitingIO = !cache.getResourceRecords(question, message.selector, (rr, e) -> {
-                    message.waitingIO = false;
-                    message.error = e;
-                    message.result = rr;
-                });
-            } else {
-                message.waitingIO = !cache.retryGetResourceRecords();
+            if(!useCache) {
+                message.result = Collections.emptyList();
+                pendingTasks.offerFirst(new NameServerSearchThroughOriginalName(question));
+                return message;
             }
+            if(!message.waitingIO) cacheLookUp = cache.getResourceRecords(question).toCompletableFuture();
+            message.waitingIO = !cacheLookUp.isDone();
             if(message.waitingIO) {
                 pendingTasks.offerFirst(this);
                 return message;
             }
-            if(message.result != null && message.result.isEmpty()) {
-                pendingTasks.offerFirst(new NameServerSearchThroughOriginalName(question));
+            message.result = getCachedRecords(cacheLookUp, message);
+            if(message.error == null && message.result.isEmpty()) {
+                if(cache.getNegativeAnswer(question) != null) {
+                    message.negativeAnswer = question;
+                } else {
+                    pendingTasks.offerFirst(new NameServerSearchThroughOriginalName(question));
+                }
             }
             return message;
         }
     }
 
     /* Traverses the name in the query for a NS, if found, then it delegates the search of the query to other tasks,
-     * continues traversing the name until it receives a non-empty set of RRs or the name reaches the root */
+     * continues traversing the name until it receives a non-empty set of RRs or the name reaches the root. If the
+     * name servers it delegated to fail, the next ones are tried, and the error is only given if all of them fail */
     private class NameServerSearchThroughOriginalName implements SearchingTask {
 
         private Question question;
         private Deque<ResourceRecord> sources = new LinkedList<>();
         private String name;
+        private boolean delegationChecked;
+        private boolean searchDelegated;
+        private Exception lastError;
+        private CompletableFuture<List<ResourceRecord>> cacheLookUp;
 
         NameServerSearchThroughOriginalName(Question question) {
             this.question = question;
@@ -161,13 +289,28 @@ public class AnswerProcess implements Closeable {
         @Override
         public TaskMessage tryToGetRRs(TaskMessage message) {
 
-            if(message.error != null || !message.result.isEmpty()) return message;
+            if(searchDelegated) {
+                searchDelegated = false;
+                if(message.error != null && message.result.isEmpty()) {
+                    lastError = message.error;
+                    message.error = null;
+                }
+            }
+
+            if(message.error != null || !message.result.isEmpty() || question.equals(message.negativeAnswer))
+                return message;
+
+            if(!delegationChecked) {
+                delegationChecked = true;
+                if(startFromClosestDelegation(message)) return message;
+            }
 
             while(name != null || !sources.isEmpty()) {
                 if (!sources.isEmpty()) {
                     ResourceRecord source = sources.pollFirst();
+                    searchDelegated = true;
                     pendingTasks.offerFirst(this);
-                    pendingTasks.offerFirst(new SearchInNameServer(question));
+                    pendingTasks.offerFirst(new SearchInNameServer(question, source.getDnsName()));
                     pendingTasks.offerFirst(new StartSearch(source.getData(String.class), DNSType.A));
                     return message;
                 }
@@ -177,38 +320,61 @@ public class AnswerProcess implements Closeable {
                         int dotPos;
                         name = "".equals(name)? null:
                                 ((dotPos = name.indexOf('.')) != -1)? name.substring(dotPos + 1): "";
-                        message.waitingIO = !cache.getResourceRecords(question, message.selector, (rr, e) -> {
-                            message.waitingIO = false;
-                            message.error = e;
-                            if(rr != null) {
-                                Collections.reverse(rr);
-                                rr.forEach(sources::offerFirst);
-                            }
-                        });
-                    } else {
-                        message.waitingIO = !cache.retryGetResourceRecords();
+                        cacheLookUp = cache.getResourceRecords(question).toCompletableFuture();
                     }
+                    message.waitingIO = !cacheLookUp.isDone();
                     if(message.waitingIO) {
                         pendingTasks.offerFirst(this);
                         return message;
                     }
+                    List<ResourceRecord> cached = getCachedRecords(cacheLookUp, message);
+                    Collections.reverse(cached);
+                    cached.forEach(sources::offerFirst);
                     if(message.error != null) return message;
                 } while (name != null && sources.isEmpty() && !message.waitingIO);
             }
 
+            if(message.result.isEmpty()) message.error = lastError;
             return message;
         }
+
+        /* If the deepest zone cut enclosing the name is known then the search starts from its name servers, and
+         * continues from its parent zone if they don't give an answer. Returns true if a search was started with the
+         * addresses of the name servers */
+        private boolean startFromClosestDelegation(TaskMessage message) {
+            if(delegationCache == null) return false;
+            DelegationCache.Delegation delegation = delegationCache.findClosestDelegation(name);
+            if(delegation == null) return false;
+            String zone = delegation.getZoneName();
+            int dotPos;
+            name = "".equals(zone)? null: ((dotPos = zone.indexOf('.')) != -1)? zone.substring(dotPos + 1): "";
+            if(!delegation.getGlue().isEmpty()) {
+                searchDelegated = true;
+                pendingTasks.offerFirst(this);
+                pendingTasks.offerFirst(new SearchInNameServer(question, zone));
+                message.result = new ArrayList<>(delegation.getGlue());
+                return true;
+            }
+            delegation.getNameServers().forEach(sources::offerLast);
+            return false;
+        }
     }
 
     /* Receives IPs of name servers and use them to get results from them. Returns the answer from the servers or
-     * delegates to other tasks if it receives no responses but one or more authorities and additionals */
+     * delegates to other tasks if it receives no responses but one or more authorities and additionals. Only records
+     * in the zone of the servers being asked (their bailiwick) are taken from the authority and additional sections,
+     * and if none of the servers of a zone answer its delegation is forgotten */
     private class SearchInNameServer implements SearchingTask {
 
         private Question question;
         private Deque<ResourceRecord> sources = new LinkedList<>();
+        private String zone;
+        private Exception failure;
+        private ByteBuffer query;
 
-        SearchInNameServer(Question question) {
+        SearchInNameServer(Question question, String zone) {
             this.question = question;
+            this.zone = zone;
         }
 
         @Override
@@ -224,7 +390,8 @@ public class AnswerProcess implements Closeable {
                 message.result = Collections.emptyList();
             }
 
-            while(!sources.isEmpty() && message.result.isEmpty() && !message.waitingIO) {
+            while(!sources.isEmpty() && message.result.isEmpty() && !message.waitingIO
+                    && !question.equals(message.negativeAnswer)) {
 
                 ResourceRecord source = sources.pollFirst();
                 if(source.getDnsType().equals(DNSType.NS)) {
@@ -239,22 +406,57 @@ public class AnswerProcess implements Closeable {
                 }
 
 System.out.println("Query: " + question + ", using: " + source); // TODO remove this debugging line
-                message.waitingIO = !netClient.startQuery(createQueryMessage(question), source.getData(String.class), (b, e) -> {
-                    message.waitingIO = false;
-                    message.error = e;
-                    // if(e != null) return; // TODO what to do with 'e' if != null (show warning that the server was unable? just return the exception?)
-                    DNSMessage response = engine.createMessageFromBuffer(b.array(), b.position());
-                    if(response.getNumAnswers() > 0) {
-                        message.result = new ArrayList<>();
-                        for(int c = 0; c < response.getNumAnswers(); c++) message.result.add(response.getAnswer(c));
-                    }
-                    for(int c = 0; c < response.getNumAuthorities(); c++) {
-                        ResourceRecord ns = response.getAuthority(c);
-                        sources.offerFirst(ns);
-                        cache.addResourceRecord(ns);
-                    }
-                    for(int c = 0; c < response.getNumAdditionals(); c++) {
-                        cache.addResourceRecord(response.getAdditional(c));
+                query = createQueryMessage(question);
+                message.waitingIO = !netClient.startQuery(query, source.getData(String.class), (b, e) -> {
+                    try {
+                        message.waitingIO = false;
+                        if(e != null) {
+                            failure = e;
+                            return;
+                        }
+                        DNSMessageView response = engine.createMessageView(b);
+                        if(isNegativeAnswer(response)) {
+                            ResourceRecord soa = findSoa(response);
+                            if(isNegativeAnswerInBailiwick(question, soa, zone)) {
+                                cache.addNegativeAnswer(question, response.getResponseCode(), soa);
+                            }
+                            message.negativeAnswer = question;
+                            return;
+                        }
+                        if(response.getNumAnswers() > 0) {
+                            message.result = new ArrayList<>();
+                            for(int c = 0; c < response.getNumAnswers(); c++) {
+                                ResourceRecord answer = response.getAnswer(c);
+                                message.result.add(answer);
+                                cache.addResourceRecord(answer);
+                            }
+                        }
+                        List<ResourceRecord> authorities = new ArrayList<>(response.getNumAuthorities());
+                        List<ResourceRecord> additionals = new ArrayList<>(response.getNumAdditionals());
+                        String referredZone = null;
+                        for(int c = 0; c < response.getNumAuthorities(); c++) {
+                            ResourceRecord ns = response.getAuthority(c);
+                            if(!DelegationCache.isInBailiwick(ns.getDnsName(), zone)) continue;
+                            if(ns.getDnsType().equals(DNSType.NS)) {
+                                if(!DelegationCache.isInBailiwick(question.getDnsName(), ns.getDnsName())) continue;
+                                if(referredZone == null) referredZone = ns.getDnsName();
+                            }
+                            sources.offerFirst(ns);
+                            cache.addResourceRecord(ns);
+                            authorities.add(ns);
+                        }
+                        for(int c = 0; c < response.getNumAdditionals(); c++) {
+                            ResourceRecord additional = response.getAdditional(c);
+                            if(!DelegationCache.isInBailiwick(additional.getDnsName(), zone)) continue;
+                            cache.addResourceRecord(additional);
+                            additionals.add(additional);
+                        }
+                        if(delegationCache != null && response.getNumAnswers() == 0) {
+                            delegationCache.addDelegation(zone, authorities, additionals);
+                        }
+                        if(referredZone != null) zone = referredZone;
+                    } finally {
+                        releaseQuery();
                     }
                 });
             }
@@ -262,14 +464,72 @@ System.out.println("Query: " + question + ", using: " + source); // TODO remove
                 pendingTasks.offerFirst(this);
                 return message;
             }
+            if(sources.isEmpty() && message.result.isEmpty() && failure != null
+                    && !question.equals(message.negativeAnswer)) {
+                message.error = failure;
+                if(delegationCache != null) delegationCache.removeDelegation(zone);
+            }
             return message;
         }
+
+        @Override
+        public void cancel() {
+            releaseQuery();
+        }
+
+        /* the buffer is given back only once, whether the query finished or was abandoned */
+        private void releaseQuery() {
+            ByteBuffer buffer = query;
+            query = null;
+            BufferPool.getDefault().release(buffer);
+        }
+    }
+
+    /* refreshes aren't answered with stale records, otherwise they would look successful */
+    private List<ResourceRecord> getStaleResourceRecords(Question question, boolean useCache) {
+        if(!useCache) return Collections.emptyList();
+        List<ResourceRecord> stale = cache.getStaleResourceRecords(question);
+        if(!stale.isEmpty() && refreshHandler != null) refreshHandler.refresh(question);
+        return stale;
+    }
+
+    /* the records of a finished cache lookup, if it failed the error is set in the message */
+    private static List<ResourceRecord> getCachedRecords(CompletableFuture<List<ResourceRecord>> lookUp,
+            TaskMessage message) {
+        try {
+            return new ArrayList<>(lookUp.join());
+        } catch(CompletionException | CancellationException e) {
+            Throwable cause = e.getCause() != null? e.getCause(): e;
+            message.error = cause instanceof Exception? (Exception)cause: new DNSException(cause);
+            return new ArrayList<>();
+        }
+    }
+
+    /* RFC 2308: NXDOMAIN, or NOERROR with no answers and a SOA in the authority section (NODATA) */
+    private static boolean isNegativeAnswer(DNSMessageView response) {
+        if(response.getResponseCode() == ResponseCode.NAME_ERROR) return true;
+        return response.getResponseCode() == ResponseCode.NO_ERROR && response.getNumAnswers() == 0
+                && findSoa(response) != null;
+    }
+
+    /* a negative answer is only cached if its SOA belongs to the zone of the server that sent it, and the name asked
+     * for is in the zone of that SOA, so a server can't poison the negative answers of names outside its zone */
+    static boolean isNegativeAnswerInBailiwick(Question question, ResourceRecord soa, String zone) {
+        return soa != null && DelegationCache.isInBailiwick(soa.getDnsName(), zone)
+                && DelegationCache.isInBailiwick(question.getDnsName(), soa.getDnsName());
+    }
+
+    private static ResourceRecord findSoa(DNSMessageView response) {
+        for(int c = 0; c < response.getNumAuthorities(); c++) {
+            if(response.getAuthorityType(c) == DNSType.SOA_VALUE) return response.getAuthority(c);
+        }
+        return null;
     }
 
     private ByteBuffer createQueryMessage(Question question) {
         short id = getNextId();
         DNSMessage dnsMessage = engine.createSimpleQueryMessage(id, question);
-        return engine.createBufferFromMessage(dnsMessage);
+        return engine.createBufferFromMessage(dnsMessage, BufferPool.getDefault());
     }
 
     private short getNextId() {
@@ -278,12 +538,21 @@ System.out.println("Query: " + question + ", using: " + source); // TODO remove
         return id;
     }
 
+    private void cancelPendingTasks() {
+        SearchingTask task;
+        while((task = pendingTasks.pollFirst()) != null) task.cancel();
+    }
+
     private void closeResources() throws IOException {
         netClient.close();
     }
 
     private interface SearchingTask {
         TaskMessage tryToGetRRs(TaskMessage taskMessage);
+
+        /* called if the task is abandoned before it finishes, to give back what it holds */
+        default void cancel() {
+        }
     }
 
     private class TaskMessage {
@@ -292,6 +561,7 @@ System.out.println("Query: " + question + ", using: " + source); // TODO remove
         private Selector selector;
         private ResourceRecordHandler handler;
         private boolean waitingIO;
+        private Question negativeAnswer;
 
         TaskMessage(Selector selector, ResourceRecordHandler handler) {
             this.selector = selector;
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns;
+
+import au.id.villar.dns.cache.DNSCache;
+import au.id.villar.dns.cache.RefreshHandler;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.Question;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link RefreshHandler} that resolves questions again in the background using an {@link AnswerProcess}, so the
+ * cache gets fresh records before the old ones expire. The number of refreshes started per second is limited;
+ * requests over that limit are dropped, the cache will ask again if the RRset keeps being used.
+ */
+public class CacheRefresher implements RefreshHandler {
+
+    private final DNSEngine engine;
+    private final DNSCache cache;
+    private final Executor executor;
+    private final int maxRefreshesPerSecond;
+    private final long timeout;
+    private final LongSupplier clock;
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private long currentSecond;
+    private int startedThisSecond;
+
+    /**
+     * Creates a refresher.
+     * @param engine the engine used to build queries and parse responses.
+     * @param cache the cache that will receive the refreshed records.
+     * @param executor the executor running the lookups.
+     * @param maxRefreshesPerSecond maximum number of refreshes started per second.
+     * @param timeout maximum time in milliseconds for each lookup.
+     */
+    public CacheRefresher(DNSEngine engine, DNSCache cache, Executor executor, int maxRefreshesPerSecond,
+            long timeout) {
+        this(engine, cache, executor, maxRefreshesPerSecond, timeout, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a refresher that counts the refreshes per second with the given clock instead of the system one.
+     * @param engine the engine used to build queries and parse responses.
+     * @param cache the cache that will receive the refreshed records.
+     * @param executor the executor running the lookups.
+     * @param maxRefreshesPerSecond maximum number of refreshes started per second.
+     * @param timeout maximum time in milliseconds for each lookup.
+     * @param clock gives the current time in milliseconds, like {@link System#currentTimeMillis()}.
+     */
+    public CacheRefresher(DNSEngine engine, DNSCache cache, Executor executor, int maxRefreshesPerSecond,
+            long timeout, LongSupplier clock) {
+        if(maxRefreshesPerSecond <= 0) throw new IllegalArgumentException("maxRefreshesPerSecond must be positive");
+        this.engine = engine;
+        this.cache = cache;
+        this.executor = executor;
+        this.maxRefreshesPerSecond = maxRefreshesPerSecond;
+        this.timeout = timeout;
+        this.clock = clock;
+    }
+
+    @Override
+    public void refresh(Question question) {
+        requested.incrementAndGet();
+        if(!tryStart()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        try {
+            executor.execute(() -> lookUp(question));
+        } catch(RejectedExecutionException e) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /** @return The number of refreshes requested by the cache. */
+    public long getRequestedCount() {
+        return requested.get();
+    }
+
+    /** @return The number of refreshes not done because of the rate limit or because the executor rejected them. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** @return The number of refreshes that finished successfully. */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /** @return The number of refreshes that finished with an error. */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    private synchronized boolean tryStart() {
+        long second = clock.getAsLong() / 1000;
+        if(second != currentSecond) {
+            currentSecond = second;
+            startedThisSecond = 0;
+        }
+        if(startedThisSecond >= maxRefreshesPerSecond) return false;
+        startedThisSecond++;
+        return true;
+    }
+
+    private void lookUp(Question question) {
+        try(AnswerProcess process = new AnswerProcess(engine, cache)) {
+            process.refresh(question.getDnsName(), question.getDnsType(), timeout);
+            completed.incrementAndGet();
+        } catch(InterruptedException e) {
+            failed.incrementAndGet();
+            Thread.currentThread().interrupt();
+        } catch(Exception e) {
+            failed.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns;
+
+import au.id.villar.dns.engine.Question;
+import au.id.villar.dns.engine.ResourceRecord;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lookups currently running, keyed by {@link Question}. Several {@link AnswerProcess}es sharing an instance of this
+ * class resolve each question only once at a time: the first one to ask does the work and the others wait for its
+ * result instead of sending the same queries to the name servers. This class is thread safe.
+ */
+public final class InFlightLookups {
+
+    private final ConcurrentHashMap<Question, CompletableFuture<List<ResourceRecord>>> lookups =
+            new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Number of questions being resolved right now.
+     * @return the number of lookups in flight.
+     */
+    public int size() {
+        return lookups.size();
+    }
+
+    /**
+     * Number of lookups that waited for the result of another one instead of doing their own.
+     * @return the number of lookups coalesced since this instance was created.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /* registers "result" as the lookup for the question, or returns the lookup already in flight if there is one */
+    CompletableFuture<List<ResourceRecord>> join(Question question, CompletableFuture<List<ResourceRecord>> result) {
+        CompletableFuture<List<ResourceRecord>> current = lookups.putIfAbsent(question, result);
+        if(current != null) coalesced.incrementAndGet();
+        return current;
+    }
+
+    void remove(Question question, CompletableFuture<List<ResourceRecord>> result) {
+        lookups.remove(question, result);
+    }
+
+}
@@ -18,9 +18,9 @@ package au.id.villar.dns;
 import au.id.villar.dns.cache.DNSCache;
 import au.id.villar.dns.engine.*;
 
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 @Deprecated // This is doing things the wrong way
 public class Resolver {
@@ -31,8 +31,13 @@ public class Resolver {
     private final boolean useIPv4;
     private final boolean useIPv6;
 
-    private Resolver(DNSCache cache, List<String> dnsRootServers, boolean useIPv4, boolean useIPv6) {
+    private Resolver(DNSCache cache, List<String> dnsRootServers, RootHints rootHints, boolean useIPv4,
+            boolean useIPv6) {
         this.cache = cache != null? cache: createDummyCache();
+        if(rootHints != null) {
+            rootHints.pinInto(this.cache);
+            if(dnsRootServers == null) dnsRootServers = rootHints.getAddresses(useIPv4, useIPv6);
+        }
         this.dnsRootServers = createDnsRootServers(dnsRootServers, useIPv4, useIPv6);
         this.useIPv4 = useIPv4;
         this.useIPv6 = useIPv6;
@@ -62,6 +67,11 @@ public class Resolver {
         return new ResolverBuilder().withRootServers(rootServers);
     }
 
+    @SuppressWarnings("unused")
+    public static ResolverBuilder withRootHints(RootHints rootHints) {
+        return new ResolverBuilder().withRootHints(rootHints);
+    }
+
     private List<String> getShuffledRootServers() {
         List<String> rootServers = new ArrayList<>(dnsRootServers);
         Collections.shuffle(rootServers);
@@ -96,33 +106,13 @@ public class Resolver {
             public void addResourceRecord(ResourceRecord resourceRecord) {
             }
 
-            @Override
-            public List<ResourceRecord> getResourceRecords(Question question, long timeout) {
-                return Collections.emptyList();
-            }
-
             @Override
             public void clear() {
             }
 
             @Override
-            public boolean getResourceRecords(Question question, Selector selector, ResourceRecordHandler handler) {
-                return getResourceRecords(question, handler);
-            }
-
-            @Override
-            public boolean getResourceRecords(Question question, ResourceRecordHandler handler) {
-                handler.handleResourceRecord(Collections.emptyList(), null);
-                return true;
-            }
-
-            @Override
-            public void processAttachment(SelectionKey selectionKey) {
-            }
-
-            @Override
-            public boolean retryGetResourceRecords() {
-                return true;
+            public CompletionStage<List<ResourceRecord>> getResourceRecords(Question question) {
+                return CompletableFuture.completedFuture(Collections.emptyList());
             }
         };
 
@@ -142,6 +132,7 @@ public class Resolver {
 
         private DNSCache cache;
         private List<String> rootServers;
+        private RootHints rootHints;
         private boolean useIPv4 = true;
         private boolean useIPv6;
 
@@ -149,7 +140,7 @@ public class Resolver {
         }
 
         public Resolver build() {
-            return new Resolver(cache, rootServers, useIPv4, useIPv6);
+            return new Resolver(cache, rootServers, rootHints, useIPv4, useIPv6);
         }
 
         public ResolverBuilder usingIPv4(boolean useIPv4) {
@@ -171,6 +162,18 @@ public class Resolver {
             this.rootServers = rootServers;
             return this;
         }
+
+        /**
+         * Pins the given hints in the cache, so the root name servers are always known. Their addresses are used as
+         * root servers unless {@link #withRootServers(List)} is also given.
+         * @param rootHints The hints, usually {@link RootHints#getDefault(DNSEngine)} or read from an updated copy of
+         *                  the "named.root" file.
+         * @return This builder.
+         */
+        public ResolverBuilder withRootHints(RootHints rootHints) {
+            this.rootHints = rootHints;
+            return this;
+        }
     }
 
 
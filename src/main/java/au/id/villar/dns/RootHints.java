@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns;
+
+import au.id.villar.dns.cache.DNSCache;
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.ResourceRecord;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The name servers of the root zone and their addresses, used to start a resolution from scratch. Hints are read
+ * from a file in the format of the "named.root" file published by IANA: one record per line with owner name, TTL,
+ * optional class, type (NS, A or AAAA) and data; comments start with ';'. Instances are immutable.
+ */
+public final class RootHints {
+
+    private static final String DEFAULT_HINTS = "named.root";
+
+    private final List<ResourceRecord> records;
+
+    private RootHints(List<ResourceRecord> records) {
+        this.records = Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Reads root hints, line by line, from a character stream. The stream is not closed.
+     * @param reader The stream to read the hints from.
+     * @param engine The engine used to create the records.
+     * @return The hints read.
+     * @throws IOException if there is an error reading from the stream.
+     * @throws DNSException if a line is not a valid NS, A or AAAA record, or there are no name servers.
+     */
+    public static RootHints read(Reader reader, DNSEngine engine) throws IOException, DNSException {
+        BufferedReader lines = reader instanceof BufferedReader? (BufferedReader)reader: new BufferedReader(reader);
+        List<ResourceRecord> records = new ArrayList<>();
+        List<String> tokens = new ArrayList<>(5);
+        String line;
+        int lineNumber = 0;
+        boolean nameServers = false;
+        while((line = lines.readLine()) != null) {
+            lineNumber++;
+            tokenize(line, tokens);
+            if(tokens.isEmpty()) continue;
+            try {
+                ResourceRecord record = createRecord(tokens, engine);
+                nameServers |= record.getDnsType().equals(DNSType.NS);
+                records.add(record);
+            } catch(IllegalArgumentException e) {
+                throw new DNSException("Invalid root hint at line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        if(!nameServers) throw new DNSException("No root name servers found in hints");
+        return new RootHints(records);
+    }
+
+    /**
+     * Root hints bundled with this library. They are valid for bootstrapping even if outdated, as the root name
+     * servers are asked for the current ones, but keeping an updated copy is recommended.
+     * @param engine The engine used to create the records.
+     * @return The bundled hints.
+     */
+    public static RootHints getDefault(DNSEngine engine) {
+        try(InputStream input = RootHints.class.getResourceAsStream(DEFAULT_HINTS)) {
+            if(input == null) throw new IllegalStateException("Missing resource " + DEFAULT_HINTS);
+            return read(new InputStreamReader(input, StandardCharsets.US_ASCII), engine);
+        } catch(IOException | DNSException e) {
+            throw new IllegalStateException("Bundled root hints can't be read: " + e.getMessage(), e);
+        }
+    }
+
+    /** @return The NS, A and AAAA records of the hints, in the order they were read. */
+    public List<ResourceRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * The addresses of the root name servers.
+     * @param useIPv4 whether IPv4 addresses are included.
+     * @param useIPv6 whether IPv6 addresses are included.
+     * @return The addresses in the order they were read.
+     */
+    public List<String> getAddresses(boolean useIPv4, boolean useIPv6) {
+        List<String> addresses = new ArrayList<>();
+        for(ResourceRecord record: records) {
+            if(useIPv4 && record.getDnsType().equals(DNSType.A)
+                    || useIPv6 && record.getDnsType().equals(DNSType.AAAA)) {
+                addresses.add(record.getData(String.class));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Adds the hints to a cache as pinned records (see {@link DNSCache#addPinnedResourceRecord(ResourceRecord)}), so
+     * they are never evicted nor expired.
+     * @param cache The cache receiving the records.
+     */
+    public void pinInto(DNSCache cache) {
+        for(ResourceRecord record: records) cache.addPinnedResourceRecord(record);
+    }
+
+    private static ResourceRecord createRecord(List<String> tokens, DNSEngine engine) {
+        if(tokens.size() < 4 || tokens.size() > 5)
+            throw new IllegalArgumentException("expected name, TTL, [class,] type and data");
+        String name = toDnsName(tokens.get(0));
+        long ttl;
+        try {
+            ttl = Long.parseLong(tokens.get(1));
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("invalid TTL " + tokens.get(1));
+        }
+        if(ttl < 0) throw new IllegalArgumentException("invalid TTL " + ttl);
+        if(tokens.size() == 5 && !tokens.get(2).equalsIgnoreCase(DNSClass.IN.getMnemonic()))
+            throw new IllegalArgumentException("unsupported class " + tokens.get(2));
+        String typeMnemonic = tokens.get(tokens.size() - 2).toUpperCase();
+        String data = tokens.get(tokens.size() - 1);
+        DNSType type;
+        switch(typeMnemonic) {
+            case "NS": type = DNSType.NS; data = toDnsName(data); break;
+            case "A": type = DNSType.A; break;
+            case "AAAA": type = DNSType.AAAA; break;
+            default: throw new IllegalArgumentException("unsupported type " + typeMnemonic);
+        }
+        return engine.createResourceRecord(name, type, DNSClass.IN, ttl, data);
+    }
+
+    /* names in master files are absolute when ending with a dot, internally they are kept without it */
+    private static String toDnsName(String name) {
+        return name.endsWith(".")? name.substring(0, name.length() - 1): name;
+    }
+
+    private static void tokenize(String line, List<String> tokens) {
+        tokens.clear();
+        int length = line.length();
+        int pos = 0;
+        while(pos < length) {
+            char ch = line.charAt(pos);
+            if(ch == ';') break;
+            if(Character.isWhitespace(ch)) {
+                pos++;
+                continue;
+            }
+            int start = pos;
+            while(pos < length && !Character.isWhitespace(line.charAt(pos)) && line.charAt(pos) != ';') pos++;
+            tokens.add(line.substring(start, pos));
+        }
+    }
+
+}
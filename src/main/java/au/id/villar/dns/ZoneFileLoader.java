@@ -0,0 +1,444 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns;
+
+import au.id.villar.dns.cache.DNSCache;
+import au.id.villar.dns.converter.HinfoValueConverter;
+import au.id.villar.dns.converter.MinfoValueConverter;
+import au.id.villar.dns.converter.MxValueConverter;
+import au.id.villar.dns.converter.SoaValueConverter;
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.ResourceRecord;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Loads the records of master files (see RFC-1035, section 5) into a cache or any other record store. The file is
+ * read as a stream: the calling thread splits it into entries and resolves what depends on their order (origin,
+ * default TTL, omitted owners, TTLs and classes); batches of entries are then turned into records and handed over to
+ * the store by the threads of an executor. $ORIGIN and $TTL directives are supported, $INCLUDE isn't. Supported
+ * types are those with a text representation known by the default converters: A, AAAA, NS, MD, MF, CNAME, SOA, MB,
+ * MG, MR, PTR, HINFO, MINFO, MX and TXT.
+ */
+public class ZoneFileLoader {
+
+    private final DNSEngine engine;
+    private final Executor executor;
+    private final int parallelism;
+    private final int batchSize;
+
+    /**
+     * Creates a loader.
+     * @param engine the engine used to create the records.
+     * @param executor the executor creating and storing the records.
+     * @param parallelism maximum number of batches being processed at the same time; reading waits when reached.
+     * @param batchSize number of records in each batch.
+     */
+    public ZoneFileLoader(DNSEngine engine, Executor executor, int parallelism, int batchSize) {
+        if(parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive");
+        if(batchSize <= 0) throw new IllegalArgumentException("batchSize must be positive");
+        this.engine = engine;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Loads a master file into a cache, each batch added with {@link DNSCache#addResourceRecords(List)}. The stream
+     * is not closed.
+     * @param reader the stream to read the file from.
+     * @param origin the initial origin, used to complete relative names until an $ORIGIN directive is found.
+     * @param cache the cache receiving the records.
+     * @return The number of records loaded.
+     * @throws IOException if there is an error reading from the stream.
+     * @throws DNSException if the file is not valid, reporting the line of the first error found. Batches before the
+     * error may be already in the cache.
+     * @throws InterruptedException if the thread is interrupted while waiting for the batches to finish.
+     */
+    public long load(Reader reader, String origin, DNSCache cache)
+            throws IOException, DNSException, InterruptedException {
+        return load(reader, origin, cache::addResourceRecords);
+    }
+
+    /**
+     * Loads a master file into a record store. The stream is not closed.
+     * @param reader the stream to read the file from.
+     * @param origin the initial origin, used to complete relative names until an $ORIGIN directive is found.
+     * @param store receives each batch of records, it's called from several threads at the same time.
+     * @return The number of records loaded.
+     * @throws IOException if there is an error reading from the stream.
+     * @throws DNSException if the file is not valid, reporting the line of the first error found.
+     * @throws InterruptedException if the thread is interrupted while waiting for the batches to finish.
+     */
+    public long load(Reader reader, String origin, Consumer<List<ResourceRecord>> store)
+            throws IOException, DNSException, InterruptedException {
+        Semaphore permits = new Semaphore(parallelism);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        AtomicLong loaded = new AtomicLong();
+        Tokenizer tokenizer = new Tokenizer(reader);
+        ParserState state = new ParserState(toDnsName(origin, ""));
+        List<Entry> batch = new ArrayList<>(batchSize);
+        try {
+            List<String> tokens;
+            while(error.get() == null && (tokens = tokenizer.next()) != null) {
+                Entry entry = state.resolve(tokens, tokenizer.startsWithBlank(), tokenizer.getLineNumber());
+                if(entry == null) continue;
+                batch.add(entry);
+                if(batch.size() == batchSize) {
+                    submit(batch, permits, error, loaded, store);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if(!batch.isEmpty() && error.get() == null) submit(batch, permits, error, loaded, store);
+        } finally {
+            permits.acquire(parallelism);
+        }
+        Exception e = error.get();
+        if(e instanceof DNSException) throw (DNSException)e;
+        if(e != null) throw new DNSException("Error storing records: " + e.getMessage(), e);
+        return loaded.get();
+    }
+
+    private void submit(List<Entry> batch, Semaphore permits, AtomicReference<Exception> error, AtomicLong loaded,
+            Consumer<List<ResourceRecord>> store) throws InterruptedException {
+        permits.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    List<ResourceRecord> records = new ArrayList<>(batch.size());
+                    for(Entry entry: batch) records.add(createRecord(entry));
+                    store.accept(records);
+                    loaded.addAndGet(records.size());
+                } catch(Exception e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            permits.release();
+            error.compareAndSet(null, e);
+        }
+    }
+
+    private ResourceRecord createRecord(Entry entry) throws DNSException {
+        try {
+            return engine.createResourceRecord(entry.owner, entry.dnsType, entry.dnsClass, entry.ttl,
+                    createData(entry));
+        } catch(IllegalArgumentException e) {
+            throw new DNSException("Invalid record at line " + entry.lineNumber + ": " + e.getMessage(), e);
+        }
+    }
+
+    private Object createData(Entry entry) {
+        List<String> data = entry.data;
+        String origin = entry.origin;
+        switch(entry.dnsType.getValue()) {
+            case DNSType.A_VALUE:
+            case DNSType.AAAA_VALUE:
+                checkFields(data, 1);
+                return data.get(0);
+            case DNSType.NS_VALUE:
+            case DNSType.MD_VALUE:
+            case DNSType.MF_VALUE:
+            case DNSType.CNAME_VALUE:
+            case DNSType.MB_VALUE:
+            case DNSType.MG_VALUE:
+            case DNSType.MR_VALUE:
+            case DNSType.PTR_VALUE:
+                checkFields(data, 1);
+                return toDnsName(data.get(0), origin);
+            case DNSType.MX_VALUE:
+                checkFields(data, 2);
+                return new MxValueConverter.MxData((int)parseNumber(data.get(0), 0xFFFF),
+                        toDnsName(data.get(1), origin));
+            case DNSType.SOA_VALUE:
+                checkFields(data, 7);
+                return new SoaValueConverter.SoaData(toDnsName(data.get(0), origin), toDnsName(data.get(1), origin),
+                        parseNumber(data.get(2), 0xFFFFFFFFL), parseTtl(data.get(3)), parseTtl(data.get(4)),
+                        parseTtl(data.get(5)), parseTtl(data.get(6)));
+            case DNSType.HINFO_VALUE:
+                checkFields(data, 2);
+                return new HinfoValueConverter.HinfoData(data.get(0), data.get(1));
+            case DNSType.MINFO_VALUE:
+                checkFields(data, 2);
+                return new MinfoValueConverter.MinfoData(toDnsName(data.get(0), origin),
+                        toDnsName(data.get(1), origin));
+            case DNSType.TXT_VALUE:
+                if(data.isEmpty()) throw new IllegalArgumentException("TXT without strings");
+                return new ArrayList<>(data);
+            default:
+                throw new IllegalArgumentException("unsupported type " + entry.dnsType.getMnemonic());
+        }
+    }
+
+    private static void checkFields(List<String> data, int expected) {
+        if(data.size() != expected)
+            throw new IllegalArgumentException("expected " + expected + " data fields, found " + data.size());
+    }
+
+    /* "@" is the origin, names ending with a dot are absolute and the rest relative to the origin; internally names
+       are kept without the trailing dot */
+    private static String toDnsName(String name, String origin) {
+        if(name.equals("@")) return origin;
+        if(name.endsWith(".")) return name.substring(0, name.length() - 1);
+        return origin.isEmpty()? name: name + '.' + origin;
+    }
+
+    private static long parseNumber(String value, long max) {
+        long number = 0;
+        if(value.isEmpty()) throw new IllegalArgumentException("empty number");
+        for(int index = 0; index < value.length(); index++) {
+            char ch = value.charAt(index);
+            if(ch < '0' || ch > '9') throw new IllegalArgumentException("invalid number " + value);
+            number = number * 10 + (ch - '0');
+            if(number > max) throw new IllegalArgumentException("number out of range " + value);
+        }
+        return number;
+    }
+
+    /* a number of seconds, optionally written with units (for example 1h30m) as accepted by most servers */
+    private static long parseTtl(String value) {
+        if(value.isEmpty()) throw new IllegalArgumentException("empty TTL");
+        long total = 0;
+        long number = -1;
+        for(int index = 0; index < value.length(); index++) {
+            char ch = value.charAt(index);
+            if(ch >= '0' && ch <= '9') {
+                number = (number == -1? 0: number * 10) + (ch - '0');
+                if(number > 0xFFFFFFFFL) throw new IllegalArgumentException("TTL out of range " + value);
+                continue;
+            }
+            if(number == -1) throw new IllegalArgumentException("invalid TTL " + value);
+            switch(Character.toLowerCase(ch)) {
+                case 'w': number *= 7 * 24 * 3600; break;
+                case 'd': number *= 24 * 3600; break;
+                case 'h': number *= 3600; break;
+                case 'm': number *= 60; break;
+                case 's': break;
+                default: throw new IllegalArgumentException("invalid TTL " + value);
+            }
+            total += number;
+            number = -1;
+        }
+        if(number != -1) total += number;
+        if(total > 0xFFFFFFFFL) throw new IllegalArgumentException("TTL out of range " + value);
+        return total;
+    }
+
+    private static boolean isTtl(String token) {
+        return !token.isEmpty() && token.charAt(0) >= '0' && token.charAt(0) <= '9';
+    }
+
+    /* a record with everything depending on the previous entries of the file already resolved */
+    private static final class Entry {
+
+        final int lineNumber;
+        final String owner;
+        final long ttl;
+        final DNSClass dnsClass;
+        final DNSType dnsType;
+        final String origin;
+        final List<String> data;
+
+        Entry(int lineNumber, String owner, long ttl, DNSClass dnsClass, DNSType dnsType, String origin,
+                List<String> data) {
+            this.lineNumber = lineNumber;
+            this.owner = owner;
+            this.ttl = ttl;
+            this.dnsClass = dnsClass;
+            this.dnsType = dnsType;
+            this.origin = origin;
+            this.data = data;
+        }
+    }
+
+    /* state carried from one entry to the next, see RFC-1035 section 5.1 and RFC-2308 section 4 */
+    private final class ParserState {
+
+        String origin;
+        String lastOwner;
+        long defaultTtl = -1;
+        long lastTtl = -1;
+        DNSClass lastClass = DNSClass.IN;
+
+        ParserState(String origin) {
+            this.origin = origin;
+        }
+
+        /* returns null for directives */
+        Entry resolve(List<String> tokens, boolean startsWithBlank, int lineNumber) throws DNSException {
+            try {
+                String first = tokens.get(0);
+                if(!startsWithBlank && first.startsWith("$")) {
+                    resolveDirective(tokens);
+                    return null;
+                }
+                int index = 0;
+                if(!startsWithBlank) {
+                    lastOwner = toDnsName(first, origin);
+                    index++;
+                } else if(lastOwner == null) {
+                    throw new IllegalArgumentException("no owner name");
+                }
+                long ttl = -1;
+                DNSClass dnsClass = null;
+                DNSType dnsType = null;
+                while(index < tokens.size() && dnsType == null) {
+                    String token = tokens.get(index++);
+                    if(ttl == -1 && isTtl(token)) {
+                        ttl = parseTtl(token);
+                    } else if(dnsClass == null && (dnsClass = engine.getClass(token.toUpperCase())) != null) {
+                        lastClass = dnsClass;
+                    } else if((dnsType = engine.getType(token.toUpperCase())) == null) {
+                        throw new IllegalArgumentException("unknown type " + token);
+                    }
+                }
+                if(dnsType == null) throw new IllegalArgumentException("missing type");
+                if(ttl == -1) ttl = defaultTtl != -1? defaultTtl: lastTtl;
+                if(ttl == -1) throw new IllegalArgumentException("no TTL and no $TTL directive before");
+                lastTtl = ttl;
+                return new Entry(lineNumber, lastOwner, ttl, dnsClass != null? dnsClass: lastClass, dnsType, origin,
+                        new ArrayList<>(tokens.subList(index, tokens.size())));
+            } catch(IllegalArgumentException e) {
+                throw new DNSException("Invalid entry at line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+
+        private void resolveDirective(List<String> tokens) {
+            String directive = tokens.get(0).toUpperCase();
+            if(tokens.size() != 2) throw new IllegalArgumentException("expected one argument for " + directive);
+            switch(directive) {
+                case "$ORIGIN": origin = toDnsName(tokens.get(1), origin); break;
+                case "$TTL": defaultTtl = parseTtl(tokens.get(1)); break;
+                default: throw new IllegalArgumentException("unsupported directive " + directive);
+            }
+        }
+    }
+
+    /* splits a master file in entries, joining lines within parentheses and removing comments and quotes */
+    private static final class Tokenizer {
+
+        private final BufferedReader reader;
+        private final List<String> tokens = new ArrayList<>();
+        private final StringBuilder token = new StringBuilder();
+        private int lineNumber;
+        private int entryLineNumber;
+        private boolean startsWithBlank;
+
+        Tokenizer(Reader reader) {
+            this.reader = reader instanceof BufferedReader? (BufferedReader)reader: new BufferedReader(reader);
+        }
+
+        /* the tokens of the next entry, or null at the end of the file; the list is reused */
+        List<String> next() throws IOException, DNSException {
+            tokens.clear();
+            int depth = 0;
+            String line;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                if(tokens.isEmpty() && depth == 0) {
+                    entryLineNumber = lineNumber;
+                    startsWithBlank = !line.isEmpty() && Character.isWhitespace(line.charAt(0));
+                }
+                depth = tokenize(line, depth);
+                if(depth == 0 && !tokens.isEmpty()) return tokens;
+            }
+            if(depth != 0) throw new DNSException("Unbalanced parentheses at line " + entryLineNumber);
+            return null;
+        }
+
+        int getLineNumber() {
+            return entryLineNumber;
+        }
+
+        boolean startsWithBlank() {
+            return startsWithBlank;
+        }
+
+        private int tokenize(String line, int depth) throws DNSException {
+            int length = line.length();
+            int pos = 0;
+            while(pos < length) {
+                char ch = line.charAt(pos);
+                if(ch == ';') break;
+                if(Character.isWhitespace(ch)) {
+                    pos++;
+                } else if(ch == '(') {
+                    depth++;
+                    pos++;
+                } else if(ch == ')') {
+                    if(--depth < 0) throw new DNSException("Unbalanced parentheses at line " + lineNumber);
+                    pos++;
+                } else if(ch == '"') {
+                    pos = readToken(line, pos + 1, true);
+                } else {
+                    pos = readToken(line, pos, false);
+                }
+            }
+            return depth;
+        }
+
+        /* reads a token, decoding \X and \DDD escapes, and returns the position after it */
+        private int readToken(String line, int pos, boolean quoted) throws DNSException {
+            int length = line.length();
+            token.setLength(0);
+            while(pos < length) {
+                char ch = line.charAt(pos);
+                if(quoted? ch == '"': Character.isWhitespace(ch) || ch == ';' || ch == '(' || ch == ')') break;
+                if(ch == '\\' && pos + 1 < length) {
+                    if(pos + 3 < length && isDigits(line, pos + 1, 3)) {
+                        token.append((char)Integer.parseInt(line.substring(pos + 1, pos + 4)));
+                        pos += 4;
+                    } else {
+                        token.append(line.charAt(pos + 1));
+                        pos += 2;
+                    }
+                    continue;
+                }
+                token.append(ch);
+                pos++;
+            }
+            if(quoted) {
+                if(pos == length) throw new DNSException("Unterminated string at line " + lineNumber);
+                pos++;
+            }
+            tokens.add(token.toString());
+            return pos;
+        }
+
+        private static boolean isDigits(String line, int start, int count) {
+            for(int index = start; index < start + count; index++) {
+                char ch = line.charAt(index);
+                if(ch < '0' || ch > '9') return false;
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.ResourceRecord;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Consumer;
+
+/**
+ * Binary format used to save the contents of a cache and load them back, for example to restart a resolver
+ * without an empty cache. After a header, each record is written as:
+ * <pre>
+ *     byte   1 (0 marks the end of the records)
+ *     UTF    owner name
+ *     short  type
+ *     short  class
+ *     int    original TTL, in seconds
+ *     long   expiration time, in milliseconds since the epoch
+ *     short  RDATA length
+ *     byte[] RDATA, in wire format without name compression
+ * </pre>
+ * Both writing and reading are done record by record, without holding the whole snapshot in memory. Reading stops
+ * right after the end mark, so a snapshot can be followed by other data in the same stream; the stream is read
+ * unbuffered for that reason, callers reading from files or sockets should buffer it themselves.
+ */
+final class CacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RAW_DATA_LENGTH = 0xFFFF;
+
+    private CacheSnapshot() {}
+
+    /* writes the records not expired at "now", returns the number of records written */
+    static int write(Iterable<RRSet> rrSets, OutputStream output, long now) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+        byte[] rawData = new byte[MAX_RAW_DATA_LENGTH];
+        int count = 0;
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        for(RRSet rrSet: rrSets) {
+            for(int index = 0; index < rrSet.size(); index++) {
+                CachedResourceRecord record = rrSet.get(index);
+                if(record.isExpired(now)) continue;
+                ResourceRecord resourceRecord = record.getResourceRecord();
+                int length = resourceRecord.writeRawData(rawData, 0);
+                data.writeByte(1);
+                data.writeUTF(resourceRecord.getDnsName());
+                data.writeShort(resourceRecord.getDnsType().getValue());
+                data.writeShort(resourceRecord.getDnsClass().getValue());
+                data.writeInt((int)resourceRecord.getSecondsCache());
+                data.writeLong(record.getBestBefore());
+                data.writeShort(length);
+                data.write(rawData, 0, length);
+                count++;
+            }
+        }
+        data.writeByte(0);
+        data.flush();
+        return count;
+    }
+
+    /* gives the records not expired at "now" to the consumer, returns the number of records read. No byte after
+     * the snapshot is taken from the stream */
+    static int read(InputStream input, DNSEngine engine, long now, Consumer<CachedResourceRecord> consumer)
+            throws IOException {
+        DataInputStream data = new DataInputStream(input);
+        byte[] rawData = new byte[MAX_RAW_DATA_LENGTH];
+        int count = 0;
+        if(data.readInt() != MAGIC) throw new IOException("Not a DNS cache snapshot");
+        int version = data.readInt();
+        if(version != VERSION) throw new IOException("Unsupported DNS cache snapshot version: " + version);
+        while(data.readByte() != 0) {
+            String name = data.readUTF();
+            short type = data.readShort();
+            short dnsClass = data.readShort();
+            long ttl = data.readInt() & 0xFFFFFFFFL;
+            long bestBefore = data.readLong();
+            int length = data.readUnsignedShort();
+            data.readFully(rawData, 0, length);
+            if(bestBefore - now <= 0) continue;
+            ResourceRecord resourceRecord =
+                    engine.createResourceRecordFromRawData(name, type, dnsClass, ttl, rawData, 0, length);
+            consumer.accept(new CachedResourceRecord(resourceRecord, bestBefore - ttl * 1000L));
+            count++;
+        }
+        return count;
+    }
+
+}
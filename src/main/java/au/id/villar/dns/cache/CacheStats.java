@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of the statistics of a {@link DNSCache}. Counters are totals since the cache was created;
+ * sizes are those at the time of the snapshot. Lookup latencies are kept in a histogram of power-of-two buckets: bucket
+ * {@code n} counts the lookups that took less than 2<sup>n</sup> nanoseconds but not less than 2<sup>n-1</sup>.
+ */
+public final class CacheStats {
+
+    /** Why records were removed from a cache. */
+    public enum RemovalCause {
+        /** Their TTL, and serve-stale window if any, was over. */
+        EXPIRED,
+        /** The cache was full. */
+        SIZE,
+        /** The cache was cleared. */
+        EXPLICIT
+    }
+
+    static final int LATENCY_BUCKETS = 64;
+
+    /** Statistics of a cache not keeping any. */
+    public static final CacheStats EMPTY =
+            new CacheStats(0, 0, 0, 0, 0, new long[RemovalCause.values().length], 0, 0, new long[LATENCY_BUCKETS]);
+
+    private final long hitCount;
+    private final long missCount;
+    private final long negativeHitCount;
+    private final long staleHitCount;
+    private final long insertCount;
+    private final long[] removalCounts;
+    private final long recordCount;
+    private final long byteCount;
+    private final long[] latencyBuckets;
+
+    CacheStats(long hitCount, long missCount, long negativeHitCount, long staleHitCount, long insertCount,
+            long[] removalCounts, long recordCount, long byteCount, long[] latencyBuckets) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.negativeHitCount = negativeHitCount;
+        this.staleHitCount = staleHitCount;
+        this.insertCount = insertCount;
+        this.removalCounts = removalCounts;
+        this.recordCount = recordCount;
+        this.byteCount = byteCount;
+        this.latencyBuckets = latencyBuckets;
+    }
+
+    /** @return The number of lookups that found records. */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /** @return The number of lookups that found no records. */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /** @return The ratio of lookups that found records, or {@literal 0} if there were no lookups. */
+    public double getHitRate() {
+        long lookups = hitCount + missCount;
+        return lookups == 0? 0: (double)hitCount / lookups;
+    }
+
+    /** @return The number of lookups of negative answers that found one. */
+    public long getNegativeHitCount() {
+        return negativeHitCount;
+    }
+
+    /** @return The number of lookups of stale records that found some. */
+    public long getStaleHitCount() {
+        return staleHitCount;
+    }
+
+    /** @return The number of records added. */
+    public long getInsertCount() {
+        return insertCount;
+    }
+
+    /**
+     * @param cause Why the records were removed.
+     * @return The number of records removed for the given reason.
+     */
+    public long getRemovalCount(RemovalCause cause) {
+        return removalCounts[cause.ordinal()];
+    }
+
+    /** @return The number of records evicted because the cache was full. */
+    public long getEvictionCount() {
+        return getRemovalCount(RemovalCause.SIZE);
+    }
+
+    /** @return The number of records removed because they expired. */
+    public long getExpirationCount() {
+        return getRemovalCount(RemovalCause.EXPIRED);
+    }
+
+    /** @return The number of records in the cache, not counting pinned ones. */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /** @return The estimated number of bytes used by the records in the cache. */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /** @return The number of lookups whose latency was measured. */
+    public long getLatencyCount() {
+        long count = 0;
+        for(long bucket: latencyBuckets) count += bucket;
+        return count;
+    }
+
+    /** @return A copy of the latency histogram, see the description of this class. */
+    public long[] getLatencyHistogram() {
+        return latencyBuckets.clone();
+    }
+
+    /**
+     * Estimates a percentile of the lookup latency as the upper bound of the histogram bucket it falls in.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The latency in nanoseconds, or {@literal 0} if there were no lookups.
+     */
+    public long getLatencyPercentile(double percentile) {
+        if(percentile < 0 || percentile > 100) throw new IllegalArgumentException("Invalid percentile " + percentile);
+        long count = getLatencyCount();
+        if(count == 0) return 0;
+        long target = Math.max(1, (long)Math.ceil(count * percentile / 100));
+        long accumulated = 0;
+        for(int bucket = 0; bucket < latencyBuckets.length; bucket++) {
+            accumulated += latencyBuckets[bucket];
+            if(accumulated >= target) return bucket == 63? Long.MAX_VALUE: 1L << bucket;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /* the sum of two snapshots, like those of two levels of a cache */
+    CacheStats plus(CacheStats other) {
+        long[] removals = removalCounts.clone();
+        for(int index = 0; index < removals.length; index++) removals[index] += other.removalCounts[index];
+        long[] latencies = latencyBuckets.clone();
+        for(int index = 0; index < latencies.length; index++) latencies[index] += other.latencyBuckets[index];
+        return new CacheStats(hitCount + other.hitCount, missCount + other.missCount,
+                negativeHitCount + other.negativeHitCount, staleHitCount + other.staleHitCount,
+                insertCount + other.insertCount, removals, recordCount + other.recordCount,
+                byteCount + other.byteCount, latencies);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hitCount + ", misses=" + missCount + ", negativeHits=" + negativeHitCount
+                + ", staleHits=" + staleHitCount + ", inserts=" + insertCount + ", removals="
+                + Arrays.toString(removalCounts) + ", records=" + recordCount + ", bytes=" + byteCount
+                + ", p50=" + getLatencyPercentile(50) + "ns, p99=" + getLatencyPercentile(99) + "ns}";
+    }
+
+}
@@ -22,16 +22,24 @@ import au.id.villar.dns.engine.ResourceRecord;
 
 class CachedResourceRecord implements DNSItem {
 
+    /* approximate heap used by a cached record besides its name and data */
+    private static final int RECORD_OVERHEAD = 96;
+
     private final ResourceRecord wrapped;
     private final long bestBefore;
     private final long timeAdded;
+    private final int weight;
     private long timeAccessed;
+    private volatile ResourceRecord remaining;
 
     public CachedResourceRecord(ResourceRecord wrapped, long timeAdded) {
         this.wrapped = wrapped;
         this.timeAdded = timeAdded;
         this.timeAccessed = timeAdded;
         this.bestBefore = wrapped.getSecondsCache() * 1000L + this.timeAdded;
+        int rawDataLength = wrapped.getRawDataLength();
+        this.weight = RECORD_OVERHEAD + wrapped.getDnsName().length() * 2 + rawDataLength
+                + (wrapped.hasWireData()? rawDataLength: 0);
     }
 
     public <T> T getData(Class<T> tClass) {
@@ -54,7 +62,15 @@ class CachedResourceRecord implements DNSItem {
     }
 
     public boolean isExpired() {
-        return bestBefore - System.currentTimeMillis() < 0;
+        return isExpired(System.currentTimeMillis());
+    }
+
+    public boolean isExpired(long now) {
+        return bestBefore - now <= 0;
+    }
+
+    public long getBestBefore() {
+        return bestBefore;
     }
 
     public long getTimeAdded() {
@@ -69,7 +85,29 @@ class CachedResourceRecord implements DNSItem {
         this.timeAccessed = timeAccessed;
     }
 
+    /* estimated number of bytes retained by this record, computed when it is created, before it enters a cache */
+    public int getWeight() {
+        return weight;
+    }
+
     public ResourceRecord getResourceRecord() {
         return wrapped;
     }
+
+    /* the record with the seconds it has left as its TTL; the copy is kept until the second changes */
+    public ResourceRecord getResourceRecord(long now) {
+        long seconds = remainingSeconds(bestBefore, now);
+        if(seconds >= wrapped.getSecondsCache()) return wrapped;
+        ResourceRecord current = remaining;
+        if(current == null || current.getSecondsCache() != seconds) {
+            current = wrapped.withSecondsCache(seconds);
+            remaining = current;
+        }
+        return current;
+    }
+
+    /* seconds left until bestBefore, rounded up as a record is still valid during its last fraction of second */
+    static long remainingSeconds(long bestBefore, long now) {
+        return Math.max(0, (bestBefore - now + 999) / 1000);
+    }
 }
@@ -0,0 +1,547 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link DNSCache} that can be shared by several threads. Records are grouped in RRsets keyed by (name, class,
+ * type) in a {@link ConcurrentHashMap}, so lookups don't block, return a whole RRset in one probe and inserts only
+ * lock the bin of the key being modified. Queries for {@link DNSClass#ANY} or {@link DNSType#ALL} are answered
+ * using a secondary index by name.
+ * <p>
+ * Expired records are never returned and they are removed by a {@link TimerWheel} as the cache is used, so there
+ * is no need for a background thread to clean it up.
+ * <p>
+ * The cache can be bounded by the estimated number of bytes retained by its records. In that case a
+ * {@link WindowTinyLfuPolicy} decides which RRsets are evicted, favouring those used most often. Lookups only
+ * report their hits to the policy when nobody else is using it, so they never wait for it; losing some of those
+ * hits is harmless as popularity is an estimation anyway.
+ * <p>
+ * If a {@link RefreshHandler} is set, hits on RRsets that have used up {@value #REFRESH_PERCENTAGE}% of their TTL
+ * are reported to it (once per RRset until new records arrive) so popular names can be resolved again before they
+ * expire.
+ * <p>
+ * Negative answers are kept apart from the records and they don't count towards the maximum size; they are
+ * removed when they expire or when a record for the same name arrives.
+ */
+public class ConcurrentDNSCache implements DNSCache {
+
+    private static final int EXPIRATION_TICK_SHIFT = 10;
+    private static final int REFRESH_PERCENTAGE = 90;
+    private static final long REFRESH_RETRY_MILLIS = 10_000;
+
+    private final ConcurrentHashMap<RRSetKey, RRSet> rrSets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<RRSetKey, Set<RRSetKey>> keysByName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<RRSetKey, NegativeAnswer> negativeAnswers = new ConcurrentHashMap<>();
+    private final PinnedRecords pinnedRecords = new PinnedRecords();
+    private final ReentrantLock wheelLock = new ReentrantLock();
+    private final TimerWheel<RRSetKey> wheel;
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final WindowTinyLfuPolicy policy;
+    private final ReadBuffer<RRSetKey> readBuffer = new ReadBuffer<>();
+    private final StatsCounter stats = new StatsCounter();
+    private final LongSupplier clock;
+    private final AtomicLong evictedRRSets = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final ConcurrentHashMap<RRSetKey, Long> refreshing = new ConcurrentHashMap<>();
+    private volatile RefreshHandler refreshHandler;
+    private volatile long staleMillis;
+    private volatile boolean keepWireData;
+    private volatile TtlPolicy ttlPolicy = TtlPolicy.NONE;
+    private volatile long lastExpirationTick;
+
+    /** Creates a cache without any limit on the number of records it can hold. */
+    public ConcurrentDNSCache() {
+        this(null, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a cache limited by the estimated number of bytes retained by its records.
+     * @param maximumBytes the maximum estimated size of the records in this cache.
+     */
+    public ConcurrentDNSCache(long maximumBytes) {
+        this(maximumBytes, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a cache without any limit on the number of records it can hold, reading the time from the given
+     * clock instead of the system one.
+     * @param clock gives the current time in milliseconds, like {@link System#currentTimeMillis()}.
+     */
+    public ConcurrentDNSCache(LongSupplier clock) {
+        this(null, clock);
+    }
+
+    /**
+     * Creates a cache limited by the estimated number of bytes retained by its records, reading the time from the
+     * given clock instead of the system one.
+     * @param maximumBytes the maximum estimated size of the records in this cache.
+     * @param clock gives the current time in milliseconds, like {@link System#currentTimeMillis()}.
+     */
+    public ConcurrentDNSCache(long maximumBytes, LongSupplier clock) {
+        this(new WindowTinyLfuPolicy(maximumBytes), clock);
+        if(maximumBytes <= 0) throw new IllegalArgumentException("maximumBytes must be positive");
+    }
+
+    private ConcurrentDNSCache(WindowTinyLfuPolicy policy, LongSupplier clock) {
+        long now = clock.getAsLong();
+        this.clock = clock;
+        this.policy = policy;
+        this.wheel = new TimerWheel<>(now);
+        this.lastExpirationTick = now >>> EXPIRATION_TICK_SHIFT;
+    }
+
+    @Override
+    public void addResourceRecord(ResourceRecord resourceRecord) {
+        long now = clock.getAsLong();
+        resourceRecord = ttlPolicy.apply(resourceRecord);
+        if(keepWireData) resourceRecord = resourceRecord.withWireData();
+        addCachedRecord(new CachedResourceRecord(resourceRecord, now), now);
+    }
+
+    /** Records are grouped by RRset first, so each RRset is replaced and weighed by the policy only once. */
+    @Override
+    public void addResourceRecords(List<ResourceRecord> resourceRecords) {
+        long now = clock.getAsLong();
+        Map<RRSetKey, List<CachedResourceRecord>> byKey = new LinkedHashMap<>();
+        for(ResourceRecord resourceRecord: resourceRecords) {
+            resourceRecord = ttlPolicy.apply(resourceRecord);
+            if(keepWireData) resourceRecord = resourceRecord.withWireData();
+            CachedResourceRecord wrapper = new CachedResourceRecord(resourceRecord, now);
+            byKey.computeIfAbsent(RRSetKey.of(wrapper), k -> new ArrayList<>(1)).add(wrapper);
+        }
+        for(Map.Entry<RRSetKey, List<CachedResourceRecord>> entry: byKey.entrySet()) {
+            putRecords(entry.getKey(), entry.getValue());
+        }
+        expireRecords(now);
+    }
+
+    @Override
+    public void addPinnedResourceRecord(ResourceRecord resourceRecord) {
+        pinnedRecords.add(resourceRecord);
+    }
+
+    private void addCachedRecord(CachedResourceRecord wrapper, long now) {
+        putRecords(RRSetKey.of(wrapper), Collections.singletonList(wrapper));
+        expireRecords(now);
+    }
+
+    private void putRecords(RRSetKey key, List<CachedResourceRecord> wrappers) {
+        rrSets.compute(key, (k, current) -> {
+            RRSet updated = current;
+            for(CachedResourceRecord wrapper: wrappers) {
+                if(updated == null) {
+                    updated = new RRSet(k, wrapper);
+                    addToNameIndex(k);
+                } else {
+                    updated = updated.add(wrapper);
+                }
+            }
+            schedule(updated);
+            stats.recordChange(current, updated);
+            return updated;
+        });
+        stats.recordInserts(wrappers.size());
+        if(policy != null) recordWrite(key);
+        refreshing.remove(key);
+        removeNegativeAnswer(key.nameKey());
+        removeNegativeAnswer(key);
+    }
+
+    @Override
+    public void addNegativeAnswer(Question question, ResponseCode responseCode, ResourceRecord soa) {
+        long now = clock.getAsLong();
+        NegativeAnswer answer = NegativeAnswer.create(question, responseCode, soa, now);
+        if(answer == null) return;
+        negativeAnswers.compute(answer.getKey(), (k, current) -> {
+            if(current != null) deschedule(current.getTimerNode());
+            schedule(answer.getTimerNode(), answer.getBestBefore());
+            return answer;
+        });
+        expireRecords(now);
+    }
+
+    @Override
+    public ResponseCode getNegativeAnswer(Question question) {
+        long now = clock.getAsLong();
+        RRSetKey key = RRSetKey.of(question);
+        NegativeAnswer answer = negativeAnswers.get(key.nameKey());
+        if(answer == null || answer.isExpired(now)) answer = negativeAnswers.get(key);
+        expireRecords(now);
+        if(answer == null || answer.isExpired(now)) return null;
+        stats.recordNegativeHit();
+        return answer.getResponseCode();
+    }
+
+    @Override
+    public CompletionStage<List<ResourceRecord>> getResourceRecords(Question question) {
+        long start = System.nanoTime();
+        List<ResourceRecord> records = findResourceRecords(question, 0);
+        stats.recordLookUp(!records.isEmpty(), start);
+        return CompletableFuture.completedFuture(records);
+    }
+
+    /* only the policy and the refresh-ahead check see the hit, the statistics are kept by the caller */
+    @Override
+    public void recordHit(Question question) {
+        long now = clock.getAsLong();
+        RRSetKey key = RRSetKey.of(question);
+        if(!key.isWildcard()) {
+            RRSet rrSet = rrSets.get(key);
+            if(rrSet != null) {
+                recordAccess(key);
+                refreshIfNeeded(question, rrSet, now);
+            }
+        } else {
+            Set<RRSetKey> keys = keysByName.get(key.nameKey());
+            if(keys != null) for(RRSetKey cachedKey: keys) if(key.covers(cachedKey)) recordAccess(cachedKey);
+        }
+    }
+
+    @Override
+    public List<ResourceRecord> getStaleResourceRecords(Question question) {
+        long stale = staleMillis;
+        if(stale == 0) return new ArrayList<>();
+        List<ResourceRecord> records = findResourceRecords(question, stale);
+        if(!records.isEmpty()) stats.recordStaleHit();
+        return records;
+    }
+
+    @Override
+    public void clear() {
+        for(RRSetKey key: rrSets.keySet()) remove(key);
+        for(RRSetKey key: negativeAnswers.keySet()) removeNegativeAnswer(key);
+        pinnedRecords.clear();
+    }
+
+    /**
+     * Sets the handler to be told about popular RRsets about to expire.
+     * @param refreshHandler the handler, or null to stop refreshing RRsets.
+     */
+    public void setRefreshHandler(RefreshHandler refreshHandler) {
+        this.refreshHandler = refreshHandler;
+    }
+
+    /**
+     * Writes the records in this cache that are not expired to a stream, in a compact binary format that can be
+     * loaded with {@link #readSnapshot(InputStream, DNSEngine)}. Records added or removed while the snapshot
+     * is being written may or may not be included. The stream is not closed.
+     * @param output the stream where the records are written.
+     * @return The number of records written.
+     * @throws IOException if there is an error writing to the stream.
+     */
+    public int writeSnapshot(OutputStream output) throws IOException {
+        return CacheSnapshot.write(rrSets.values(), output, clock.getAsLong());
+    }
+
+    /**
+     * Adds to this cache the records from a snapshot written by {@link #writeSnapshot(OutputStream)}, except
+     * those already expired. Records keep the expiration time they had when the snapshot was written. The stream is
+     * not closed, nor read beyond the end of the snapshot; it is read in small pieces, so it should be buffered.
+     * @param input the stream to read the snapshot from.
+     * @param engine the engine used to create the records.
+     * @return The number of records added.
+     * @throws IOException if there is an error reading from the stream or it doesn't contain a snapshot.
+     */
+    public int readSnapshot(InputStream input, DNSEngine engine) throws IOException {
+        long now = clock.getAsLong();
+        return CacheSnapshot.read(input, engine, now, record -> addCachedRecord(record, now));
+    }
+
+    /**
+     * Makes this cache keep the RDATA of the records added from now on in wire format (see
+     * {@link ResourceRecord#withWireData()}), so writing them to a message or a snapshot is just a copy of bytes.
+     * Disabled by default as it takes more memory.
+     * @param keepWireData true to keep the RDATA of new records in wire format.
+     */
+    public void setKeepWireData(boolean keepWireData) {
+        this.keepWireData = keepWireData;
+    }
+
+    /**
+     * Sets the limits applied to the TTL of the records added from now on. Pinned records are not affected.
+     * @param ttlPolicy the policy, {@link TtlPolicy#NONE} (the default) to keep TTLs as they are.
+     */
+    public void setTtlPolicy(TtlPolicy ttlPolicy) {
+        this.ttlPolicy = ttlPolicy;
+    }
+
+    /**
+     * Keeps expired records for a while so they can be served with {@link #getStaleResourceRecords(Question)}
+     * when a question can't be resolved (see RFC-8767). Disabled by default. Stale records still count towards the
+     * maximum size of the cache.
+     * @param maxStaleSeconds how long expired records are kept, or {@literal 0} to remove them as soon as they
+     *                        expire.
+     */
+    public void setServeStale(long maxStaleSeconds) {
+        if(maxStaleSeconds < 0) throw new IllegalArgumentException("maxStaleSeconds can't be negative");
+        this.staleMillis = maxStaleSeconds * 1000;
+    }
+
+    /**
+     * Number of refreshes requested to the {@link RefreshHandler}.
+     * @return The number of refreshes requested since this cache was created.
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * Number of records removed from this cache because their TTL was over.
+     * @return The number of records expired since this cache was created.
+     */
+    public long getExpiredCount() {
+        return stats.getRemovalCount(CacheStats.RemovalCause.EXPIRED);
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Number of RRsets removed from this cache to keep it under its maximum size.
+     * @return The number of RRsets evicted since this cache was created.
+     */
+    public long getEvictionCount() {
+        return evictedRRSets.get();
+    }
+
+    /**
+     * Estimated number of bytes retained by the records in this cache. Only available if the cache was created
+     * with a maximum size.
+     * @return The estimated size of this cache, or {@literal -1} if this cache is not bounded.
+     */
+    public long getEstimatedSize() {
+        if(policy == null) return -1;
+        policyLock.lock();
+        try {
+            return policy.getWeightedSize();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /* Advances the timer wheel at most once per tick; if another thread is already doing it then it just returns */
+    void expireRecords(long now) {
+        if(now >>> EXPIRATION_TICK_SHIFT == lastExpirationTick || !wheelLock.tryLock()) return;
+        List<RRSetKey> due = new ArrayList<>();
+        try {
+            lastExpirationTick = now >>> EXPIRATION_TICK_SHIFT;
+            wheel.advance(now, due);
+        } finally {
+            wheelLock.unlock();
+        }
+        long stale = staleMillis;
+        for(RRSetKey key: due) {
+            negativeAnswers.computeIfPresent(key, (k, answer) -> answer.isExpired(now)? null: answer);
+            RRSet alive = rrSets.computeIfPresent(key, (k, rrSet) -> {
+                RRSet remaining = rrSet.removeExpired(now - stale);
+                stats.recordRemovals(CacheStats.RemovalCause.EXPIRED,
+                        rrSet.size() - (remaining != null? remaining.size(): 0));
+                stats.recordChange(rrSet, remaining);
+                if(remaining != null) {
+                    schedule(remaining);
+                } else {
+                    removeFromNameIndex(k);
+                    refreshing.remove(k);
+                }
+                return remaining;
+            });
+            if(policy != null) recordShrink(key, alive);
+        }
+    }
+
+    /*
+     * Lock ordering: the policy lock is never acquired while holding a lock on a bin of rrSets, and the wheel lock
+     * is always the last one acquired.
+     */
+
+    private void recordWrite(RRSetKey key) {
+        policyLock.lock();
+        try {
+            drainReadBuffer();
+            RRSet rrSet = rrSets.get(key);
+            if(rrSet == null) {
+                policy.remove(key);
+                return;
+            }
+            for(RRSetKey victim: policy.recordWrite(key, rrSet.getWeight())) {
+                rrSets.computeIfPresent(victim, (k, evicted) -> {
+                    evictedRRSets.incrementAndGet();
+                    stats.recordRemovals(CacheStats.RemovalCause.SIZE, evicted.size());
+                    stats.recordChange(evicted, null);
+                    return removeRRSet(k, evicted);
+                });
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    private void recordShrink(RRSetKey key, RRSet alive) {
+        policyLock.lock();
+        try {
+            drainReadBuffer();
+            if(alive != null) policy.recordShrink(key, alive.getWeight()); else policy.remove(key);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /* reads are buffered and given to the policy when a write takes its lock, or by the reader that fills a buffer
+     * if the lock is free */
+    private void recordAccess(RRSetKey key) {
+        if(policy == null || !readBuffer.offer(key) || !policyLock.tryLock()) return;
+        try {
+            drainReadBuffer();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /* must be called holding the policy lock */
+    private void drainReadBuffer() {
+        readBuffer.drainTo(policy::recordAccess);
+    }
+
+    private void remove(RRSetKey key) {
+        rrSets.computeIfPresent(key, (k, rrSet) -> {
+            stats.recordRemovals(CacheStats.RemovalCause.EXPLICIT, rrSet.size());
+            stats.recordChange(rrSet, null);
+            return removeRRSet(k, rrSet);
+        });
+        if(policy != null) recordShrink(key, null);
+    }
+
+    /* records expired less than "stale" milliseconds ago are also returned */
+    private List<ResourceRecord> findResourceRecords(Question question, long stale) {
+        long now = clock.getAsLong();
+        List<ResourceRecord> list = new ArrayList<>();
+        RRSetKey key = RRSetKey.of(question);
+        if(!key.isWildcard()) {
+            RRSet rrSet = rrSets.get(key);
+            if(rrSet != null) {
+                addTo(list, rrSet, now, stale);
+                recordAccess(key);
+                refreshIfNeeded(question, rrSet, now);
+            }
+        } else {
+            Set<RRSetKey> keys = keysByName.get(key.nameKey());
+            if(keys != null) {
+                for(RRSetKey cachedKey: keys) {
+                    RRSet rrSet;
+                    if(key.covers(cachedKey) && (rrSet = rrSets.get(cachedKey)) != null) {
+                        addTo(list, rrSet, now, stale);
+                        recordAccess(cachedKey);
+                    }
+                }
+            }
+        }
+        pinnedRecords.addTo(list, key);
+        expireRecords(now);
+        return list;
+    }
+
+    private void addTo(List<ResourceRecord> list, RRSet rrSet, long now, long stale) {
+        if(stale > 0) rrSet.addStaleTo(list, now, stale); else rrSet.addTo(list, now);
+    }
+
+    /* a refresh is requested again if no records arrived after a while, in case the previous one failed */
+    private void refreshIfNeeded(Question question, RRSet rrSet, long now) {
+        RefreshHandler handler = refreshHandler;
+        if(handler == null || !rrSet.isNearExpiration(now, REFRESH_PERCENTAGE)) return;
+        RRSetKey key = rrSet.getKey();
+        Long requested = refreshing.get(key);
+        if(requested != null && now - requested < REFRESH_RETRY_MILLIS) return;
+        boolean claimed = requested == null?
+                refreshing.putIfAbsent(key, now) == null: refreshing.replace(key, requested, now);
+        if(!claimed) return;
+        refreshes.incrementAndGet();
+        handler.refresh(question);
+    }
+
+    private void removeNegativeAnswer(RRSetKey key) {
+        negativeAnswers.computeIfPresent(key, (k, answer) -> {
+            deschedule(answer.getTimerNode());
+            return null;
+        });
+    }
+
+    private RRSet removeRRSet(RRSetKey key, RRSet rrSet) {
+        deschedule(rrSet.getTimerNode());
+        removeFromNameIndex(key);
+        refreshing.remove(key);
+        return null;
+    }
+
+    private void schedule(RRSet rrSet) {
+        schedule(rrSet.getTimerNode(), rrSet.getEarliestExpiration() + staleMillis);
+    }
+
+    private void schedule(TimerWheel.Node<RRSetKey> node, long expiration) {
+        wheelLock.lock();
+        try {
+            wheel.schedule(node, expiration);
+        } finally {
+            wheelLock.unlock();
+        }
+    }
+
+    private void deschedule(TimerWheel.Node<RRSetKey> node) {
+        wheelLock.lock();
+        try {
+            wheel.deschedule(node);
+        } finally {
+            wheelLock.unlock();
+        }
+    }
+
+    /* always called while holding the lock of the RRSet's bin in rrSets */
+    private void addToNameIndex(RRSetKey key) {
+        keysByName.compute(key.nameKey(), (nameKey, keys) -> {
+            if(keys == null) keys = ConcurrentHashMap.newKeySet();
+            keys.add(key);
+            return keys;
+        });
+    }
+
+    /* always called while holding the lock of the RRSet's bin in rrSets */
+    private void removeFromNameIndex(RRSetKey key) {
+        keysByName.computeIfPresent(key.nameKey(), (nameKey, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty()? null: keys;
+        });
+    }
+
+}
@@ -16,29 +16,124 @@
 package au.id.villar.dns.cache;
 
 import au.id.villar.dns.DNSException;
-import au.id.villar.dns.ResourceRecordHandler;
 import au.id.villar.dns.engine.*;
 
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public interface DNSCache {
 
     void addResourceRecord(ResourceRecord resourceRecord);
 
-    List<ResourceRecord> getResourceRecords(Question question, long timeout)
-            throws DNSException, InterruptedException, TimeoutException;
+    /**
+     * Adds several records at once, like those loaded from a zone file. Caches may take advantage of this to update
+     * each RRset only once; by default records are added one by one.
+     * @param resourceRecords The records to add.
+     */
+    default void addResourceRecords(List<ResourceRecord> resourceRecords) {
+        for(ResourceRecord resourceRecord: resourceRecords) addResourceRecord(resourceRecord);
+    }
 
-    boolean getResourceRecords(Question question, Selector selector, ResourceRecordHandler handler);
+    /**
+     * Adds a record that is never evicted and never expires, like the root hints used to start a resolution. Pinned
+     * records are returned along with the cached ones, and are only removed by {@link #clear()}. Caches not
+     * supporting pinned records just add it as any other record.
+     * @param resourceRecord The record to pin.
+     */
+    default void addPinnedResourceRecord(ResourceRecord resourceRecord) {
+        addResourceRecord(resourceRecord);
+    }
 
-    void processAttachment(SelectionKey selectionKey);
+    /**
+     * Looks for the records answering a question without blocking the calling thread. Caches held in memory
+     * return an already completed stage; caches living elsewhere (for example in another process) complete it
+     * when their answer arrives, or complete it exceptionally if it can't be obtained.
+     * @param question The question to look for.
+     * @return A stage completed with the records found, the list is empty if there are none. The TTL of each record
+     * is the number of seconds it has left in the cache, rounded up.
+     */
+    CompletionStage<List<ResourceRecord>> getResourceRecords(Question question);
 
-    boolean getResourceRecords(Question question, ResourceRecordHandler handler);
+    /**
+     * Blocking version of {@link #getResourceRecords(Question)}, waiting for the stage it returns.
+     * @param question The question to look for.
+     * @param timeout The maximum time to wait, in milliseconds; 0 or less waits as long as needed.
+     * @return The records found, the list is empty if there are none.
+     * @throws DNSException If the stage completed exceptionally.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     * @throws TimeoutException If there is no answer within the given time.
+     */
+    default List<ResourceRecord> getResourceRecords(Question question, long timeout)
+            throws DNSException, InterruptedException, TimeoutException {
+        CompletableFuture<List<ResourceRecord>> lookUp = getResourceRecords(question).toCompletableFuture();
+        try {
+            return timeout > 0? lookUp.get(timeout, TimeUnit.MILLISECONDS): lookUp.get();
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof DNSException) throw (DNSException)cause;
+            if(cause instanceof TimeoutException) throw new TimeoutException(cause.getMessage());
+            throw new DNSException(cause.getMessage(), cause);
+        }
+    }
 
-    boolean retryGetResourceRecords();
+    /**
+     * Tells this cache that the records answering a question were used without asking it, for example because a
+     * copy kept in front of it answered the lookup. Caches use it to keep the popularity of their records up to date
+     * and to refresh them before they expire, as if the lookup had reached them. Ignored by default.
+     * @param question The question answered with records taken from this cache.
+     */
+    default void recordHit(Question question) {
+    }
+
+    /**
+     * Caches a negative answer (see RFC-2308) received for a question. The answer is kept for as long as the
+     * minimum of the SOA record's TTL and the SOA MINIMUM field. Caches not supporting negative answers ignore it,
+     * which is what the default implementation does.
+     * @param question The question that got the negative answer.
+     * @param responseCode {@link ResponseCode#NAME_ERROR} if the name doesn't exist (NXDOMAIN), or
+     *                     {@link ResponseCode#NO_ERROR} if the name exists but has no records of the type asked for
+     *                     (NODATA). Other codes are ignored.
+     * @param soa The SOA record taken from the authority section of the answer.
+     */
+    default void addNegativeAnswer(Question question, ResponseCode responseCode, ResourceRecord soa) {
+    }
+
+    /**
+     * Looks for a cached negative answer applicable to a question. The default implementation, for caches not
+     * supporting negative answers, always returns {@literal null}.
+     * @param question The question to look for.
+     * @return {@link ResponseCode#NAME_ERROR} if the name is known not to exist, {@link ResponseCode#NO_ERROR} if the
+     * name is known not to have records of the type asked for, or {@literal null} if nothing is known.
+     */
+    default ResponseCode getNegativeAnswer(Question question) {
+        return null;
+    }
+
+    /**
+     * Looks for records to answer a question when it can't be resolved, including those already expired but still
+     * within the serve-stale window of this cache (see RFC-8767). Caches not configured to serve stale records
+     * return an empty list, as the default implementation does.
+     * @param question The question to look for.
+     * @return The records found; those already expired have a TTL of 30 seconds.
+     */
+    default List<ResourceRecord> getStaleResourceRecords(Question question) {
+        return new ArrayList<>();
+    }
 
     void clear();
 
+    /**
+     * Takes a snapshot of the statistics of this cache; it is cheap enough to be polled periodically. Caches not
+     * keeping statistics return {@link CacheStats#EMPTY}.
+     * @return The current statistics.
+     */
+    default CacheStats getStats() {
+        return CacheStats.EMPTY;
+    }
+
 }
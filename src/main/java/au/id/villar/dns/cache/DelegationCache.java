@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.ResourceRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Cache of zone cuts: the name servers a zone is delegated to and their addresses (glue) when known. Zones are kept
+ * in a {@link LabelTrie}, so the deepest delegation known for a name is found with a single walk over its labels,
+ * letting an iterative resolution start from the closest name servers. Delegations expire with the smallest TTL of
+ * their records and are evicted once expired; when the cache is full the delegation closest to expiring is evicted.
+ * This class is thread safe.
+ */
+public class DelegationCache {
+
+    private static final int DEFAULT_MAXIMUM_ZONES = 10_000;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LabelTrie<Delegation> zones = new LabelTrie<>();
+    /* the delegations held by the trie, ordered by expiration */
+    private final TreeSet<Delegation> byExpiration = new TreeSet<>(
+            Comparator.<Delegation>comparingLong(d -> d.bestBefore).thenComparingLong(d -> d.sequence));
+    private final AtomicLong sequence = new AtomicLong();
+    private final int maximumZones;
+
+    public DelegationCache() {
+        this(DEFAULT_MAXIMUM_ZONES);
+    }
+
+    /**
+     * @param maximumZones The maximum number of delegations kept.
+     */
+    public DelegationCache(int maximumZones) {
+        if(maximumZones <= 0) throw new IllegalArgumentException("maximumZones must be positive");
+        this.maximumZones = maximumZones;
+    }
+
+    /**
+     * Adds or replaces the delegation of a zone, taken from a source trusted for any zone, like the root hints.
+     * @param nameServers The NS records of the zone, records of other types or owned by other names are ignored.
+     * @param glue Address records (A or AAAA), only those belonging to the name servers of the zone are kept.
+     */
+    public void addDelegation(List<ResourceRecord> nameServers, List<ResourceRecord> glue) {
+        addDelegation("", nameServers, glue);
+    }
+
+    /**
+     * Adds or replaces the delegation of a zone taken from a referral. The referral is only accepted if it is in
+     * bailiwick: the delegated zone must be the zone of the servers that sent it or one below it, so a server can't
+     * take over zones it isn't authoritative for. Glue out of that zone is ignored as well.
+     * @param bailiwick The zone of the name servers that sent the referral.
+     * @param nameServers The NS records of the zone, records of other types or owned by other names are ignored.
+     * @param glue Address records (A or AAAA), only those belonging to the name servers of the zone are kept.
+     */
+    public void addDelegation(String bailiwick, List<ResourceRecord> nameServers, List<ResourceRecord> glue) {
+        if(nameServers.isEmpty()) return;
+        String zoneName = nameServers.get(0).getDnsName();
+        if(!isInBailiwick(zoneName, bailiwick)) return;
+        List<ResourceRecord> zoneServers = new ArrayList<>();
+        long ttl = Long.MAX_VALUE;
+        for(ResourceRecord ns: nameServers) {
+            if(!ns.getDnsType().equals(DNSType.NS) || !ns.getDnsName().equalsIgnoreCase(zoneName)) continue;
+            zoneServers.add(ns);
+            ttl = Math.min(ttl, ns.getSecondsCache());
+        }
+        List<ResourceRecord> zoneGlue = new ArrayList<>();
+        for(ResourceRecord address: glue) {
+            if(!address.getDnsType().equals(DNSType.A) && !address.getDnsType().equals(DNSType.AAAA)
+                    || !isInBailiwick(address.getDnsName(), bailiwick)) continue;
+            for(ResourceRecord ns: zoneServers) {
+                if(address.getDnsName().equalsIgnoreCase(ns.getData(String.class))) {
+                    zoneGlue.add(address);
+                    ttl = Math.min(ttl, address.getSecondsCache());
+                    break;
+                }
+            }
+        }
+        if(zoneServers.isEmpty() || ttl <= 0) return;
+        long now = System.currentTimeMillis();
+        Delegation delegation = new Delegation(zoneName, zoneServers, zoneGlue, now + ttl * 1000L,
+                sequence.getAndIncrement());
+        lock.writeLock().lock();
+        try {
+            evictExpired(now);
+            Delegation previous = zones.put(zoneName, delegation);
+            if(previous != null) byExpiration.remove(previous);
+            byExpiration.add(delegation);
+            while(zones.size() > maximumZones) remove(byExpiration.first());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the deepest zone, not expired, that is or encloses the given name.
+     * @param name The name to look for.
+     * @return The delegation of the closest enclosing zone, or {@literal null} if none is known.
+     */
+    public Delegation findClosestDelegation(String name) {
+        long now = System.currentTimeMillis();
+        Delegation closest;
+        boolean expired;
+        lock.readLock().lock();
+        try {
+            closest = zones.findClosestEnclosing(name, delegation -> !delegation.isExpired(now));
+            expired = !byExpiration.isEmpty() && byExpiration.first().isExpired(now);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if(expired) {
+            lock.writeLock().lock();
+            try {
+                evictExpired(now);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Removes the delegation of a zone, for example because its name servers didn't answer.
+     * @param zoneName The name of the zone.
+     */
+    public void removeDelegation(String zoneName) {
+        lock.writeLock().lock();
+        try {
+            Delegation previous = zones.remove(zoneName);
+            if(previous != null) byExpiration.remove(previous);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            zones.clear();
+            byExpiration.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** @return The number of delegations held, some of them may have expired. */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return zones.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Tells if a name is a given zone or is under it, ignoring case and a trailing dot.
+     * @param name The name to check.
+     * @param zone The zone, "" being the root zone.
+     * @return {@literal true} if the name is in the zone.
+     */
+    public static boolean isInBailiwick(String name, String zone) {
+        int nameLength = endOf(name);
+        int zoneLength = endOf(zone);
+        if(zoneLength == 0) return true;
+        int start = nameLength - zoneLength;
+        return start >= 0 && name.regionMatches(true, start, zone, 0, zoneLength)
+                && (start == 0 || name.charAt(start - 1) == '.');
+    }
+
+    private static int endOf(String name) {
+        int end = name.length();
+        return end > 0 && name.charAt(end - 1) == '.'? end - 1: end;
+    }
+
+    /* must be called holding the write lock */
+    private void evictExpired(long now) {
+        while(!byExpiration.isEmpty() && byExpiration.first().isExpired(now)) remove(byExpiration.first());
+    }
+
+    private void remove(Delegation delegation) {
+        byExpiration.remove(delegation);
+        zones.remove(delegation.zoneName);
+    }
+
+    /** The name servers of a zone and the addresses known for them. Instances are immutable. */
+    public static final class Delegation {
+
+        private final String zoneName;
+        private final List<ResourceRecord> nameServers;
+        private final List<ResourceRecord> glue;
+        private final long bestBefore;
+        private final long sequence;
+
+        private Delegation(String zoneName, List<ResourceRecord> nameServers, List<ResourceRecord> glue,
+                long bestBefore, long sequence) {
+            this.zoneName = zoneName;
+            this.nameServers = Collections.unmodifiableList(nameServers);
+            this.glue = Collections.unmodifiableList(glue);
+            this.bestBefore = bestBefore;
+            this.sequence = sequence;
+        }
+
+        public String getZoneName() {
+            return zoneName;
+        }
+
+        /** @return The NS records of the zone. */
+        public List<ResourceRecord> getNameServers() {
+            return nameServers;
+        }
+
+        /** @return The A and AAAA records of the name servers, it may be empty. */
+        public List<ResourceRecord> getGlue() {
+            return glue;
+        }
+
+        boolean isExpired(long now) {
+            return bestBefore - now <= 0;
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+/**
+ * Count-Min sketch with 4-bit counters estimating how often an item was seen recently. Sixteen counters are packed
+ * in each {@code long} and every item maps to four of them; the estimated frequency is the minimum of the four.
+ * Once the number of increments reaches ten times the expected number of items all the counters are halved, so old
+ * popularity fades away. This class is not thread safe.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_TABLE_SIZE = 1 << 26;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(long expectedItems) {
+        int tableSize = Integer.highestOneBit((int)Math.max(Math.min(expectedItems, MAX_TABLE_SIZE), 16) - 1) << 1;
+        this.table = new long[tableSize];
+        this.tableMask = tableSize - 1;
+        this.sampleSize = 10 * tableSize;
+    }
+
+    int frequency(int item) {
+        int hash = spread(item);
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for(int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int)((table[index] >>> ((start + i) << 2)) & 0xFL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(int item) {
+        int hash = spread(item);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for(int i = 0; i < 4; i++) added |= incrementAt(indexOf(hash, i), start + i);
+        if(added && ++size == sampleSize) reset();
+    }
+
+    void clear() {
+        for(int index = 0; index < table.length; index++) table[index] = 0;
+        size = 0;
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xFL << offset;
+        if((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        int odd = 0;
+        for(int index = 0; index < table.length; index++) {
+            odd += Long.bitCount(table[index] & ONE_MASK);
+            table[index] = (table[index] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += hash >>> 32;
+        return ((int)hash) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import java.util.function.Predicate;
+
+/**
+ * Trie of domain names indexed by their labels from right to left (the root label first), so the names enclosing
+ * a given name are found walking the trie once. Labels are compared ignoring case and read directly from the name
+ * being looked up, without splitting it. This class is not thread safe.
+ */
+final class LabelTrie<V> {
+
+    private final Node root = new Node(null, null);
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    V put(String name, V value) {
+        Node node = root;
+        int end = endOf(name);
+        while(end > 0) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            Node child = node.findChild(name, start, end);
+            if(child == null) child = node.addChild(name.substring(start, end));
+            node = child;
+            end = start - 1;
+        }
+        V previous = valueOf(node);
+        node.value = value;
+        if(previous == null) size++;
+        return previous;
+    }
+
+    V get(String name) {
+        Node node = root;
+        int end = endOf(name);
+        while(end > 0 && node != null) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            node = node.findChild(name, start, end);
+            end = start - 1;
+        }
+        return node != null? valueOf(node): null;
+    }
+
+    /* nodes left without value or children are removed, so the trie doesn't keep every name it ever had */
+    V remove(String name) {
+        Node node = root;
+        int end = endOf(name);
+        while(end > 0 && node != null) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            node = node.findChild(name, start, end);
+            end = start - 1;
+        }
+        if(node == null || node.value == null) return null;
+        V previous = valueOf(node);
+        node.value = null;
+        size--;
+        while(node != root && node.value == null && node.childCount == 0) {
+            node.parent.removeChild(node);
+            node = node.parent;
+        }
+        return previous;
+    }
+
+    /* the value of the deepest name equal to or enclosing the given one and accepted by the filter */
+    V findClosestEnclosing(String name, Predicate<V> filter) {
+        Node node = root;
+        V closest = root.value != null && filter.test(valueOf(root))? valueOf(root): null;
+        int end = endOf(name);
+        while(end > 0) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            node = node.findChild(name, start, end);
+            if(node == null) break;
+            if(node.value != null && filter.test(valueOf(node))) closest = valueOf(node);
+            end = start - 1;
+        }
+        return closest;
+    }
+
+    void clear() {
+        root.value = null;
+        root.children = null;
+        root.childCount = 0;
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueOf(Node node) {
+        return (V)node.value;
+    }
+
+    /* a trailing dot (the root label) is ignored */
+    private static int endOf(String name) {
+        int end = name.length();
+        return end > 0 && name.charAt(end - 1) == '.'? end - 1: end;
+    }
+
+    /* case insensitive hash of a label, computed over the name being looked up without copying it */
+    private static int hash(String name, int start, int end) {
+        int h = 0;
+        for(int index = start; index < end; index++) h = 31 * h + Character.toLowerCase(name.charAt(index));
+        return h ^ (h >>> 16);
+    }
+
+    /* values are kept as Object so nodes aren't generic, and arrays of them can be created without warnings */
+    private static final class Node {
+
+        private final Node parent;
+        private final String label;
+        private final int hash;
+        private Object value;
+        /* open addressing table of children, its length is a power of two */
+        private Node[] children;
+        private int childCount;
+
+        Node(Node parent, String label) {
+            this.parent = parent;
+            this.label = label;
+            this.hash = label != null? hash(label, 0, label.length()): 0;
+        }
+
+        Node findChild(String name, int start, int end) {
+            if(children == null) return null;
+            int length = end - start;
+            int h = hash(name, start, end);
+            int mask = children.length - 1;
+            for(int slot = h & mask; children[slot] != null; slot = (slot + 1) & mask) {
+                Node child = children[slot];
+                if(child.hash == h && child.label.length() == length
+                        && child.label.regionMatches(true, 0, name, start, length)) return child;
+            }
+            return null;
+        }
+
+        Node addChild(String label) {
+            if(children == null) {
+                children = new Node[4];
+            } else if((childCount + 1) * 2 > children.length) {
+                Node[] old = children;
+                children = new Node[old.length * 2];
+                for(Node child: old) if(child != null) insert(child);
+            }
+            Node child = new Node(this, label);
+            insert(child);
+            childCount++;
+            return child;
+        }
+
+        void removeChild(Node child) {
+            int mask = children.length - 1;
+            int slot = child.hash & mask;
+            while(children[slot] != child) slot = (slot + 1) & mask;
+            children[slot] = null;
+            if(--childCount == 0) {
+                children = null;
+                return;
+            }
+            // the children after the gap are inserted again, so none of them is left unreachable behind it
+            for(slot = (slot + 1) & mask; children[slot] != null; slot = (slot + 1) & mask) {
+                Node moved = children[slot];
+                children[slot] = null;
+                insert(moved);
+            }
+        }
+
+        private void insert(Node child) {
+            int mask = children.length - 1;
+            int slot = child.hash & mask;
+            while(children[slot] != null) slot = (slot + 1) & mask;
+            children[slot] = child;
+        }
+    }
+
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link DNSCache} backed by a memory-mapped file that several processes on the same host can use at the same
+ * time, so each one benefits from the lookups done by the others.
+ * <p>
+ * The file is a table of fixed-size slots grouped in buckets of {@value #BUCKET_SLOTS}; the records of a name are
+ * stored in the bucket selected by the hash of the name, replacing the expired ones or else the one closest to
+ * expire when the bucket is full. Records that don't fit in a slot are not cached.
+ * <p>
+ * Readers never lock: each slot starts with a sequence number that writers make odd while they modify the slot
+ * and even again when they are done (a seqlock). Readers copy the slot and retry if the sequence number changed
+ * or was odd; a checksum of the slot contents is verified as well, so a torn copy is never used even if the memory
+ * accesses of writers in other processes are seen out of order. Writers of the same bucket are serialized with a
+ * lock inside this process and a {@link FileLock} on the bucket's region of the file between processes. Caches opening
+ * the same path in one process share its channel, mapping and locks, as file locks are held on behalf of the whole
+ * process. Records that can't be written, because the file can't be locked or written, are counted and the last
+ * error kept, see {@link #getDroppedWriteCount()}.
+ * <p>
+ * Negative answers are not shared; each process keeps its own in memory.
+ */
+public class MappedDNSCache implements DNSCache, Closeable {
+
+    private static final int MAGIC = 0x444E534D; // "DNSM"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int BUCKET_SLOTS = 16;
+    private static final int SLOT_SIZE = 512;
+    private static final int LOCK_STRIPES = 64;
+    private static final int MAX_READ_ATTEMPTS = 64;
+    private static final int MAX_NEGATIVE_ANSWERS = 100_000;
+    private static final long STALE_SECONDS_CACHE = 30;
+
+    /* slot layout: sequence, name hash, expiration, TTL, type, class, name length, RDATA length, checksum, name,
+     * RDATA. A slot with expiration 0 is empty */
+    private static final int SEQUENCE = 0;
+    private static final int HASH = 4;
+    private static final int BEST_BEFORE = 8;
+    private static final int TTL = 16;
+    private static final int TYPE = 20;
+    private static final int CLASS = 22;
+    private static final int NAME_LENGTH = 24;
+    private static final int RAW_DATA_LENGTH = 26;
+    private static final int CHECKSUM = 28;
+    private static final int PAYLOAD = 32;
+
+    private final DNSEngine engine;
+    private final SharedFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int numBuckets;
+    private final ReentrantLock[] locks;
+    private final ConcurrentHashMap<RRSetKey, NegativeAnswer> negativeAnswers = new ConcurrentHashMap<>();
+    private final StatsCounter stats = new StatsCounter();
+    private final AtomicLong droppedWrites = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile Exception lastWriteError;
+    private volatile long staleMillis;
+    private volatile TtlPolicy ttlPolicy = TtlPolicy.NONE;
+
+    /**
+     * Opens a shared cache file, creating it if it doesn't exist. If the file already exists, its own number of
+     * slots is used; if it is already open in this process, its channel and mapping are shared.
+     * @param engine the engine used to create the records returned by lookups.
+     * @param file the file backing the cache.
+     * @param numSlots the number of records the file can hold if it has to be created; it is rounded up to a power
+     *                 of two.
+     * @throws IOException if the file can't be opened, created or is not a cache file.
+     */
+    public MappedDNSCache(DNSEngine engine, Path file, int numSlots) throws IOException {
+        if(numSlots <= 0 || numSlots > (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE / 2)
+            throw new IllegalArgumentException("invalid number of slots: " + numSlots);
+        this.engine = engine;
+        this.file = SharedFile.open(file, numSlots);
+        this.channel = this.file.channel;
+        this.buffer = this.file.buffer;
+        this.numBuckets = this.file.numBuckets;
+        this.locks = this.file.locks;
+    }
+
+    @Override
+    public void addResourceRecord(ResourceRecord resourceRecord) {
+        long now = System.currentTimeMillis();
+        resourceRecord = ttlPolicy.apply(resourceRecord);
+        byte[] slot = new byte[SLOT_SIZE];
+        byte[] name = resourceRecord.getDnsName().getBytes(StandardCharsets.ISO_8859_1);
+        if(PAYLOAD + name.length + resourceRecord.getRawDataLength() > SLOT_SIZE) return;
+        int rawDataLength = resourceRecord.writeRawData(slot, PAYLOAD + name.length);
+        System.arraycopy(name, 0, slot, PAYLOAD, name.length);
+        ByteBuffer contents = ByteBuffer.wrap(slot);
+        int hash = RRSetKey.hashIgnoreCase(resourceRecord.getDnsName());
+        contents.putInt(HASH, hash);
+        contents.putLong(BEST_BEFORE, now + resourceRecord.getSecondsCache() * 1000L);
+        contents.putInt(TTL, (int)resourceRecord.getSecondsCache());
+        contents.putShort(TYPE, resourceRecord.getDnsType().getValue());
+        contents.putShort(CLASS, resourceRecord.getDnsClass().getValue());
+        contents.putShort(NAME_LENGTH, (short)name.length);
+        contents.putShort(RAW_DATA_LENGTH, (short)rawDataLength);
+        contents.putInt(CHECKSUM, checksum(slot, PAYLOAD + name.length + rawDataLength));
+
+        int bucket = hash(hash) & (numBuckets - 1);
+        ReentrantLock lock = locks[bucket % LOCK_STRIPES];
+        lock.lock();
+        FileLock fileLock = null;
+        try {
+            fileLock = channel.lock(offsetOf(bucket, 0), BUCKET_SLOTS * SLOT_SIZE, false);
+            int offset = offsetOf(bucket, chooseSlot(bucket, contents, now));
+            recordReplacement(offset, contents, now);
+            write(offset, slot, PAYLOAD + name.length + rawDataLength);
+        } catch(IOException | OverlappingFileLockException e) {
+            // the record is not cached, which only costs a lookup upstream, but it is accounted for
+            droppedWrites.incrementAndGet();
+            lastWriteError = e;
+        } finally {
+            release(fileLock);
+            lock.unlock();
+        }
+        negativeAnswers.remove(RRSetKey.forName(resourceRecord.getDnsName()));
+        negativeAnswers.remove(RRSetKey.of(resourceRecord));
+    }
+
+    @Override
+    public CompletionStage<List<ResourceRecord>> getResourceRecords(Question question) {
+        long start = System.nanoTime();
+        List<ResourceRecord> records = findResourceRecords(question, 0);
+        stats.recordLookUp(!records.isEmpty(), start);
+        return CompletableFuture.completedFuture(records);
+    }
+
+    @Override
+    public List<ResourceRecord> getStaleResourceRecords(Question question) {
+        long stale = staleMillis;
+        if(stale == 0) return new ArrayList<>();
+        List<ResourceRecord> records = findResourceRecords(question, stale);
+        if(!records.isEmpty()) stats.recordStaleHit();
+        return records;
+    }
+
+    @Override
+    public void addNegativeAnswer(Question question, ResponseCode responseCode, ResourceRecord soa) {
+        NegativeAnswer answer = NegativeAnswer.create(question, responseCode, soa, System.currentTimeMillis());
+        if(answer == null) return;
+        if(negativeAnswers.size() >= MAX_NEGATIVE_ANSWERS) removeExpiredNegativeAnswers();
+        if(negativeAnswers.size() < MAX_NEGATIVE_ANSWERS) negativeAnswers.put(answer.getKey(), answer);
+    }
+
+    @Override
+    public ResponseCode getNegativeAnswer(Question question) {
+        long now = System.currentTimeMillis();
+        RRSetKey key = RRSetKey.of(question);
+        NegativeAnswer answer = negativeAnswers.get(key.nameKey());
+        if(answer == null || answer.isExpired(now)) answer = negativeAnswers.get(key);
+        if(answer == null || answer.isExpired(now)) return null;
+        stats.recordNegativeHit();
+        return answer.getResponseCode();
+    }
+
+    /* removes the records for all the processes using the file */
+    @Override
+    public void clear() {
+        byte[] empty = new byte[PAYLOAD];
+        byte[] slot = new byte[SLOT_SIZE];
+        ByteBuffer contents = ByteBuffer.wrap(slot);
+        for(int bucket = 0; bucket < numBuckets; bucket++) {
+            ReentrantLock lock = locks[bucket % LOCK_STRIPES];
+            lock.lock();
+            FileLock fileLock = null;
+            try {
+                fileLock = channel.lock(offsetOf(bucket, 0), BUCKET_SLOTS * SLOT_SIZE, false);
+                int removed = 0;
+                for(int index = 0; index < BUCKET_SLOTS; index++) {
+                    int offset = offsetOf(bucket, index);
+                    if(read(offset, slot) && contents.getLong(BEST_BEFORE) != 0) removed++;
+                    write(offset, empty, PAYLOAD);
+                }
+                stats.recordRemovals(CacheStats.RemovalCause.EXPLICIT, removed);
+                stats.recordSizeChange(-removed, -removed * (long)SLOT_SIZE);
+            } catch(IOException | OverlappingFileLockException e) {
+                throw new IllegalStateException("Unable to lock the cache file", e);
+            } finally {
+                release(fileLock);
+                lock.unlock();
+            }
+        }
+        negativeAnswers.clear();
+    }
+
+    /**
+     * Keeps expired records available to {@link #getStaleResourceRecords(Question)} for a while (see RFC-8767), as
+     * long as their slots are not needed for new records. Disabled by default; it only affects this process.
+     * @param maxStaleSeconds how long expired records can be served, or {@literal 0} to disable it.
+     */
+    public void setServeStale(long maxStaleSeconds) {
+        if(maxStaleSeconds < 0) throw new IllegalArgumentException("maxStaleSeconds can't be negative");
+        this.staleMillis = maxStaleSeconds * 1000;
+    }
+
+    /**
+     * Sets the limits applied to the TTL of the records added from now on through this cache; other processes using
+     * the file apply their own. This cache doesn't keep pinned records apart, so they are affected too.
+     * @param ttlPolicy the policy, {@link TtlPolicy#NONE} (the default) to keep TTLs as they are.
+     */
+    public void setTtlPolicy(TtlPolicy ttlPolicy) {
+        this.ttlPolicy = ttlPolicy;
+    }
+
+    /**
+     * Statistics of this cache. Like negative answers they are not shared: they count what this cache did, and the
+     * sizes are those of the slots it filled less those it emptied or replaced, so they are the sizes of the file
+     * only if no other cache writes to it. Expired records stay in their slot until it is reused, which is when they
+     * are counted as expired; the byte count is the space used in the file.
+     * @return The current statistics.
+     */
+    @Override
+    public CacheStats getStats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Number of records that couldn't be written to the file because it couldn't be locked or written, for example
+     * if it was locked through a channel not shared with this cache. Records too big for a slot aren't counted.
+     * @return The number of records dropped since this cache was opened.
+     */
+    public long getDroppedWriteCount() {
+        return droppedWrites.get();
+    }
+
+    /** @return The error that made the last record be dropped, or {@literal null} if none was. */
+    public Exception getLastWriteError() {
+        return lastWriteError;
+    }
+
+    /* the file is closed when the last cache using it in this process is closed */
+    @Override
+    public void close() throws IOException {
+        if(closed.compareAndSet(false, true)) file.close();
+    }
+
+    /* a lock that can't be released was lost with the channel, closing it releases all of them */
+    private static void release(FileLock fileLock) {
+        if(fileLock == null) return;
+        try {
+            fileLock.release();
+        } catch(IOException e) {
+            // nothing else to do
+        }
+    }
+
+    private List<ResourceRecord> findResourceRecords(Question question, long stale) {
+        long now = System.currentTimeMillis();
+        List<ResourceRecord> list = new ArrayList<>();
+        byte[] name = question.getDnsName().getBytes(StandardCharsets.ISO_8859_1);
+        int hash = RRSetKey.hashIgnoreCase(question.getDnsName());
+        short type = question.getDnsType().getValue();
+        short dnsClass = question.getDnsClass().getValue();
+        int bucket = hash(hash) & (numBuckets - 1);
+        byte[] slot = new byte[SLOT_SIZE];
+        ByteBuffer contents = ByteBuffer.wrap(slot);
+        for(int index = 0; index < BUCKET_SLOTS; index++) {
+            if(!read(offsetOf(bucket, index), slot)) continue;
+            long bestBefore = contents.getLong(BEST_BEFORE);
+            if(bestBefore == 0 || bestBefore + stale - now <= 0 || contents.getInt(HASH) != hash) continue;
+            if(type != DNSType.ALL_VALUE && contents.getShort(TYPE) != type) continue;
+            if(dnsClass != DNSClass.ANY_VALUE && contents.getShort(CLASS) != dnsClass) continue;
+            if(!nameEquals(contents, slot, name)) continue;
+            int nameLength = contents.getShort(NAME_LENGTH);
+            ResourceRecord record = engine.createResourceRecordFromRawData(
+                    new String(slot, PAYLOAD, nameLength, StandardCharsets.ISO_8859_1), contents.getShort(TYPE),
+                    contents.getShort(CLASS), bestBefore - now > 0?
+                            CachedResourceRecord.remainingSeconds(bestBefore, now): STALE_SECONDS_CACHE,
+                    slot, PAYLOAD + nameLength, contents.getShort(RAW_DATA_LENGTH) & 0xFFFF);
+            list.add(record);
+        }
+        return list;
+    }
+
+    /* Copies a slot, returns false if a consistent copy couldn't be made; that happens if the slot is being
+     * written all the time or if a writer died in the middle of writing it */
+    private boolean read(int offset, byte[] slot) {
+        ByteBuffer view = buffer.duplicate();
+        for(int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            int sequence = buffer.getInt(offset + SEQUENCE);
+            if((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            view.position(offset);
+            view.get(slot);
+            if(buffer.getInt(offset + SEQUENCE) != sequence) continue;
+            ByteBuffer contents = ByteBuffer.wrap(slot);
+            if(contents.getLong(BEST_BEFORE) == 0) return true;
+            int length = PAYLOAD + contents.getShort(NAME_LENGTH) + (contents.getShort(RAW_DATA_LENGTH) & 0xFFFF);
+            if(length <= SLOT_SIZE && checksum(slot, length) == contents.getInt(CHECKSUM)) return true;
+        }
+        return false;
+    }
+
+    /* always called holding the locks of the bucket, so an odd sequence means a writer died while writing */
+    private void write(int offset, byte[] slot, int length) {
+        int sequence = buffer.getInt(offset + SEQUENCE) | 1;
+        buffer.putInt(offset + SEQUENCE, sequence);
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HASH);
+        view.put(slot, HASH, length - HASH);
+        buffer.putInt(offset + SEQUENCE, sequence + 1);
+    }
+
+    /* counts a record written to a slot and the one it replaces, if any; called holding the locks of the bucket. Each
+     * record is accounted for with the size of a slot, the space it takes in the file */
+    private void recordReplacement(int offset, ByteBuffer record, long now) {
+        byte[] slot = new byte[SLOT_SIZE];
+        ByteBuffer previous = ByteBuffer.wrap(slot);
+        stats.recordInserts(1);
+        long bestBefore = read(offset, slot)? previous.getLong(BEST_BEFORE): 0;
+        if(bestBefore == 0) {
+            stats.recordSizeChange(1, SLOT_SIZE);
+        } else if(!sameRecord(previous, record)) {
+            stats.recordRemovals(bestBefore + staleMillis - now <= 0?
+                    CacheStats.RemovalCause.EXPIRED: CacheStats.RemovalCause.SIZE, 1);
+        }
+    }
+
+    /* the slot with the same record, or an empty or expired slot, or else the slot closest to expire */
+    private int chooseSlot(int bucket, ByteBuffer record, long now) {
+        byte[] slot = new byte[SLOT_SIZE];
+        ByteBuffer contents = ByteBuffer.wrap(slot);
+        int chosen = -1;
+        long earliest = Long.MAX_VALUE;
+        long stale = staleMillis;
+        for(int index = 0; index < BUCKET_SLOTS; index++) {
+            if(!read(offsetOf(bucket, index), slot)) return index;
+            long bestBefore = contents.getLong(BEST_BEFORE);
+            if(bestBefore != 0 && sameRecord(contents, record)) return index;
+            if(bestBefore == 0 || bestBefore + stale - now <= 0) {
+                bestBefore = Long.MIN_VALUE;
+            }
+            if(bestBefore < earliest) {
+                earliest = bestBefore;
+                chosen = index;
+            }
+        }
+        return chosen;
+    }
+
+    private static boolean sameRecord(ByteBuffer slot, ByteBuffer record) {
+        if(slot.getInt(HASH) != record.getInt(HASH) || slot.getShort(TYPE) != record.getShort(TYPE)
+                || slot.getShort(CLASS) != record.getShort(CLASS)
+                || slot.getShort(NAME_LENGTH) != record.getShort(NAME_LENGTH)
+                || slot.getShort(RAW_DATA_LENGTH) != record.getShort(RAW_DATA_LENGTH)) return false;
+        int nameLength = slot.getShort(NAME_LENGTH);
+        for(int i = 0; i < nameLength; i++) {
+            if(toLowerCase(slot.get(PAYLOAD + i)) != toLowerCase(record.get(PAYLOAD + i))) return false;
+        }
+        int end = PAYLOAD + nameLength + (slot.getShort(RAW_DATA_LENGTH) & 0xFFFF);
+        for(int i = PAYLOAD + nameLength; i < end; i++) if(slot.get(i) != record.get(i)) return false;
+        return true;
+    }
+
+    private static boolean nameEquals(ByteBuffer contents, byte[] slot, byte[] name) {
+        if(contents.getShort(NAME_LENGTH) != name.length) return false;
+        for(int i = 0; i < name.length; i++) if(toLowerCase(slot[PAYLOAD + i]) != toLowerCase(name[i])) return false;
+        return true;
+    }
+
+    /* covers everything in the slot after the sequence number, except the checksum itself */
+    private static int checksum(byte[] slot, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(slot, HASH, CHECKSUM - HASH);
+        crc.update(slot, PAYLOAD, length - PAYLOAD);
+        return (int)crc.getValue();
+    }
+
+    private static byte toLowerCase(byte ch) {
+        return ch >= 'A' && ch <= 'Z'? (byte)(ch + ('a' - 'A')): ch;
+    }
+
+    private static int hash(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int offsetOf(int bucket, int slot) {
+        return HEADER_SIZE + (bucket * BUCKET_SLOTS + slot) * SLOT_SIZE;
+    }
+
+    private void removeExpiredNegativeAnswers() {
+        long now = System.currentTimeMillis();
+        Iterator<NegativeAnswer> iterator = negativeAnswers.values().iterator();
+        while(iterator.hasNext()) if(iterator.next().isExpired(now)) iterator.remove();
+    }
+
+    /* the channel, mapping and locks of a file, shared by the caches using it in this process so their writers wait
+     * for each other instead of failing to lock the file */
+    private static final class SharedFile {
+
+        private static final Map<Path, SharedFile> OPEN_FILES = new HashMap<>();
+
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final int numBuckets;
+        private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+        private int users;
+
+        static SharedFile open(Path file, int numSlots) throws IOException {
+            Path path = file.toAbsolutePath().normalize();
+            synchronized(OPEN_FILES) {
+                SharedFile shared = OPEN_FILES.get(path);
+                if(shared == null) {
+                    shared = new SharedFile(path, numSlots);
+                    OPEN_FILES.put(path, shared);
+                }
+                shared.users++;
+                return shared;
+            }
+        }
+
+        private SharedFile(Path path, int numSlots) throws IOException {
+            this.path = path;
+            for(int stripe = 0; stripe < LOCK_STRIPES; stripe++) locks[stripe] = new ReentrantLock();
+            this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE);
+            try {
+                int buckets = Integer.highestOneBit(Math.max(1, (numSlots - 1) / BUCKET_SLOTS) * 2);
+                FileLock fileLock = null;
+                try {
+                    fileLock = channel.lock(0, HEADER_SIZE, false);
+                    buckets = initialize(buckets);
+                } catch(OverlappingFileLockException e) {
+                    throw new IOException("The cache file is locked through another channel of this process", e);
+                } finally {
+                    release(fileLock);
+                }
+                this.numBuckets = buckets;
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + (long)numBuckets * BUCKET_SLOTS * SLOT_SIZE);
+            } catch(IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        void close() throws IOException {
+            synchronized(OPEN_FILES) {
+                if(--users > 0) return;
+                OPEN_FILES.remove(path);
+            }
+            channel.close();
+        }
+
+        /* writes the header if the file is new, otherwise checks it and returns the number of buckets in the file */
+        private int initialize(int buckets) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if(channel.size() == 0) {
+                header.putInt(MAGIC).putInt(VERSION).putInt(SLOT_SIZE).putInt(BUCKET_SLOTS).putInt(buckets).flip();
+                channel.write(header, 0);
+                channel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long)buckets * BUCKET_SLOTS * SLOT_SIZE - 1);
+                return buckets;
+            }
+            while(header.hasRemaining() && channel.read(header, header.position()) > 0) { }
+            header.flip();
+            if(header.remaining() < 20 || header.getInt() != MAGIC) throw new IOException("Not a DNS cache file");
+            if(header.getInt() != VERSION || header.getInt() != SLOT_SIZE || header.getInt() != BUCKET_SLOTS)
+                throw new IOException("Unsupported DNS cache file version");
+            int fileBuckets = header.getInt();
+            if(Integer.bitCount(fileBuckets) != 1
+                    || channel.size() < HEADER_SIZE + (long)fileBuckets * BUCKET_SLOTS * SLOT_SIZE)
+                throw new IOException("Corrupted DNS cache file");
+            return fileBuckets;
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.converter.SoaValueConverter;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.Question;
+import au.id.villar.dns.engine.ResourceRecord;
+import au.id.villar.dns.engine.ResponseCode;
+
+/**
+ * A cached negative answer (see RFC-2308). NXDOMAIN answers ({@link ResponseCode#NAME_ERROR}) apply to every type
+ * and class of a name, so they are keyed by name only; NODATA answers ({@link ResponseCode#NO_ERROR} without
+ * records) apply just to the type and class asked for.
+ */
+final class NegativeAnswer {
+
+    private final RRSetKey key;
+    private final ResponseCode responseCode;
+    private final long bestBefore;
+    private final TimerWheel.Node<RRSetKey> timerNode;
+
+    private NegativeAnswer(RRSetKey key, ResponseCode responseCode, long bestBefore) {
+        this.key = key;
+        this.responseCode = responseCode;
+        this.bestBefore = bestBefore;
+        this.timerNode = new TimerWheel.Node<>(key);
+    }
+
+    /* returns null if the answer should not be cached */
+    static NegativeAnswer create(Question question, ResponseCode responseCode, ResourceRecord soa, long now) {
+        if(responseCode != ResponseCode.NAME_ERROR && responseCode != ResponseCode.NO_ERROR) return null;
+        if(soa == null || !soa.getDnsType().equals(DNSType.SOA)) return null;
+        long ttl = Math.min(soa.getSecondsCache(), soa.getData(SoaValueConverter.SoaData.class).getMinimum());
+        if(ttl <= 0) return null;
+        RRSetKey key = responseCode == ResponseCode.NAME_ERROR?
+                RRSetKey.forName(question.getDnsName()): RRSetKey.of(question);
+        return new NegativeAnswer(key, responseCode, now + ttl * 1000L);
+    }
+
+    RRSetKey getKey() {
+        return key;
+    }
+
+    ResponseCode getResponseCode() {
+        return responseCode;
+    }
+
+    long getBestBefore() {
+        return bestBefore;
+    }
+
+    boolean isExpired(long now) {
+        return bestBefore - now <= 0;
+    }
+
+    TimerWheel.Node<RRSetKey> getTimerNode() {
+        return timerNode;
+    }
+
+}
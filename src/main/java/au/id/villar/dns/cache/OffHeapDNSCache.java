@@ -0,0 +1,466 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link DNSCache} that keeps its records outside the Java heap, so it can hold tens of millions of them without
+ * making the garbage collector work harder. Records are stored in wire format (owner name, type, class, TTL,
+ * expiration and uncompressed RDATA) in direct {@link ByteBuffer} slabs, and {@link ResourceRecord} objects are only
+ * created for the records returned by a lookup.
+ * <p>
+ * Records are appended to the current slab; when the last slab is full the oldest one is reused, evicting all its
+ * records at once. Names are found through an open addressing index, also off-heap, pointing to the newest record
+ * of each name; every record points to the previous one with the same name, so all the records of a name are
+ * found following that chain. Pointers include the generation of the slab they point to, so records in a reused
+ * slab are recognized as gone without having to update the index.
+ * <p>
+ * Negative answers are few compared with records and are kept on the heap. The cache is thread safe: lookups run
+ * in parallel, insertions are serialized.
+ */
+public class OffHeapDNSCache implements DNSCache {
+
+    private static final int MAX_SLAB_SIZE = 16 * 1024 * 1024;
+    private static final int MIN_SLAB_SIZE = 64 * 1024;
+    private static final int MAX_INDEX_SLOTS = 1 << 26;
+    private static final int MAX_NEGATIVE_ANSWERS = 100_000;
+
+    /* estimated size of a record, used to size the index */
+    private static final int AVERAGE_RECORD_SIZE = 64;
+
+    /* record layout: expiration, previous record with the same name, TTL, type, class, RDATA length, name, RDATA */
+    private static final int BEST_BEFORE = 0;
+    private static final int PREVIOUS = 8;
+    private static final int TTL = 16;
+    private static final int TYPE = 20;
+    private static final int CLASS = 22;
+    private static final int RAW_DATA_LENGTH = 24;
+    private static final int NAME_LENGTH = 26;
+    private static final int NAME = 27;
+
+    /* index slot layout: pointer to the newest record of a name (0 if the slot was never used), hash of the name */
+    private static final int SLOT_SIZE = 16;
+    private static final int SLOT_POINTER = 0;
+    private static final int SLOT_HASH = 8;
+
+    private static final long STALE_SECONDS_CACHE = 30;
+
+    private final DNSEngine engine;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    private final int[] slabGenerations;
+    private final int[] slabRecords;
+    private final int[] slabBytes;
+    private final int indexSlots;
+    private ByteBuffer index;
+    private ByteBuffer spareIndex;
+    private int usedSlots;
+    private int generation;
+    private int currentSlab = -1;
+    private int currentOffset;
+    private long records;
+    private long evictedRecords;
+    private final byte[] rawData = new byte[0xFFFF];
+    private final Map<RRSetKey, NegativeAnswer> negativeAnswers = new HashMap<>();
+    private final StatsCounter stats = new StatsCounter();
+    private volatile long staleMillis;
+    private volatile TtlPolicy ttlPolicy = TtlPolicy.NONE;
+
+    /**
+     * Creates a cache using at most the given number of bytes of off-heap memory for its records. The index takes
+     * additional off-heap memory, between half that amount and the same amount again: it has a slot for every 32 to
+     * 64 bytes of records, and it is kept twice so it can be rebuilt.
+     * @param engine the engine used to create the records returned by lookups.
+     * @param maximumBytes the off-heap memory used to store records.
+     */
+    public OffHeapDNSCache(DNSEngine engine, long maximumBytes) {
+        if(maximumBytes < 2 * MIN_SLAB_SIZE) throw new IllegalArgumentException("maximumBytes is too small");
+        this.engine = engine;
+        this.slabSize = (int)Math.max(MIN_SLAB_SIZE, Math.min(MAX_SLAB_SIZE, maximumBytes / 8));
+        int numSlabs = (int)Math.max(2, maximumBytes / slabSize);
+        this.slabs = new ByteBuffer[numSlabs];
+        this.slabGenerations = new int[numSlabs];
+        this.slabRecords = new int[numSlabs];
+        this.slabBytes = new int[numSlabs];
+        long slots = Long.highestOneBit(Math.max(1024, maximumBytes / AVERAGE_RECORD_SIZE * 2));
+        this.indexSlots = (int)Math.min(MAX_INDEX_SLOTS, slots);
+        this.index = ByteBuffer.allocateDirect(indexSlots * SLOT_SIZE);
+        this.spareIndex = ByteBuffer.allocateDirect(indexSlots * SLOT_SIZE);
+    }
+
+    @Override
+    public void addResourceRecord(ResourceRecord resourceRecord) {
+        long now = System.currentTimeMillis();
+        resourceRecord = ttlPolicy.apply(resourceRecord);
+        byte[] name = resourceRecord.getDnsName().getBytes(StandardCharsets.ISO_8859_1);
+        int hash = RRSetKey.hashIgnoreCase(resourceRecord.getDnsName());
+        if(name.length > 255) return;
+        lock.writeLock().lock();
+        try {
+            int rawDataLength = resourceRecord.writeRawData(rawData, 0);
+            int size = NAME + name.length + rawDataLength;
+            if(size > slabSize) return;
+            if(currentSlab == -1 || currentOffset + size > slabSize) openNextSlab();
+
+            int slot = findSlot(hash, name);
+            if(slot == -1) {
+                while(usedSlots >= indexSlots / 4 * 3) rebuildIndex();
+                slot = findFreeSlot(hash);
+            }
+            long previous = slot != -1? index.getLong(slot * SLOT_SIZE + SLOT_POINTER): 0;
+            if(previous != 0 && !isValid(previous)) previous = 0;
+
+            ByteBuffer slab = slabs[currentSlab];
+            int offset = currentOffset;
+            slab.putLong(offset + BEST_BEFORE, now + resourceRecord.getSecondsCache() * 1000L);
+            slab.putLong(offset + PREVIOUS, previous);
+            slab.putInt(offset + TTL, (int)resourceRecord.getSecondsCache());
+            slab.putShort(offset + TYPE, resourceRecord.getDnsType().getValue());
+            slab.putShort(offset + CLASS, resourceRecord.getDnsClass().getValue());
+            slab.putShort(offset + RAW_DATA_LENGTH, (short)rawDataLength);
+            slab.put(offset + NAME_LENGTH, (byte)name.length);
+            ByteBuffer target = slab.duplicate();
+            target.position(offset + NAME);
+            target.put(name).put(rawData, 0, rawDataLength);
+            currentOffset += size;
+            slabRecords[currentSlab]++;
+            slabBytes[currentSlab] += size;
+            records++;
+            stats.recordInserts(1);
+            stats.recordSizeChange(1, size);
+
+            index.putLong(slot * SLOT_SIZE + SLOT_POINTER, pointer(generation, offset));
+            index.putInt(slot * SLOT_SIZE + SLOT_HASH, hash);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        removeNegativeAnswer(RRSetKey.forName(resourceRecord.getDnsName()));
+        removeNegativeAnswer(RRSetKey.of(resourceRecord));
+    }
+
+    @Override
+    public CompletionStage<List<ResourceRecord>> getResourceRecords(Question question) {
+        long start = System.nanoTime();
+        List<ResourceRecord> records = findResourceRecords(question, 0);
+        stats.recordLookUp(!records.isEmpty(), start);
+        return CompletableFuture.completedFuture(records);
+    }
+
+    @Override
+    public List<ResourceRecord> getStaleResourceRecords(Question question) {
+        long stale = staleMillis;
+        if(stale == 0) return new ArrayList<>();
+        List<ResourceRecord> records = findResourceRecords(question, stale);
+        if(!records.isEmpty()) stats.recordStaleHit();
+        return records;
+    }
+
+    @Override
+    public void addNegativeAnswer(Question question, ResponseCode responseCode, ResourceRecord soa) {
+        NegativeAnswer answer = NegativeAnswer.create(question, responseCode, soa, System.currentTimeMillis());
+        if(answer == null) return;
+        synchronized(negativeAnswers) {
+            if(negativeAnswers.size() >= MAX_NEGATIVE_ANSWERS) removeExpiredNegativeAnswers();
+            if(negativeAnswers.size() < MAX_NEGATIVE_ANSWERS) negativeAnswers.put(answer.getKey(), answer);
+        }
+    }
+
+    @Override
+    public ResponseCode getNegativeAnswer(Question question) {
+        long now = System.currentTimeMillis();
+        RRSetKey key = RRSetKey.of(question);
+        NegativeAnswer answer;
+        synchronized(negativeAnswers) {
+            answer = negativeAnswers.get(key.nameKey());
+            if(answer == null || answer.isExpired(now)) answer = negativeAnswers.get(key);
+            if(answer == null || answer.isExpired(now)) return null;
+        }
+        stats.recordNegativeHit();
+        return answer.getResponseCode();
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            clearIndex(index);
+            usedSlots = 0;
+            for(int slab = 0; slab < slabs.length; slab++) {
+                stats.recordRemovals(CacheStats.RemovalCause.EXPLICIT, slabRecords[slab]);
+                stats.recordSizeChange(-slabRecords[slab], -slabBytes[slab]);
+                slabGenerations[slab] = 0;
+                slabRecords[slab] = 0;
+                slabBytes[slab] = 0;
+            }
+            currentOffset = slabSize;
+            records = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        synchronized(negativeAnswers) {
+            negativeAnswers.clear();
+        }
+    }
+
+    /**
+     * Keeps expired records available to {@link #getStaleResourceRecords(Question)} for a while (see RFC-8767).
+     * Records still leave the cache when their slab is reused. Disabled by default.
+     * @param maxStaleSeconds how long expired records can be served, or {@literal 0} to disable it.
+     */
+    public void setServeStale(long maxStaleSeconds) {
+        if(maxStaleSeconds < 0) throw new IllegalArgumentException("maxStaleSeconds can't be negative");
+        this.staleMillis = maxStaleSeconds * 1000;
+    }
+
+    /**
+     * Sets the limits applied to the TTL of the records added from now on. This cache doesn't keep pinned records
+     * apart, so they are affected too.
+     * @param ttlPolicy the policy, {@link TtlPolicy#NONE} (the default) to keep TTLs as they are.
+     */
+    public void setTtlPolicy(TtlPolicy ttlPolicy) {
+        this.ttlPolicy = ttlPolicy;
+    }
+
+    /**
+     * Number of records in this cache, including those expired whose space was not reused yet.
+     * @return The number of records stored.
+     */
+    public long getRecordCount() {
+        lock.readLock().lock();
+        try {
+            return records;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of records removed from this cache to make room for new ones.
+     * @return The number of records evicted since this cache was created.
+     */
+    public long getEvictionCount() {
+        lock.readLock().lock();
+        try {
+            return evictedRecords;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Statistics of this cache. Expired records stay in their slab until it is reused, so they are counted as
+     * records, and removed as evicted, like those still alive; the byte count is the space used in the slabs.
+     * @return The current statistics.
+     */
+    @Override
+    public CacheStats getStats() {
+        return stats.snapshot();
+    }
+
+    private List<ResourceRecord> findResourceRecords(Question question, long stale) {
+        long now = System.currentTimeMillis();
+        List<ResourceRecord> list = new ArrayList<>();
+        byte[] name = question.getDnsName().getBytes(StandardCharsets.ISO_8859_1);
+        int hash = RRSetKey.hashIgnoreCase(question.getDnsName());
+        short type = question.getDnsType().getValue();
+        short dnsClass = question.getDnsClass().getValue();
+        boolean anyType = type == DNSType.ALL_VALUE;
+        boolean anyClass = dnsClass == DNSClass.ANY_VALUE;
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(hash, name);
+            if(slot == -1) return list;
+            long pointer = index.getLong(slot * SLOT_SIZE + SLOT_POINTER);
+            while(pointer != 0 && isValid(pointer)) {
+                ByteBuffer slab = slabs[slabOf(pointer)];
+                int offset = offsetOf(pointer);
+                pointer = slab.getLong(offset + PREVIOUS);
+                long bestBefore = slab.getLong(offset + BEST_BEFORE);
+                if(bestBefore + stale - now <= 0) continue;
+                if(!anyType && slab.getShort(offset + TYPE) != type) continue;
+                if(!anyClass && slab.getShort(offset + CLASS) != dnsClass) continue;
+                long ttl = bestBefore - now > 0? CachedResourceRecord.remainingSeconds(bestBefore, now):
+                        STALE_SECONDS_CACHE;
+                ResourceRecord record = materialize(slab, offset, ttl);
+                if(isRepeated(list, record)) continue;
+                list.add(record);
+            }
+            return list;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* the same record can be stored several times, the newest copy (the first found) is the one used */
+    private static boolean isRepeated(List<ResourceRecord> list, ResourceRecord record) {
+        for(ResourceRecord found: list) {
+            if(found.getDnsType().equals(record.getDnsType()) && found.getDnsClass().equals(record.getDnsClass())
+                    && found.dataIsEqual(record)) return true;
+        }
+        return false;
+    }
+
+    private ResourceRecord materialize(ByteBuffer slab, int offset, long ttl) {
+        int nameLength = slab.get(offset + NAME_LENGTH) & 0xFF;
+        int rawDataLength = slab.getShort(offset + RAW_DATA_LENGTH) & 0xFFFF;
+        byte[] bytes = new byte[nameLength + rawDataLength];
+        ByteBuffer source = slab.duplicate();
+        source.position(offset + NAME);
+        source.get(bytes);
+        String name = new String(bytes, 0, nameLength, StandardCharsets.ISO_8859_1);
+        return engine.createResourceRecordFromRawData(name, slab.getShort(offset + TYPE),
+                slab.getShort(offset + CLASS), ttl, bytes, nameLength,
+                rawDataLength);
+    }
+
+    /* the slot pointing to the records of the given name, or -1 if there is none */
+    private int findSlot(int hash, byte[] name) {
+        int mask = indexSlots - 1;
+        for(int probe = 0, slot = spread(hash) & mask; probe < indexSlots; probe++, slot = (slot + 1) & mask) {
+            long pointer = index.getLong(slot * SLOT_SIZE + SLOT_POINTER);
+            if(pointer == 0) return -1;
+            if(index.getInt(slot * SLOT_SIZE + SLOT_HASH) == hash && isValid(pointer) && nameEquals(pointer, name))
+                return slot;
+        }
+        return -1;
+    }
+
+    /* a slot never used or pointing to records already evicted */
+    private int findFreeSlot(int hash) {
+        int mask = indexSlots - 1;
+        for(int probe = 0, slot = spread(hash) & mask; probe < indexSlots; probe++, slot = (slot + 1) & mask) {
+            long pointer = index.getLong(slot * SLOT_SIZE + SLOT_POINTER);
+            if(pointer == 0) {
+                usedSlots++;
+                return slot;
+            }
+            if(!isValid(pointer)) return slot;
+        }
+        throw new IllegalStateException("index is full");
+    }
+
+    /* Slots can't be emptied without breaking the probe sequences going through them, so from time to time the
+     * index is rebuilt without the slots pointing to evicted records. If most names are still alive then the oldest
+     * slab is evicted to make room */
+    private void rebuildIndex() {
+        ByteBuffer old = index;
+        index = spareIndex;
+        spareIndex = old;
+        clearIndex(index);
+        usedSlots = 0;
+        for(int slot = 0; slot < indexSlots; slot++) {
+            long pointer = old.getLong(slot * SLOT_SIZE + SLOT_POINTER);
+            if(pointer == 0 || !isValid(pointer)) continue;
+            int free = findFreeSlot(old.getInt(slot * SLOT_SIZE + SLOT_HASH));
+            index.putLong(free * SLOT_SIZE + SLOT_POINTER, pointer);
+            index.putInt(free * SLOT_SIZE + SLOT_HASH, old.getInt(slot * SLOT_SIZE + SLOT_HASH));
+        }
+        if(usedSlots >= indexSlots / 4 * 3) evictSlab(findOldestSlab());
+    }
+
+    /* the index is sized so it can't be filled by the records of only one slab, so there is always an older one */
+    private int findOldestSlab() {
+        int slab = (currentSlab + 1) % slabs.length;
+        while(slabGenerations[slab] == 0) slab = (slab + 1) % slabs.length;
+        return slab;
+    }
+
+    private void openNextSlab() {
+        currentSlab = (currentSlab + 1) % slabs.length;
+        evictSlab(currentSlab);
+        if(slabs[currentSlab] == null) slabs[currentSlab] = ByteBuffer.allocateDirect(slabSize);
+        slabGenerations[currentSlab] = ++generation;
+        currentOffset = 0;
+    }
+
+    private void evictSlab(int slab) {
+        evictedRecords += slabRecords[slab];
+        records -= slabRecords[slab];
+        stats.recordRemovals(CacheStats.RemovalCause.SIZE, slabRecords[slab]);
+        stats.recordSizeChange(-slabRecords[slab], -slabBytes[slab]);
+        slabRecords[slab] = 0;
+        slabBytes[slab] = 0;
+        slabGenerations[slab] = 0;
+    }
+
+    /* A pointer holds the generation of the slab and the offset of the record in it. Slabs are used in order, so
+     * the slab of a generation is always (generation - 1) % slabs.length */
+    private long pointer(int generation, int offset) {
+        return ((long)generation << 32) | offset;
+    }
+
+    private int slabOf(long pointer) {
+        return (int)(((pointer >>> 32) - 1) % slabs.length);
+    }
+
+    private static int offsetOf(long pointer) {
+        return (int)pointer;
+    }
+
+    private boolean isValid(long pointer) {
+        return slabGenerations[slabOf(pointer)] == (int)(pointer >>> 32);
+    }
+
+    private boolean nameEquals(long pointer, byte[] name) {
+        ByteBuffer slab = slabs[slabOf(pointer)];
+        int offset = offsetOf(pointer);
+        if((slab.get(offset + NAME_LENGTH) & 0xFF) != name.length) return false;
+        for(int i = 0; i < name.length; i++) {
+            if(toLowerCase(slab.get(offset + NAME + i)) != toLowerCase(name[i])) return false;
+        }
+        return true;
+    }
+
+    private static byte toLowerCase(byte ch) {
+        return ch >= 'A' && ch <= 'Z'? (byte)(ch + ('a' - 'A')): ch;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static void clearIndex(ByteBuffer index) {
+        for(int position = 0; position < index.capacity(); position += 8) index.putLong(position, 0);
+    }
+
+    private void removeNegativeAnswer(RRSetKey key) {
+        synchronized(negativeAnswers) {
+            if(!negativeAnswers.isEmpty()) negativeAnswers.remove(key);
+        }
+    }
+
+    private void removeExpiredNegativeAnswers() {
+        long now = System.currentTimeMillis();
+        Iterator<NegativeAnswer> iterator = negativeAnswers.values().iterator();
+        while(iterator.hasNext()) if(iterator.next().isExpired(now)) iterator.remove();
+    }
+
+}
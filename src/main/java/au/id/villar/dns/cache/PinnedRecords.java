@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.ResourceRecord;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records exempt from eviction and expiration, like root hints, grouped by owner name. Each group is an immutable
+ * array replaced on every change, so records can be read without locking. This class is thread safe.
+ */
+final class PinnedRecords {
+
+    private final ConcurrentHashMap<RRSetKey, ResourceRecord[]> recordsByName = new ConcurrentHashMap<>();
+
+    /* a record with the same type, class and data replaces the old one */
+    void add(ResourceRecord record) {
+        recordsByName.merge(RRSetKey.forName(record.getDnsName()), new ResourceRecord[] {record},
+                (current, added) -> {
+                    for(int index = 0; index < current.length; index++) {
+                        if(isSameRecord(current[index], record)) {
+                            ResourceRecord[] updated = current.clone();
+                            updated[index] = record;
+                            return updated;
+                        }
+                    }
+                    ResourceRecord[] updated = new ResourceRecord[current.length + 1];
+                    System.arraycopy(current, 0, updated, 0, current.length);
+                    updated[current.length] = record;
+                    return updated;
+                });
+    }
+
+    /* adds the records covered by the key that are not in the list already */
+    void addTo(List<ResourceRecord> list, RRSetKey key) {
+        if(recordsByName.isEmpty()) return;
+        ResourceRecord[] records = recordsByName.get(key.nameKey());
+        if(records == null) return;
+        int cachedSize = list.size();
+        for(ResourceRecord record: records) {
+            if(!key.covers(RRSetKey.of(record))) continue;
+            boolean found = false;
+            for(int index = 0; index < cachedSize && !found; index++) found = isSameRecord(list.get(index), record);
+            if(!found) list.add(record);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for(ResourceRecord[] records: recordsByName.values()) size += records.length;
+        return size;
+    }
+
+    void clear() {
+        recordsByName.clear();
+    }
+
+    private static boolean isSameRecord(ResourceRecord record1, ResourceRecord record2) {
+        return record1.getDnsType().equals(record2.getDnsType()) && record1.getDnsClass().equals(record2.getDnsClass())
+                && record1.dataIsEqual(record2);
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.ResourceRecord;
+
+import java.util.List;
+
+/**
+ * Immutable group of cached records sharing the same {@link RRSetKey}. Adding or removing records creates a new
+ * instance, so an RRSet can be read by several threads without synchronization. All the versions of an RRSet share
+ * the same {@link TimerWheel.Node}, used to schedule the expiration of its records. The weight of each version is
+ * kept, so it costs nothing to read while holding the lock of a cache.
+ */
+final class RRSet {
+
+    /* TTL given to expired records when served stale, as recommended by RFC 8767 */
+    private static final long STALE_SECONDS_CACHE = 30;
+
+    private final RRSetKey key;
+    private final CachedResourceRecord[] records;
+    private final TimerWheel.Node<RRSetKey> timerNode;
+    private final long weight;
+
+    RRSet(RRSetKey key, CachedResourceRecord record) {
+        this(key, new CachedResourceRecord[] {record}, new TimerWheel.Node<>(key), record.getWeight());
+    }
+
+    private RRSet(RRSetKey key, CachedResourceRecord[] records, TimerWheel.Node<RRSetKey> timerNode, long weight) {
+        this.key = key;
+        this.records = records;
+        this.timerNode = timerNode;
+        this.weight = weight;
+    }
+
+    RRSetKey getKey() {
+        return key;
+    }
+
+    TimerWheel.Node<RRSetKey> getTimerNode() {
+        return timerNode;
+    }
+
+    int size() {
+        return records.length;
+    }
+
+    CachedResourceRecord get(int index) {
+        return records[index];
+    }
+
+    long getWeight() {
+        return weight;
+    }
+
+    long getEarliestExpiration() {
+        long earliest = Long.MAX_VALUE;
+        for(CachedResourceRecord record: records) earliest = Math.min(earliest, record.getBestBefore());
+        return earliest;
+    }
+
+    /* true if any of the records still alive has used up the given percentage of its TTL */
+    boolean isNearExpiration(long now, int percentage) {
+        for(CachedResourceRecord record: records) {
+            long ttl = record.getBestBefore() - record.getTimeAdded();
+            long age = now - record.getTimeAdded();
+            if(!record.isExpired(now) && age * 100 >= ttl * percentage) return true;
+        }
+        return false;
+    }
+
+    /* a record with the same data replaces the old one, otherwise the newest record goes first */
+    RRSet add(CachedResourceRecord record) {
+        ResourceRecord resourceRecord = record.getResourceRecord();
+        for(int index = 0; index < records.length; index++) {
+            if(resourceRecord.dataIsEqual(records[index].getResourceRecord())) {
+                CachedResourceRecord[] updated = records.clone();
+                updated[index] = record;
+                return new RRSet(key, updated, timerNode, weight - records[index].getWeight() + record.getWeight());
+            }
+        }
+        CachedResourceRecord[] updated = new CachedResourceRecord[records.length + 1];
+        updated[0] = record;
+        System.arraycopy(records, 0, updated, 1, records.length);
+        return new RRSet(key, updated, timerNode, weight + record.getWeight());
+    }
+
+    /* returns an RRSet without the records already expired, or null if there are none left */
+    RRSet removeExpired(long now) {
+        int alive = 0;
+        for(CachedResourceRecord record: records) if(!record.isExpired(now)) alive++;
+        if(alive == records.length) return this;
+        if(alive == 0) return null;
+        CachedResourceRecord[] updated = new CachedResourceRecord[alive];
+        int index = 0;
+        long aliveWeight = 0;
+        for(CachedResourceRecord record: records) {
+            if(record.isExpired(now)) continue;
+            updated[index++] = record;
+            aliveWeight += record.getWeight();
+        }
+        return new RRSet(key, updated, timerNode, aliveWeight);
+    }
+
+    void addTo(List<ResourceRecord> list, long now) {
+        for(CachedResourceRecord record: records) if(!record.isExpired(now)) list.add(record.getResourceRecord(now));
+    }
+
+    /* like addTo, but also adds the records expired less than staleMillis ago with a short TTL */
+    void addStaleTo(List<ResourceRecord> list, long now, long staleMillis) {
+        for(CachedResourceRecord record: records) {
+            if(!record.isExpired(now)) {
+                list.add(record.getResourceRecord(now));
+            } else if(!record.isExpired(now - staleMillis)) {
+                list.add(record.getResourceRecord().withSecondsCache(STALE_SECONDS_CACHE));
+            }
+        }
+    }
+
+}
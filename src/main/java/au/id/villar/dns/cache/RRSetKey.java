@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSItem;
+import au.id.villar.dns.engine.DNSType;
+
+/**
+ * Key identifying a set of resource records sharing name, type and class. Names are compared ignoring case and
+ * their hash is calculated only once; types and classes are compared by their numeric values.
+ */
+final class RRSetKey {
+
+    private final String name;
+    private final short dnsType;
+    private final short dnsClass;
+    private final int hash;
+
+    private RRSetKey(String name, int nameHash, short dnsType, short dnsClass) {
+        this.name = name;
+        this.dnsType = dnsType;
+        this.dnsClass = dnsClass;
+        this.hash = (nameHash * 31 + dnsType) * 31 + dnsClass;
+    }
+
+    static RRSetKey of(DNSItem item) {
+        return new RRSetKey(item.getDnsName(), hashIgnoreCase(item.getDnsName()), item.getDnsType().getValue(),
+                item.getDnsClass().getValue());
+    }
+
+    /* Key grouping all the RRsets under the same name, whatever their type or class */
+    static RRSetKey forName(String name) {
+        return new RRSetKey(name, hashIgnoreCase(name), DNSType.ALL_VALUE, DNSClass.ANY_VALUE);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    short getDnsType() {
+        return dnsType;
+    }
+
+    short getDnsClass() {
+        return dnsClass;
+    }
+
+    RRSetKey nameKey() {
+        return forName(name);
+    }
+
+    boolean isWildcard() {
+        return dnsType == DNSType.ALL_VALUE || dnsClass == DNSClass.ANY_VALUE;
+    }
+
+    /* true if this key, possibly with ALL type or ANY class, covers the given one */
+    boolean covers(RRSetKey other) {
+        return (dnsType == DNSType.ALL_VALUE || dnsType == other.dnsType)
+                && (dnsClass == DNSClass.ANY_VALUE || dnsClass == other.dnsClass);
+    }
+
+    static int hashIgnoreCase(String name) {
+        int h = 0;
+        for(int index = 0; index < name.length(); index++) {
+            char ch = name.charAt(index);
+            h = 31 * h + (ch >= 'A' && ch <= 'Z'? ch + ('a' - 'A'): ch);
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RRSetKey key = (RRSetKey) o;
+        return hash == key.hash && dnsType == key.dnsType && dnsClass == key.dnsClass
+                && name.equalsIgnoreCase(key.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "RRSetKey{name='" + name + "', type=" + dnsType + ", class=" + dnsClass + '}';
+    }
+}
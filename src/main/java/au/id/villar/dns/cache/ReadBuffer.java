@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Striped, lossy buffer of the items read from a cache, so reads don't contend on the lock of the eviction policy:
+ * threads add items to one of several small ring buffers chosen by their id, and the items are given to the policy
+ * in batches by whoever holds its lock. Items are dropped when their buffer is full or another thread is adding to
+ * it at the same time, which only makes the policy see a sample of the reads. Any thread may add items, but only
+ * one at a time may drain them.
+ */
+final class ReadBuffer<E> {
+
+    private static final int STRIPES = Math.min(64,
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1);
+    private static final int BUFFER_SIZE = 16;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+    /* counters of different stripes are kept in different cache lines */
+    private static final int COUNTER_SPACING = 8;
+
+    private final AtomicReferenceArray<E> items = new AtomicReferenceArray<>(STRIPES * BUFFER_SIZE);
+    private final AtomicLongArray writes = new AtomicLongArray(STRIPES * COUNTER_SPACING);
+    private final AtomicLongArray reads = new AtomicLongArray(STRIPES * COUNTER_SPACING);
+
+    /* returns true if the buffer of the calling thread is full and should be drained */
+    boolean offer(E item) {
+        int stripe = stripe();
+        int counter = stripe * COUNTER_SPACING;
+        long tail = writes.get(counter);
+        long size = tail - reads.get(counter);
+        if(size >= BUFFER_SIZE) return true;
+        if(!writes.compareAndSet(counter, tail, tail + 1)) return false;
+        items.lazySet(stripe * BUFFER_SIZE + (int)(tail & BUFFER_MASK), item);
+        return size + 1 >= BUFFER_SIZE;
+    }
+
+    void drainTo(Consumer<E> consumer) {
+        for(int stripe = 0; stripe < STRIPES; stripe++) {
+            int counter = stripe * COUNTER_SPACING;
+            long head = reads.get(counter);
+            long tail = writes.get(counter);
+            for(; head != tail; head++) {
+                int index = stripe * BUFFER_SIZE + (int)(head & BUFFER_MASK);
+                E item = items.get(index);
+                if(item == null) break; // not published yet, it will be taken by the next drain
+                items.lazySet(index, null);
+                consumer.accept(item);
+            }
+            reads.lazySet(counter, head);
+        }
+    }
+
+    private static int stripe() {
+        int hash = (int)Thread.currentThread().getId() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.Question;
+
+/**
+ * Receives the questions whose cached answers are being used and are about to expire, so they can be resolved again
+ * before they do.
+ */
+@FunctionalInterface
+public interface RefreshHandler {
+
+    /**
+     * Called by a cache when a hit finds an RRset close to its expiration. It is called from the thread doing the
+     * lookup, so implementations should not block; new records for the question are expected to be added to the
+     * cache when the refresh is done.
+     * @param question the question whose answer should be refreshed.
+     */
+    void refresh(Question question);
+
+}
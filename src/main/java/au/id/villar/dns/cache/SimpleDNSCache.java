@@ -15,16 +15,23 @@
  */
 package au.id.villar.dns.cache;
 
-import au.id.villar.dns.ResourceRecordHandler;
 import au.id.villar.dns.engine.*;
 
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
-// TODO do cleaning up periodically
 /////*
 ////AXFR            252 A request for a transfer of an entire zone
 ////MAILB           253 A request for mailbox-related records (MB, MG or MR)
@@ -38,8 +45,18 @@ public class SimpleDNSCache implements DNSCache {
 
 
     private int numEntries;
+    private int numRecords;
+    private final StatsCounter stats = new StatsCounter();
+    private long staleMillis;
+    private boolean keepWireData;
+    private TtlPolicy ttlPolicy = TtlPolicy.NONE;
+    private TimerWheel<RRSetKey> wheel = new TimerWheel<>(System.currentTimeMillis());
 
-    private List<CachedResourceRecord> cachedRecords = new ArrayList<>(numEntries);
+    /* RRsets in insertion order, so the oldest ones are removed first when there are too many records */
+    private Map<RRSetKey, RRSet> rrSets = new LinkedHashMap<>();
+    private Map<RRSetKey, Set<RRSetKey>> keysByName = new HashMap<>();
+    private Map<RRSetKey, NegativeAnswer> negativeAnswers = new HashMap<>();
+    private PinnedRecords pinnedRecords = new PinnedRecords();
 
     public SimpleDNSCache(int numEntries) {
         this.numEntries = numEntries;
@@ -47,84 +64,224 @@ public class SimpleDNSCache implements DNSCache {
 
     @Override
     public void addResourceRecord(ResourceRecord resourceRecord) {
-        CachedResourceRecord wrapper = new CachedResourceRecord(resourceRecord, System.currentTimeMillis());
-        int position = Collections.binarySearch(cachedRecords, wrapper, this::compareRecordsForAdding);
-        if(position < 0) {
-            cachedRecords.add(-position - 1, wrapper);
-            if(cachedRecords.size() > numEntries) cachedRecords.remove(numEntries - 1);
-        } else if (resourceRecord.dataIsEqual(cachedRecords.get(position).getResourceRecord())) {
-            cachedRecords.set(position, wrapper);
-        } else {
-            cachedRecords.add(position, wrapper);
-        }
+        long now = System.currentTimeMillis();
+        resourceRecord = ttlPolicy.apply(resourceRecord);
+        if(keepWireData) resourceRecord = resourceRecord.withWireData();
+        addCachedRecord(new CachedResourceRecord(resourceRecord, now), now);
     }
 
     @Override
-    public List<ResourceRecord> getResourceRecords(Question question, long timeout) {
-        List<ResourceRecord> list = new ArrayList<>();
-        int position = Collections.binarySearch(cachedRecords, question, this::compareRecordsForSearching);
-        if(position < 0) return list;
-        while(position >= 0 && compareRecordsForSearching(cachedRecords.get(position), question) == 0) position--;
-        while(++position < cachedRecords.size()
-                && compareRecordsForSearching(cachedRecords.get(position), question) == 0) {
-            list.add(cachedRecords.get(position).getResourceRecord());
-        }
-        return list;
+    public void addPinnedResourceRecord(ResourceRecord resourceRecord) {
+        pinnedRecords.add(resourceRecord);
+    }
+
+    private void addCachedRecord(CachedResourceRecord wrapper, long now) {
+        expireRecords(now);
+        RRSetKey key = RRSetKey.of(wrapper);
+        RRSet current = rrSets.get(key);
+        RRSet updated = current == null? new RRSet(key, wrapper): current.add(wrapper);
+        rrSets.put(key, updated);
+        stats.recordChange(current, updated);
+        stats.recordInserts(1);
+        keysByName.computeIfAbsent(key.nameKey(), n -> new LinkedHashSet<>()).add(key);
+        wheel.schedule(updated.getTimerNode(), updated.getEarliestExpiration() + staleMillis);
+        numRecords += updated.size() - (current == null? 0: current.size());
+        removeOldestIfNeeded(key);
+        removeNegativeAnswer(key.nameKey());
+        removeNegativeAnswer(key);
     }
 
     @Override
-    public void clear() {
-        cachedRecords.clear();
+    public void addNegativeAnswer(Question question, ResponseCode responseCode, ResourceRecord soa) {
+        long now = System.currentTimeMillis();
+        expireRecords(now);
+        NegativeAnswer answer = NegativeAnswer.create(question, responseCode, soa, now);
+        if(answer == null) return;
+        removeNegativeAnswer(answer.getKey());
+        negativeAnswers.put(answer.getKey(), answer);
+        wheel.schedule(answer.getTimerNode(), answer.getBestBefore());
     }
 
     @Override
-    public boolean getResourceRecords(Question question, Selector selector, ResourceRecordHandler handler) {
-        return getResourceRecords(question, handler);
+    public ResponseCode getNegativeAnswer(Question question) {
+        long now = System.currentTimeMillis();
+        expireRecords(now);
+        RRSetKey key = RRSetKey.of(question);
+        NegativeAnswer answer = negativeAnswers.get(key.nameKey());
+        if(answer == null || answer.isExpired(now)) answer = negativeAnswers.get(key);
+        if(answer == null || answer.isExpired(now)) return null;
+        stats.recordNegativeHit();
+        return answer.getResponseCode();
     }
 
     @Override
-    public void processAttachment(SelectionKey selectionKey) {
+    public CompletionStage<List<ResourceRecord>> getResourceRecords(Question question) {
+        long start = System.nanoTime();
+        List<ResourceRecord> records = findResourceRecords(question, false);
+        stats.recordLookUp(!records.isEmpty(), start);
+        return CompletableFuture.completedFuture(records);
     }
 
     @Override
-    public boolean getResourceRecords(Question question, ResourceRecordHandler handler) {
-        handler.handleResourceRecord(getResourceRecords(question, 0), null);
-        return true;
+    public List<ResourceRecord> getStaleResourceRecords(Question question) {
+        if(staleMillis == 0) return new ArrayList<>();
+        List<ResourceRecord> records = findResourceRecords(question, true);
+        if(!records.isEmpty()) stats.recordStaleHit();
+        return records;
     }
 
     @Override
-    public boolean retryGetResourceRecords() {
-        return true;
-    }
-
-    private int compareRecordsForAdding(CachedResourceRecord item1, CachedResourceRecord item2) {
-        long comp;
-        if((comp = item1.getDnsName().compareTo(item2.getDnsName())) != 0)
-            return comp > 0? 1: comp < 0? -1: 0;
-        if((comp = item1.getDnsClass().getMnemonic().compareTo(item2.getDnsClass().getMnemonic())) != 0)
-            return comp > 0? 1: comp < 0? -1: 0;
-        if((comp = item1.getDnsType().getMnemonic().compareTo(item2.getDnsType().getMnemonic())) != 0)
-            return comp > 0? 1: comp < 0? -1: 0;
-        if((comp = item1.getTimeAdded() - item2.getTimeAdded()) != 0)
-            return comp > 0? 1: comp < 0? -1: 0;
-        if((comp = item1.getTimeAccessed() - item2.getTimeAccessed()) != 0)
-            return comp > 0? 1: comp < 0? -1: 0;
-        return 0;
-    }
-
-    private int compareRecordsForSearching(DNSItem item1, DNSItem item2) {
-        int comp;
-        if((comp = item1.getDnsName().compareTo(item2.getDnsName())) != 0) {
-            return comp;
+    public void clear() {
+        for(RRSet rrSet: rrSets.values()) {
+            stats.recordRemovals(CacheStats.RemovalCause.EXPLICIT, rrSet.size());
+            stats.recordChange(rrSet, null);
         }
-        if((comp = item1.getDnsClass().getMnemonic().compareTo(item2.getDnsClass().getMnemonic())) != 0
-                && item1.getDnsClass() != DNSClass.ANY && item2.getDnsClass() != DNSClass.ANY) {
-            return comp;
+        rrSets.clear();
+        keysByName.clear();
+        negativeAnswers.clear();
+        pinnedRecords.clear();
+        wheel.clear();
+        numRecords = 0;
+    }
+
+    /**
+     * Writes the records in this cache that are not expired to a stream, in a compact binary format that can be
+     * loaded with {@link #readSnapshot(InputStream, DNSEngine)}. The stream is not closed.
+     * @param output the stream where the records are written.
+     * @return The number of records written.
+     * @throws IOException if there is an error writing to the stream.
+     */
+    public int writeSnapshot(OutputStream output) throws IOException {
+        return CacheSnapshot.write(rrSets.values(), output, System.currentTimeMillis());
+    }
+
+    /**
+     * Adds to this cache the records from a snapshot written by {@link #writeSnapshot(OutputStream)}, except
+     * those already expired. Records keep the expiration time they had when the snapshot was written. The stream is
+     * not closed, nor read beyond the end of the snapshot; it is read in small pieces, so it should be buffered.
+     * @param input the stream to read the snapshot from.
+     * @param engine the engine used to create the records.
+     * @return The number of records added.
+     * @throws IOException if there is an error reading from the stream or it doesn't contain a snapshot.
+     */
+    public int readSnapshot(InputStream input, DNSEngine engine) throws IOException {
+        long now = System.currentTimeMillis();
+        return CacheSnapshot.read(input, engine, now, record -> addCachedRecord(record, now));
+    }
+
+    /**
+     * Makes this cache keep the RDATA of the records added from now on in wire format (see
+     * {@link ResourceRecord#withWireData()}), so writing them to a message or a snapshot is just a copy of bytes.
+     * Disabled by default as it takes more memory.
+     * @param keepWireData true to keep the RDATA of new records in wire format.
+     */
+    public void setKeepWireData(boolean keepWireData) {
+        this.keepWireData = keepWireData;
+    }
+
+    /**
+     * Sets the limits applied to the TTL of the records added from now on. Pinned records are not affected.
+     * @param ttlPolicy the policy, {@link TtlPolicy#NONE} (the default) to keep TTLs as they are.
+     */
+    public void setTtlPolicy(TtlPolicy ttlPolicy) {
+        this.ttlPolicy = ttlPolicy;
+    }
+
+    /**
+     * Keeps expired records for a while so they can be served with {@link #getStaleResourceRecords(Question)}
+     * when a question can't be resolved (see RFC-8767). Disabled by default.
+     * @param maxStaleSeconds how long expired records are kept, or {@literal 0} to remove them as soon as they
+     *                        expire.
+     */
+    public void setServeStale(long maxStaleSeconds) {
+        if(maxStaleSeconds < 0) throw new IllegalArgumentException("maxStaleSeconds can't be negative");
+        this.staleMillis = maxStaleSeconds * 1000;
+    }
+
+    /**
+     * Number of records removed from this cache because their TTL was over.
+     * @return The number of records expired since this cache was created.
+     */
+    public long getExpiredCount() {
+        return stats.getRemovalCount(CacheStats.RemovalCause.EXPIRED);
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return stats.snapshot();
+    }
+
+    void expireRecords(long now) {
+        List<RRSetKey> due = new ArrayList<>();
+        wheel.advance(now, due);
+        for(RRSetKey key: due) {
+            NegativeAnswer answer = negativeAnswers.get(key);
+            if(answer != null && answer.isExpired(now)) negativeAnswers.remove(key);
+            RRSet rrSet = rrSets.get(key);
+            if(rrSet == null) continue;
+            RRSet alive = rrSet.removeExpired(now - staleMillis);
+            stats.recordRemovals(CacheStats.RemovalCause.EXPIRED, rrSet.size() - (alive != null? alive.size(): 0));
+            stats.recordChange(rrSet, alive);
+            numRecords -= rrSet.size() - (alive != null? alive.size(): 0);
+            if(alive != null) {
+                rrSets.put(key, alive);
+                wheel.schedule(alive.getTimerNode(), alive.getEarliestExpiration() + staleMillis);
+            } else {
+                remove(key);
+            }
         }
-        if((comp = item1.getDnsType().getMnemonic().compareTo(item2.getDnsType().getMnemonic())) != 0
-                && item1.getDnsType() != DNSType.ALL && item2.getDnsType() != DNSType.ALL)
-            return comp;
-        return 0;
+    }
+
+    private List<ResourceRecord> findResourceRecords(Question question, boolean stale) {
+        long now = System.currentTimeMillis();
+        expireRecords(now);
+        List<ResourceRecord> list = new ArrayList<>();
+        RRSetKey key = RRSetKey.of(question);
+        if(!key.isWildcard()) {
+            RRSet rrSet = rrSets.get(key);
+            if(rrSet != null) addTo(list, rrSet, now, stale);
+        } else {
+            Set<RRSetKey> keys = keysByName.getOrDefault(key.nameKey(), Collections.emptySet());
+            for(RRSetKey cachedKey: keys) {
+                if(key.covers(cachedKey)) addTo(list, rrSets.get(cachedKey), now, stale);
+            }
+        }
+        pinnedRecords.addTo(list, key);
+        return list;
+    }
+
+    private void addTo(List<ResourceRecord> list, RRSet rrSet, long now, boolean stale) {
+        if(stale) rrSet.addStaleTo(list, now, staleMillis); else rrSet.addTo(list, now);
+    }
+
+    private void removeOldestIfNeeded(RRSetKey justAdded) {
+        Iterator<RRSet> iterator = rrSets.values().iterator();
+        while(numRecords > numEntries && iterator.hasNext()) {
+            RRSet oldest = iterator.next();
+            if(oldest.getKey().equals(justAdded)) continue;
+            iterator.remove();
+            numRecords -= oldest.size();
+            stats.recordRemovals(CacheStats.RemovalCause.SIZE, oldest.size());
+            stats.recordChange(oldest, null);
+            wheel.deschedule(oldest.getTimerNode());
+            removeFromNameIndex(oldest.getKey());
+        }
+    }
+
+    private void removeNegativeAnswer(RRSetKey key) {
+        NegativeAnswer answer = negativeAnswers.remove(key);
+        if(answer != null) wheel.deschedule(answer.getTimerNode());
+    }
+
+    private void remove(RRSetKey key) {
+        rrSets.remove(key);
+        removeFromNameIndex(key);
+    }
+
+    private void removeFromNameIndex(RRSetKey key) {
+        Set<RRSetKey> keys = keysByName.get(key.nameKey());
+        keys.remove(key);
+        if(keys.isEmpty()) keysByName.remove(key.nameKey());
     }
 
 }
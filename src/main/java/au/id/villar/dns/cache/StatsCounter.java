@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates the statistics of a cache in {@link LongAdder}s, so threads updating them don't contend on the same
+ * counter. Snapshots are taken with {@link #snapshot()}; they are not atomic, but each value is exact.
+ */
+final class StatsCounter {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder inserts = new LongAdder();
+    private final LongAdder[] removals = createAdders(CacheStats.RemovalCause.values().length);
+    private final LongAdder records = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder[] latencies = createAdders(CacheStats.LATENCY_BUCKETS);
+
+    /* records the outcome of a lookup started at the given System.nanoTime() */
+    void recordLookUp(boolean found, long startNanos) {
+        (found? hits: misses).increment();
+        long elapsed = System.nanoTime() - startNanos;
+        latencies[elapsed <= 0? 0: 64 - Long.numberOfLeadingZeros(elapsed) & 63].increment();
+    }
+
+    void recordNegativeHit() {
+        negativeHits.increment();
+    }
+
+    void recordStaleHit() {
+        staleHits.increment();
+    }
+
+    void recordInserts(int count) {
+        inserts.add(count);
+    }
+
+    void recordRemovals(CacheStats.RemovalCause cause, int count) {
+        if(count != 0) removals[cause.ordinal()].add(count);
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getRemovalCount(CacheStats.RemovalCause cause) {
+        return removals[cause.ordinal()].sum();
+    }
+
+    /* keeps the size of the cache, "before" and "after" are the old and new versions of an RRset or null. It is
+     * called while holding the lock of the RRset, so it only reads the sizes and weights the RRsets already keep */
+    void recordChange(RRSet before, RRSet after) {
+        int recordDelta = (after != null? after.size(): 0) - (before != null? before.size(): 0);
+        long byteDelta = (after != null? after.getWeight(): 0) - (before != null? before.getWeight(): 0);
+        recordSizeChange(recordDelta, byteDelta);
+    }
+
+    /* for caches not keeping RRset objects */
+    void recordSizeChange(long recordDelta, long byteDelta) {
+        if(recordDelta != 0) records.add(recordDelta);
+        if(byteDelta != 0) bytes.add(byteDelta);
+    }
+
+    CacheStats snapshot() {
+        long[] removalCounts = new long[removals.length];
+        for(int index = 0; index < removals.length; index++) removalCounts[index] = removals[index].sum();
+        long[] latencyBuckets = new long[latencies.length];
+        for(int index = 0; index < latencies.length; index++) latencyBuckets[index] = latencies[index].sum();
+        return new CacheStats(hits.sum(), misses.sum(), negativeHits.sum(), staleHits.sum(), inserts.sum(),
+                removalCounts, records.sum(), bytes.sum(), latencyBuckets);
+    }
+
+    private static LongAdder[] createAdders(int size) {
+        LongAdder[] adders = new LongAdder[size];
+        for(int index = 0; index < size; index++) adders[index] = new LongAdder();
+        return adders;
+    }
+
+}
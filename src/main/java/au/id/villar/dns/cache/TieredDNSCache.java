@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.Question;
+import au.id.villar.dns.engine.ResourceRecord;
+import au.id.villar.dns.engine.ResponseCode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Two level {@link DNSCache}: every thread keeps a small LRU near-cache (L1) of the RRsets it looked up most
+ * recently, in front of a shared cache (L2) that holds everything. Hits in L1 don't copy records out of L2, they only
+ * read a version stamp, which is only written when records for a name are added; L1 entries are validated against
+ * those stamps and against the TTL of their records, so they are never served after the L2 copy changed or expired.
+ * Each L1 hit is reported to L2 with {@link DNSCache#recordHit(Question)}, so its eviction policy and refresh-ahead
+ * still see the popular names. Negative answers and stale records are always taken from L2. This class is as thread
+ * safe as the L2 cache.
+ */
+public class TieredDNSCache implements DNSCache {
+
+    /** Default number of RRsets kept by the L1 cache of each thread. */
+    public static final int DEFAULT_L1_CAPACITY = 1024;
+
+    private static final int STAMP_STRIPES = 4096;
+
+    private final DNSCache sharedCache;
+    private final int l1Capacity;
+    private final ThreadLocal<Map<RRSetKey, L1Entry>> l1;
+
+    /* stamps are striped by name; padding each stripe to its own cache line keeps readers of unrelated names from
+       seeing their line invalidated when another name is updated */
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES * 8);
+    private final AtomicLong epoch = new AtomicLong();
+    private final StatsCounter localStats = new StatsCounter();
+
+    public TieredDNSCache(DNSCache sharedCache) {
+        this(sharedCache, DEFAULT_L1_CAPACITY);
+    }
+
+    /**
+     * @param sharedCache The L2 cache, shared by all threads.
+     * @param l1Capacity The maximum number of RRsets kept in the L1 cache of each thread.
+     */
+    public TieredDNSCache(DNSCache sharedCache, int l1Capacity) {
+        if(l1Capacity < 1) throw new IllegalArgumentException("L1 capacity must be positive");
+        this.sharedCache = sharedCache;
+        this.l1Capacity = l1Capacity;
+        this.l1 = ThreadLocal.withInitial(() -> new LinkedHashMap<RRSetKey, L1Entry>(l1Capacity * 4 / 3 + 1, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<RRSetKey, L1Entry> eldest) {
+                return size() > TieredDNSCache.this.l1Capacity;
+            }
+        });
+    }
+
+    @Override
+    public void addResourceRecord(ResourceRecord resourceRecord) {
+        sharedCache.addResourceRecord(resourceRecord);
+        invalidate(resourceRecord.getDnsName());
+    }
+
+    @Override
+    public void addResourceRecords(List<ResourceRecord> resourceRecords) {
+        sharedCache.addResourceRecords(resourceRecords);
+        for(ResourceRecord resourceRecord: resourceRecords) invalidate(resourceRecord.getDnsName());
+    }
+
+    @Override
+    public void addPinnedResourceRecord(ResourceRecord resourceRecord) {
+        sharedCache.addPinnedResourceRecord(resourceRecord);
+        invalidate(resourceRecord.getDnsName());
+    }
+
+    /* an answer of L2 is copied to L1 only when it arrives in the calling thread, L1 belongs to that thread */
+    @Override
+    public CompletionStage<List<ResourceRecord>> getResourceRecords(Question question) {
+        RRSetKey key = RRSetKey.of(question);
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        int stripe = stripe(key.getName());
+        long stamp = stamps.get(stripe);
+        long currentEpoch = epoch.get();
+        Map<RRSetKey, L1Entry> nearCache = l1.get();
+
+        L1Entry entry = nearCache.get(key);
+        if(entry != null) {
+            if(entry.stamp == stamp && entry.epoch == currentEpoch && entry.expiresAt - now > 0) {
+                sharedCache.recordHit(question);
+                localStats.recordLookUp(true, start);
+                return CompletableFuture.completedFuture(entry.getRecords(now));
+            }
+            nearCache.remove(key);
+        }
+
+        // stamps are read before asking L2, so an update racing with this lookup leaves the entry already invalid
+        Thread caller = Thread.currentThread();
+        return sharedCache.getResourceRecords(question).thenApply(records -> {
+            if(!records.isEmpty() && Thread.currentThread() == caller) {
+                nearCache.put(key, new L1Entry(records, stamp, currentEpoch, now));
+            }
+            return records;
+        });
+    }
+
+    @Override
+    public void addNegativeAnswer(Question question, ResponseCode responseCode, ResourceRecord soa) {
+        sharedCache.addNegativeAnswer(question, responseCode, soa);
+        invalidate(question.getDnsName());
+    }
+
+    @Override
+    public ResponseCode getNegativeAnswer(Question question) {
+        return sharedCache.getNegativeAnswer(question);
+    }
+
+    @Override
+    public List<ResourceRecord> getStaleResourceRecords(Question question) {
+        return sharedCache.getStaleResourceRecords(question);
+    }
+
+    /** Clears L2; the L1 caches of all threads are invalidated and emptied on their next lookup. */
+    @Override
+    public void clear() {
+        sharedCache.clear();
+        epoch.incrementAndGet();
+        l1.get().clear();
+    }
+
+    /** @return The statistics of L2 with the hits of L1 added; L1 hits are not counted by L2 itself. */
+    @Override
+    public CacheStats getStats() {
+        return sharedCache.getStats().plus(localStats.snapshot());
+    }
+
+    /**
+     * Invalidates the L1 copies, in every thread, of the records owned by a name. Useful when L2 is changed
+     * without going through this cache.
+     * @param name The owner name of the records.
+     */
+    public void invalidate(String name) {
+        stamps.incrementAndGet(stripe(name));
+    }
+
+    /** @return The number of lookups answered by L1, in all threads. */
+    public long getLocalHitCount() {
+        return localStats.getHitCount();
+    }
+
+    /** @return The number of RRsets held in the L1 cache of the calling thread. */
+    public int getLocalSize() {
+        return l1.get().size();
+    }
+
+    private static int stripe(String name) {
+        int h = RRSetKey.hashIgnoreCase(name);
+        h ^= h >>> 16;
+        return (h & (STAMP_STRIPES - 1)) << 3;
+    }
+
+    private static final class L1Entry {
+
+        final List<ResourceRecord> records;
+        final long stamp;
+        final long epoch;
+        final long loadedAt;
+        final long expiresAt;
+        long adjustedSecond;
+        List<ResourceRecord> adjusted;
+
+        /* L2 gives the seconds its records have left, rounded up, so a second is taken off to never outlive them */
+        L1Entry(List<ResourceRecord> records, long stamp, long epoch, long now) {
+            long minTtl = Long.MAX_VALUE;
+            for(ResourceRecord record: records) minTtl = Math.min(minTtl, record.getSecondsCache());
+            this.records = new ArrayList<>(records);
+            this.stamp = stamp;
+            this.epoch = epoch;
+            this.loadedAt = now;
+            this.expiresAt = now + (minTtl - 1) * 1000L;
+            this.adjusted = this.records;
+        }
+
+        /* the records with their TTLs decreased by the time they've been in L1, recalculated once per second */
+        List<ResourceRecord> getRecords(long now) {
+            long elapsed = (now - loadedAt) / 1000;
+            if(elapsed != adjustedSecond) {
+                List<ResourceRecord> list = new ArrayList<>(records.size());
+                for(ResourceRecord record: records) {
+                    list.add(record.withSecondsCache(record.getSecondsCache() - elapsed));
+                }
+                adjusted = list;
+                adjustedSecond = elapsed;
+            }
+            return new ArrayList<>(adjusted);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel used to expire cached items at their deadline without scanning the whole cache. Each
+ * level is an array of buckets (doubly linked lists) covering a span of time; scheduling and descheduling are
+ * O(1), and advancing the wheel only visits the buckets whose time has come, moving items from coarser levels down
+ * to finer ones when they are not due yet. Times are in milliseconds. This class is not thread safe.
+ */
+final class TimerWheel<T> {
+
+    /* number of buckets per level, the last level holds everything beyond 2^29 ms (~6.2 days) */
+    private static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+
+    /* span covered by one bucket of each level: ~1s, ~65s, ~70m, ~37h, ~6.2d */
+    private static final int[] SHIFT = { 10, 16, 22, 27, 29 };
+
+    private final Node<T>[][] wheel;
+    private long time;
+
+    TimerWheel(long now) {
+        this.time = now;
+        this.wheel = newWheel();
+        for(int level = 0; level < BUCKETS.length; level++) {
+            for(int bucket = 0; bucket < BUCKETS[level]; bucket++) wheel[level][bucket] = new Node<>(null);
+        }
+    }
+
+    /* the arrays only ever hold nodes of T, but arrays of a generic type can't be created checked */
+    @SuppressWarnings("unchecked")
+    private static <T> Node<T>[][] newWheel() {
+        Node<?>[][] wheel = new Node<?>[BUCKETS.length][];
+        for(int level = 0; level < BUCKETS.length; level++) wheel[level] = new Node<?>[BUCKETS[level]];
+        return (Node<T>[][])wheel;
+    }
+
+    /* schedules a node to expire at the given time, moving it if it was already scheduled */
+    void schedule(Node<T> node, long expiration) {
+        if(node.isScheduled()) unlink(node);
+        node.time = expiration;
+        Node<T> sentinel = findBucket(Math.max(expiration, time));
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    void deschedule(Node<T> node) {
+        if(node.isScheduled()) unlink(node);
+    }
+
+    /* moves the wheel to the given time, adding to the list the items of those nodes whose time has come */
+    void advance(long now, List<T> expired) {
+        if(now - time <= 0) return;
+        long previous = time;
+        time = now;
+        for(int level = 0; level < SHIFT.length; level++) {
+            long previousTicks = previous >>> SHIFT[level];
+            long currentTicks = now >>> SHIFT[level];
+            if(currentTicks - previousTicks <= 0) break;
+            expire(level, previousTicks, currentTicks, expired);
+        }
+    }
+
+    void clear() {
+        for(Node<T>[] level: wheel) {
+            for(Node<T> sentinel: level) {
+                Node<T> node = sentinel.next;
+                while(node != sentinel) {
+                    Node<T> next = node.next;
+                    node.prev = node.next = null;
+                    node = next;
+                }
+                sentinel.prev = sentinel.next = sentinel;
+            }
+        }
+    }
+
+    private void expire(int level, long previousTicks, long currentTicks, List<T> expired) {
+        Node<T>[] buckets = wheel[level];
+        int mask = buckets.length - 1;
+        long steps = Math.min(1 + currentTicks - previousTicks, buckets.length);
+        int start = (int)(previousTicks & mask);
+        for(int step = 0; step < steps; step++) {
+            Node<T> sentinel = buckets[(start + step) & mask];
+            Node<T> node = sentinel.next;
+            sentinel.prev = sentinel.next = sentinel;
+            while(node != sentinel) {
+                Node<T> next = node.next;
+                node.prev = node.next = null;
+                if(node.time - time <= 0) {
+                    expired.add(node.item);
+                } else {
+                    schedule(node, node.time);
+                }
+                node = next;
+            }
+        }
+    }
+
+    private Node<T> findBucket(long expiration) {
+        long duration = expiration - time;
+        int last = wheel.length - 1;
+        for(int level = 0; level < last; level++) {
+            if(duration < 1L << SHIFT[level + 1]) {
+                long ticks = expiration >>> SHIFT[level];
+                return wheel[level][(int)(ticks & (wheel[level].length - 1))];
+            }
+        }
+        return wheel[last][0];
+    }
+
+    private void unlink(Node<T> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+    }
+
+    static final class Node<T> {
+
+        private final T item;
+        private long time;
+        private Node<T> prev;
+        private Node<T> next;
+
+        Node(T item) {
+            this.item = item;
+            if(item == null) prev = next = this;
+        }
+
+        boolean isScheduled() {
+            return next != null;
+        }
+
+        T getItem() {
+            return item;
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.ResourceRecord;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Limits applied to the TTL of records as they enter a cache, so records with a TTL too short don't cause a query
+ * upstream every time they are used, and those with a TTL too long don't keep stale data for days. Limits can be set
+ * for all the records, for those of a type, and for those owned by a domain or any of its subdomains; the most
+ * specific one applies: domain first (the longest suffix), then type, then the default limits. Domains are matched
+ * with a {@link LabelTrie}, reading the labels of the owner name in place. Instances are immutable.
+ */
+public final class TtlPolicy {
+
+    /** Policy leaving TTLs as they are. */
+    public static final TtlPolicy NONE = builder().build();
+
+    private static final Predicate<Limits> ANY_LIMITS = limits -> true;
+
+    private final Limits defaultLimits;
+    /* limits by type, in 256 pages of 256 entries indexed by the bits of the type, so lookups don't box it */
+    private final Limits[][] typeLimits;
+    private final LabelTrie<Limits> domainLimits;
+
+    private TtlPolicy(Builder builder) {
+        this.defaultLimits = builder.defaultLimits;
+        this.typeLimits = builder.typeLimits.isEmpty()? null: new Limits[256][];
+        for(Map.Entry<Short, Limits> entry: builder.typeLimits.entrySet()) {
+            int type = entry.getKey() & 0xFFFF;
+            if(typeLimits[type >> 8] == null) typeLimits[type >> 8] = new Limits[256];
+            typeLimits[type >> 8][type & 0xFF] = entry.getValue();
+        }
+        this.domainLimits = new LabelTrie<>();
+        for(Map.Entry<String, Limits> entry: builder.domainLimits.entrySet()) {
+            domainLimits.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Calculates the TTL a record gets when cached.
+     * @param resourceRecord The record.
+     * @return The TTL of the record, in seconds, within the limits applying to it.
+     */
+    public long getTtl(ResourceRecord resourceRecord) {
+        Limits limits = null;
+        if(domainLimits.size() > 0) limits = domainLimits.findClosestEnclosing(resourceRecord.getDnsName(), ANY_LIMITS);
+        if(limits == null && typeLimits != null) limits = getTypeLimits(resourceRecord.getDnsType().getValue());
+        if(limits == null) limits = defaultLimits;
+        return limits.clamp(resourceRecord.getSecondsCache());
+    }
+
+    /**
+     * Applies this policy to a record.
+     * @param resourceRecord The record.
+     * @return The same record if its TTL is within the limits applying to it, otherwise a copy with the TTL adjusted.
+     */
+    public ResourceRecord apply(ResourceRecord resourceRecord) {
+        long ttl = getTtl(resourceRecord);
+        return ttl == resourceRecord.getSecondsCache()? resourceRecord: resourceRecord.withSecondsCache(ttl);
+    }
+
+    private Limits getTypeLimits(short type) {
+        Limits[] page = typeLimits[(type >> 8) & 0xFF];
+        return page != null? page[type & 0xFF]: null;
+    }
+
+    /** Builder of {@link TtlPolicy} instances. Limits are in seconds; a fixed TTL is set with equal limits. */
+    public static final class Builder {
+
+        private Limits defaultLimits = new Limits(0, Long.MAX_VALUE);
+        private final Map<Short, Limits> typeLimits = new HashMap<>();
+        private final Map<String, Limits> domainLimits = new HashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Limits for all the records not covered by a type or domain limit.
+         * @param minTtl The minimum TTL, records with a lower one get this one.
+         * @param maxTtl The maximum TTL, records with a higher one get this one.
+         * @return This builder.
+         */
+        public Builder withLimits(long minTtl, long maxTtl) {
+            defaultLimits = new Limits(minTtl, maxTtl);
+            return this;
+        }
+
+        /**
+         * Limits for the records of a type, replacing the default ones.
+         * @param dnsType The type of the records.
+         * @param minTtl The minimum TTL.
+         * @param maxTtl The maximum TTL.
+         * @return This builder.
+         */
+        public Builder withLimits(DNSType dnsType, long minTtl, long maxTtl) {
+            typeLimits.put(dnsType.getValue(), new Limits(minTtl, maxTtl));
+            return this;
+        }
+
+        /**
+         * Limits for the records owned by a domain and its subdomains, replacing the type and default ones.
+         * @param domain The domain, for example "example.com".
+         * @param minTtl The minimum TTL.
+         * @param maxTtl The maximum TTL.
+         * @return This builder.
+         */
+        public Builder withLimits(String domain, long minTtl, long maxTtl) {
+            domainLimits.put(domain.toLowerCase(), new Limits(minTtl, maxTtl));
+            return this;
+        }
+
+        public TtlPolicy build() {
+            return new TtlPolicy(this);
+        }
+    }
+
+    private static final class Limits {
+
+        private final long minTtl;
+        private final long maxTtl;
+
+        Limits(long minTtl, long maxTtl) {
+            if(minTtl < 0 || maxTtl < minTtl) throw new IllegalArgumentException("Invalid TTL limits");
+            this.minTtl = minTtl;
+            this.maxTtl = maxTtl;
+        }
+
+        long clamp(long ttl) {
+            return ttl < minTtl? minTtl: ttl > maxTtl? maxTtl: ttl;
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * W-TinyLFU eviction policy bounded by weight. New items enter a small LRU window (1% of the maximum weight); items
+ * leaving the window are candidates to enter the main space, a segmented LRU split in probation (20%) and protected
+ * (80%) segments. A candidate is only admitted if a {@link FrequencySketch} says it has been used more often than
+ * the probation victim it would replace, so items seen just once can't push out popular ones. This class is not
+ * thread safe.
+ */
+final class WindowTinyLfuPolicy {
+
+    /* estimated average weight of an RRSet, used to size the frequency sketch */
+    private static final int AVERAGE_WEIGHT = 256;
+
+    private enum Queue { WINDOW, PROBATION, PROTECTED }
+
+    private final Map<RRSetKey, Node> nodes = new HashMap<>();
+    private final Deque window = new Deque();
+    private final Deque probation = new Deque();
+    private final Deque protectedDeque = new Deque();
+    private final FrequencySketch sketch;
+    private final long maximumWeight;
+    private final long maximumWindowWeight;
+    private final long maximumProtectedWeight;
+    private long weightedSize;
+
+    WindowTinyLfuPolicy(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+        this.maximumWindowWeight = maximumWeight / 100;
+        this.maximumProtectedWeight = (maximumWeight - maximumWindowWeight) * 8 / 10;
+        this.sketch = new FrequencySketch(maximumWeight / AVERAGE_WEIGHT);
+    }
+
+    long getWeightedSize() {
+        return weightedSize;
+    }
+
+    void recordAccess(RRSetKey key) {
+        sketch.increment(key.hashCode());
+        Node node = nodes.get(key);
+        if(node != null) onHit(node);
+    }
+
+    /* registers a new or updated item, returning the keys of the items that must be evicted */
+    List<RRSetKey> recordWrite(RRSetKey key, long weight) {
+        Node node = nodes.get(key);
+        if(node == null) {
+            sketch.increment(key.hashCode());
+            node = new Node(key, weight);
+            nodes.put(key, node);
+            window.addLast(node);
+            weightedSize += weight;
+        } else {
+            updateWeight(node, weight);
+            onHit(node);
+        }
+        return evict();
+    }
+
+    /* updates the weight of an item which is not bigger than before, so nothing needs to be evicted */
+    void recordShrink(RRSetKey key, long weight) {
+        Node node = nodes.get(key);
+        if(node != null) updateWeight(node, weight);
+    }
+
+    void remove(RRSetKey key) {
+        Node node = nodes.remove(key);
+        if(node != null) {
+            dequeOf(node).remove(node);
+            weightedSize -= node.weight;
+        }
+    }
+
+    void clear() {
+        nodes.clear();
+        window.clear();
+        probation.clear();
+        protectedDeque.clear();
+        sketch.clear();
+        weightedSize = 0;
+    }
+
+    private void updateWeight(Node node, long weight) {
+        long delta = weight - node.weight;
+        node.weight = weight;
+        weightedSize += delta;
+        dequeOf(node).weight += delta;
+    }
+
+    private void onHit(Node node) {
+        switch(node.queue) {
+            case WINDOW:
+                window.moveToBack(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.queue = Queue.PROTECTED;
+                protectedDeque.addLast(node);
+                while(protectedDeque.weight > maximumProtectedWeight && protectedDeque.first() != node) {
+                    Node demoted = protectedDeque.first();
+                    protectedDeque.remove(demoted);
+                    demoted.queue = Queue.PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedDeque.moveToBack(node);
+                break;
+        }
+    }
+
+    private List<RRSetKey> evict() {
+        List<RRSetKey> evicted = new ArrayList<>();
+        List<Node> candidates = new ArrayList<>();
+        while(window.weight > maximumWindowWeight && window.first() != null) {
+            Node candidate = window.first();
+            window.remove(candidate);
+            candidate.queue = Queue.PROBATION;
+            probation.addLast(candidate);
+            candidates.add(candidate);
+        }
+        for(Node candidate: candidates) {
+            while(weightedSize > maximumWeight && candidate.queue != null) {
+                Node victim = probation.first();
+                if(victim == candidate || victim == null
+                        || sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                    evict(candidate, evicted);
+                } else {
+                    evict(victim, evicted);
+                }
+            }
+        }
+        while(weightedSize > maximumWeight) {
+            Node victim = probation.first() != null? probation.first():
+                    protectedDeque.first() != null? protectedDeque.first(): window.first();
+            evict(victim, evicted);
+        }
+        return evicted;
+    }
+
+    private void evict(Node node, List<RRSetKey> evicted) {
+        remove(node.key);
+        node.queue = null;
+        evicted.add(node.key);
+    }
+
+    private Deque dequeOf(Node node) {
+        return node.queue == Queue.WINDOW? window: node.queue == Queue.PROBATION? probation: protectedDeque;
+    }
+
+    private static final class Node {
+
+        private final RRSetKey key;
+        private long weight;
+        private Queue queue = Queue.WINDOW;
+        private Node prev;
+        private Node next;
+
+        Node(RRSetKey key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    /* access ordered list of nodes, the least recently used first */
+    private static final class Deque {
+
+        private Node first;
+        private Node last;
+        private long weight;
+
+        Node first() {
+            return first;
+        }
+
+        void addLast(Node node) {
+            node.prev = last;
+            node.next = null;
+            if(last == null) first = node; else last.next = node;
+            last = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if(node.prev == null) first = node.next; else node.prev.next = node.next;
+            if(node.next == null) last = node.prev; else node.next.prev = node.prev;
+            node.prev = node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToBack(Node node) {
+            if(node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void clear() {
+            first = last = null;
+            weight = 0;
+        }
+    }
+
+}
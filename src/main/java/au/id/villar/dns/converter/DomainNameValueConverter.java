@@ -15,6 +15,7 @@
  */
 package au.id.villar.dns.converter;
 
+import au.id.villar.dns.engine.NameCompressor;
 import au.id.villar.dns.engine.ParseResult;
 import au.id.villar.dns.engine.RRValueConverter;
 import au.id.villar.dns.engine.Utils;
@@ -53,6 +54,16 @@ public class DomainNameValueConverter implements RRValueConverter {
         return Utils.writeDomainNameAndUpdateLinks(rawObject.toString(), array, offset, linkOffset, nameLinks);
     }
 
+    @Override
+    public int writeRawData(Object rawObject, byte[] array, int offset, NameCompressor compressor) {
+        return compressor.writeName(rawObject.toString(), array, offset);
+    }
+
+    @Override
+    public int getRawDataLength(Object rawObject) {
+        return Utils.domainNameLength(rawObject.toString());
+    }
+
     @Override
     public boolean areEqual(Object rawObject1, Object rawObject2) {
         return rawObject1.equals(rawObject2);
@@ -66,6 +66,12 @@ public class HinfoValueConverter implements RRValueConverter {
         return offset - start;
     }
 
+    @Override
+    public int getRawDataLength(Object rawObject) {
+        HinfoData value = (HinfoData)rawObject;
+        return Utils.textLength(value.getCpu()) + Utils.textLength(value.getOperatingSystem());
+    }
+
     @Override
     public boolean areEqual(Object rawObject1, Object rawObject2) {
         return rawObject1.equals(rawObject2);
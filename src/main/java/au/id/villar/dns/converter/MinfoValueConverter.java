@@ -15,6 +15,7 @@
  */
 package au.id.villar.dns.converter;
 
+import au.id.villar.dns.engine.NameCompressor;
 import au.id.villar.dns.engine.ParseResult;
 import au.id.villar.dns.engine.RRValueConverter;
 import au.id.villar.dns.engine.Utils;
@@ -65,11 +66,28 @@ public class MinfoValueConverter implements RRValueConverter {
 
         usedBytes = Utils.writeDomainNameAndUpdateLinks(value.getAdminMaibox(), array, offset, linkOffset, nameLinks);
         offset += usedBytes;
-        usedBytes = Utils.writeDomainNameAndUpdateLinks(value.getErrorMailbox(), array, offset, linkOffset, nameLinks);
+        usedBytes = Utils.writeDomainNameAndUpdateLinks(value.getErrorMailbox(), array, offset,
+                linkOffset + (offset - start), nameLinks);
         offset += usedBytes;
         return offset - start;
     }
 
+    @Override
+    public int writeRawData(Object rawObject, byte[] array, int offset, NameCompressor compressor) {
+        MinfoData value = (MinfoData)rawObject;
+        int usedBytes;
+
+        usedBytes = compressor.writeName(value.getAdminMaibox(), array, offset);
+        usedBytes += compressor.writeName(value.getErrorMailbox(), array, offset + usedBytes);
+        return usedBytes;
+    }
+
+    @Override
+    public int getRawDataLength(Object rawObject) {
+        MinfoData value = (MinfoData)rawObject;
+        return Utils.domainNameLength(value.getAdminMaibox()) + Utils.domainNameLength(value.getErrorMailbox());
+    }
+
     @Override
     public boolean areEqual(Object rawObject1, Object rawObject2) {
         return rawObject1.equals(rawObject2);
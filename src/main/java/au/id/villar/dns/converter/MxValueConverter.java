@@ -15,6 +15,7 @@
  */
 package au.id.villar.dns.converter;
 
+import au.id.villar.dns.engine.NameCompressor;
 import au.id.villar.dns.engine.ParseResult;
 import au.id.villar.dns.engine.RRValueConverter;
 import au.id.villar.dns.engine.Utils;
@@ -64,12 +65,25 @@ public class MxValueConverter implements RRValueConverter {
 
         Utils.writeShort((short)value.getPreference(), array, offset);
         offset += 2;
-        usedBytes = Utils.writeDomainNameAndUpdateLinks(value.getMailServer(), array, offset, linkOffset,
+        usedBytes = Utils.writeDomainNameAndUpdateLinks(value.getMailServer(), array, offset, linkOffset + 2,
                 nameLinks);
         offset += usedBytes;
         return offset - start;
     }
 
+    @Override
+    public int writeRawData(Object rawObject, byte[] array, int offset, NameCompressor compressor) {
+        MxData value = (MxData)rawObject;
+
+        Utils.writeShort((short)value.getPreference(), array, offset);
+        return 2 + compressor.writeName(value.getMailServer(), array, offset + 2);
+    }
+
+    @Override
+    public int getRawDataLength(Object rawObject) {
+        return 2 + Utils.domainNameLength(((MxData)rawObject).getMailServer());
+    }
+
     @Override
     public boolean areEqual(Object rawObject1, Object rawObject2) {
         return rawObject1.equals(rawObject2);
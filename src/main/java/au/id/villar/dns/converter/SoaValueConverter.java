@@ -15,6 +15,7 @@
  */
 package au.id.villar.dns.converter;
 
+import au.id.villar.dns.engine.NameCompressor;
 import au.id.villar.dns.engine.ParseResult;
 import au.id.villar.dns.engine.RRValueConverter;
 import au.id.villar.dns.engine.Utils;
@@ -80,8 +81,31 @@ public class SoaValueConverter implements RRValueConverter {
 
         usedBytes = Utils.writeDomainNameAndUpdateLinks(value.getDomainName(), array, offset, linkOffset, nameLinks);
         offset += usedBytes;
-        usedBytes = Utils.writeDomainNameAndUpdateLinks(value.getMailbox(), array, offset, linkOffset, nameLinks);
+        usedBytes = Utils.writeDomainNameAndUpdateLinks(value.getMailbox(), array, offset,
+                linkOffset + (offset - start), nameLinks);
         offset += usedBytes;
+        return offset - start + writeNumbers(value, array, offset);
+    }
+
+    @Override
+    public int writeRawData(Object rawObject, byte[] array, int offset, NameCompressor compressor) {
+        SoaData value = (SoaData)rawObject;
+        int start = offset;
+
+        offset += compressor.writeName(value.getDomainName(), array, offset);
+        offset += compressor.writeName(value.getMailbox(), array, offset);
+        return offset - start + writeNumbers(value, array, offset);
+    }
+
+    @Override
+    public int getRawDataLength(Object rawObject) {
+        SoaData value = (SoaData)rawObject;
+        return Utils.domainNameLength(value.getDomainName()) + Utils.domainNameLength(value.getMailbox()) + 20;
+    }
+
+    private static int writeNumbers(SoaData value, byte[] array, int offset) {
+        int start = offset;
+
         Utils.writeInt((int)value.getSerial(), array, offset);
         offset += 4;
         Utils.writeInt((int)value.getRefreshInterval(), array, offset);
@@ -19,45 +19,64 @@ import au.id.villar.dns.engine.ParseResult;
 import au.id.villar.dns.engine.RRValueConverter;
 import au.id.villar.dns.engine.Utils;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
- * Converter for ResourceRecords of type TXT (Text strings)
+ * Converter for ResourceRecords of type TXT (Text strings). The data is kept as the list of its character-strings,
+ * so their boundaries survive; it can be given as a String (a single character-string) or as a List of them, and
+ * read as that List or as a String with the character-strings separated by spaces.
  */
 public class TxtValueConverter implements RRValueConverter {
 
+    private static final int MAX_STRING_LENGTH = 255;
+
     @Override
     public Object convertToRawData(Object data) {
-        if(!(data instanceof String))
-            throw new IllegalArgumentException("Only String type supported");
-        return data.toString();
+        if(data instanceof String) return Collections.singletonList(checkLength(data.toString()));
+        if(!(data instanceof List) || ((List<?>)data).isEmpty())
+            throw new IllegalArgumentException("Only String and non-empty List of String types supported");
+        List<String> strings = new ArrayList<>(((List<?>)data).size());
+        for(Object string: (List<?>)data) strings.add(checkLength(string.toString()));
+        return Collections.unmodifiableList(strings);
     }
 
     @Override
     public Object getData(byte[] data, int offset, int length, Map<Integer, String> previousNames) {
-        StringBuilder strData = new StringBuilder(data.length - 1);
+        List<String> strings = new ArrayList<>();
         int index = offset;
         int total = offset + length;
         while(index < total) {
             ParseResult<String> result = Utils.getText(data, index);
-            strData.append(result.value);
+            strings.add(result.value);
             index += result.bytesUsed;
-            if(index < total) strData.append(' ');
         }
-        return strData.toString();
+        return Collections.unmodifiableList(strings);
     }
 
     @Override
     public <T> T convertValue(Object rawObject, Class<T> tClass) {
+        if(tClass == List.class) return tClass.cast(rawObject);
         if(tClass != String.class && tClass != Object.class)
-            throw new IllegalArgumentException("Only String type supported");
-        return tClass.cast(rawObject);
+            throw new IllegalArgumentException("Only String and List types supported");
+        return tClass.cast(String.join(" ", getStrings(rawObject)));
     }
 
     @Override
     public int writeRawData(Object rawObject, byte[] array, int offset, int linkOffset,
             Map<String, Integer> nameLinks) {
-        return Utils.writeText(rawObject.toString(), array, offset);
+        int written = 0;
+        for(String string: getStrings(rawObject)) written += Utils.writeText(string, array, offset + written);
+        return written;
+    }
+
+    @Override
+    public int getRawDataLength(Object rawObject) {
+        int length = 0;
+        for(String string: getStrings(rawObject)) length += Utils.textLength(string);
+        return length;
     }
 
     @Override
@@ -65,4 +84,15 @@ public class TxtValueConverter implements RRValueConverter {
         return rawObject1.equals(rawObject2);
     }
 
+    @SuppressWarnings("unchecked")
+    private static List<String> getStrings(Object rawObject) {
+        return (List<String>)rawObject;
+    }
+
+    private static String checkLength(String string) {
+        if(Utils.textLength(string) - 1 > MAX_STRING_LENGTH)
+            throw new IllegalArgumentException("TXT character-string longer than " + MAX_STRING_LENGTH + " bytes");
+        return string;
+    }
+
 }
@@ -58,6 +58,11 @@ public class UnknownValueConverter implements RRValueConverter {
         return arrayValue.length;
     }
 
+    @Override
+    public int getRawDataLength(Object rawObject) {
+        return ((byte[])rawObject).length;
+    }
+
     @Override
     public boolean areEqual(Object rawObject1, Object rawObject2) {
         return Arrays.equals((byte[])rawObject1, (byte[])rawObject2);
@@ -63,6 +63,11 @@ public class WksValueConverter implements RRValueConverter {
         return value.getBitmap().length + 5;
     }
 
+    @Override
+    public int getRawDataLength(Object rawObject) {
+        return ((WksData)rawObject).getBitmap().length + 5;
+    }
+
     @Override
     public boolean areEqual(Object rawObject1, Object rawObject2) {
         return rawObject1.equals(rawObject2);
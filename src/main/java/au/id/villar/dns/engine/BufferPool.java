@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.engine;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of heap and direct {@link ByteBuffer}s for DNS messages. Capacities are rounded up to a power of two between
+ * {@link #MIN_CAPACITY} (the size of a UDP message) and {@link #MAX_CAPACITY} (the biggest TCP message); bigger
+ * buffers are allocated as requested and never kept. Released buffers go first to a small cache of the releasing
+ * thread, which is where the same thread looks first when acquiring, and then to a bounded pool shared by all the
+ * threads; when both are full they are left to the garbage collector.
+ * <p>
+ * A buffer must not be used after it's released, nor released twice. This class is thread safe.
+ */
+public final class BufferPool {
+
+    public static final int MIN_CAPACITY = 512;
+    public static final int MAX_CAPACITY = 64 * 1024;
+
+    /** Default number of buffers of each capacity, heap or direct, kept by each thread. */
+    public static final int DEFAULT_THREAD_CACHE_SIZE = 8;
+
+    /** Default number of buffers of each capacity, heap or direct, kept in the shared pool. */
+    public static final int DEFAULT_SHARED_SIZE = 256;
+
+    private static final int MIN_SHIFT = 9;
+    private static final int CLASSES = 8;
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_THREAD_CACHE_SIZE, DEFAULT_SHARED_SIZE);
+
+    private final int threadCacheSize;
+    private final int sharedSize;
+
+    /* heap classes first, then direct ones */
+    private final SharedBuffers[] shared;
+    private final ThreadLocal<ThreadCache> threadCaches;
+    private final LongAdder allocations = new LongAdder();
+
+    /**
+     * @param threadCacheSize The number of buffers of each capacity, heap or direct, kept by each thread.
+     * @param sharedSize The number of buffers of each capacity, heap or direct, kept in the pool shared by all the
+     *                   threads.
+     */
+    public BufferPool(int threadCacheSize, int sharedSize) {
+        if(threadCacheSize < 0 || sharedSize < 0) throw new IllegalArgumentException("Sizes can't be negative");
+        this.threadCacheSize = threadCacheSize;
+        this.sharedSize = sharedSize;
+        this.shared = new SharedBuffers[CLASSES * 2];
+        for(int index = 0; index < shared.length; index++) shared[index] = new SharedBuffers();
+        this.threadCaches = ThreadLocal.withInitial(ThreadCache::new);
+    }
+
+    /** @return A pool with the default sizes, shared by the whole library. */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param capacity The minimum capacity of the buffer.
+     * @return A heap buffer, with its position at 0 and its limit at its capacity.
+     */
+    public ByteBuffer acquire(int capacity) {
+        return acquire(capacity, false);
+    }
+
+    /**
+     * @param capacity The minimum capacity of the buffer.
+     * @return A direct buffer, with its position at 0 and its limit at its capacity.
+     */
+    public ByteBuffer acquireDirect(int capacity) {
+        return acquire(capacity, true);
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers of capacities not handled by the pool are ignored.
+     * @param buffer The buffer, it can be {@literal null}.
+     */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null) return;
+        int capacity = buffer.capacity();
+        if(capacity < MIN_CAPACITY || capacity > MAX_CAPACITY || Integer.bitCount(capacity) != 1) return;
+        if(!buffer.isDirect() && (!buffer.hasArray() || buffer.arrayOffset() != 0)) return;
+        int index = index(sizeClass(capacity), buffer.isDirect());
+        buffer.clear();
+        if(threadCaches.get().offer(index, buffer)) return;
+        SharedBuffers sharedBuffers = shared[index];
+        if(sharedBuffers.count.incrementAndGet() <= sharedSize) {
+            sharedBuffers.buffers.offer(buffer);
+        } else {
+            sharedBuffers.count.decrementAndGet();
+        }
+    }
+
+    /** @return The number of buffers allocated because none was available in the pool. */
+    public long getAllocationCount() {
+        return allocations.sum();
+    }
+
+    private ByteBuffer acquire(int capacity, boolean direct) {
+        if(capacity > MAX_CAPACITY) {
+            allocations.increment();
+            return direct? ByteBuffer.allocateDirect(capacity): ByteBuffer.allocate(capacity);
+        }
+        int sizeClass = sizeClass(capacity);
+        int index = index(sizeClass, direct);
+        ByteBuffer buffer = threadCaches.get().poll(index);
+        if(buffer == null) {
+            SharedBuffers sharedBuffers = shared[index];
+            buffer = sharedBuffers.buffers.poll();
+            if(buffer != null) sharedBuffers.count.decrementAndGet();
+        }
+        if(buffer == null) {
+            allocations.increment();
+            int classCapacity = MIN_CAPACITY << sizeClass;
+            buffer = direct? ByteBuffer.allocateDirect(classCapacity): ByteBuffer.allocate(classCapacity);
+        }
+        return buffer;
+    }
+
+    private static int sizeClass(int capacity) {
+        if(capacity <= MIN_CAPACITY) return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    private static int index(int sizeClass, boolean direct) {
+        return direct? CLASSES + sizeClass: sizeClass;
+    }
+
+    /* the buffers of one capacity, heap or direct, in the shared pool; the count bounds the queue */
+    private static final class SharedBuffers {
+        final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+    }
+
+    private final class ThreadCache {
+
+        final ByteBuffer[][] buffers = new ByteBuffer[CLASSES * 2][threadCacheSize];
+        final int[] counts = new int[CLASSES * 2];
+
+        ByteBuffer poll(int index) {
+            if(counts[index] == 0) return null;
+            ByteBuffer buffer = buffers[index][--counts[index]];
+            buffers[index][counts[index]] = null;
+            return buffer;
+        }
+
+        boolean offer(int index, ByteBuffer buffer) {
+            if(counts[index] == threadCacheSize) return false;
+            buffers[index][counts[index]++] = buffer;
+            return true;
+        }
+    }
+
+}
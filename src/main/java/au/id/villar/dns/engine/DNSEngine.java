@@ -18,6 +18,7 @@ package au.id.villar.dns.engine;
 import au.id.villar.dns.converter.*;
 
 import java.lang.reflect.Array;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -26,41 +27,44 @@ import java.util.Map;
 public class DNSEngine {
 
     private static final int UDP_DATAGRAM_MAX_SIZE = 512;
-
-    private Map<Short, DNSClass> classes = new HashMap<>();
-    private Map<Short, DNSType> types = new HashMap<>();
-    private Map<DNSClass, Map<DNSType, RRValueConverter>> converters = new HashMap<>();
-    private Map<Short, RRValueConverter> internetConverters = new HashMap<>();
+    private static final int MAX_SCRATCH_SIZE = 0xFFFF + 2;
+    private static final ThreadLocal<byte[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[UDP_DATAGRAM_MAX_SIZE]);
+
+    private final ValueRegistry<DNSClass> classes = new ValueRegistry<>("class");
+    private final ValueRegistry<DNSType> types = new ValueRegistry<>("type");
+    private final Map<DNSClass, Map<DNSType, RRValueConverter>> converters = new HashMap<>();
+    private final ShortTable<RRValueConverter> internetConverters = new ShortTable<>();
     private RRValueConverter defaultConverter = new DefaultConverter();
 
     public DNSEngine() {
 
-        classes.put(DNSClass.IN_VALUE, DNSClass.IN);
-        classes.put(DNSClass.ANY_VALUE, DNSClass.ANY);
-
-        types.put(DNSType.A_VALUE, DNSType.A);
-        types.put(DNSType.NS_VALUE, DNSType.NS);
-        types.put(DNSType.MD_VALUE, DNSType.MD);
-        types.put(DNSType.MF_VALUE, DNSType.MF);
-        types.put(DNSType.CNAME_VALUE, DNSType.CNAME);
-        types.put(DNSType.SOA_VALUE, DNSType.SOA);
-        types.put(DNSType.MB_VALUE, DNSType.MB);
-        types.put(DNSType.MG_VALUE, DNSType.MG);
-        types.put(DNSType.MR_VALUE, DNSType.MR);
-        types.put(DNSType.NULL_VALUE, DNSType.NULL);
-        types.put(DNSType.WKS_VALUE, DNSType.WKS);
-        types.put(DNSType.PTR_VALUE, DNSType.PTR);
-        types.put(DNSType.HINFO_VALUE, DNSType.HINFO);
-        types.put(DNSType.MINFO_VALUE, DNSType.MINFO);
-        types.put(DNSType.MX_VALUE, DNSType.MX);
-        types.put(DNSType.TXT_VALUE, DNSType.TXT);
-
-        types.put(DNSType.AAAA_VALUE, DNSType.AAAA);
-
-        types.put(DNSType.AXFR_VALUE, DNSType.AXFR);
-        types.put(DNSType.MAILB_VALUE, DNSType.MAILB);
-        types.put(DNSType.MAILA_VALUE, DNSType.MAILA);
-        types.put(DNSType.ALL_VALUE, DNSType.ALL);
+        classes.register(DNSClass.IN);
+        classes.register(DNSClass.ANY);
+
+        types.register(DNSType.A);
+        types.register(DNSType.NS);
+        types.register(DNSType.MD);
+        types.register(DNSType.MF);
+        types.register(DNSType.CNAME);
+        types.register(DNSType.SOA);
+        types.register(DNSType.MB);
+        types.register(DNSType.MG);
+        types.register(DNSType.MR);
+        types.register(DNSType.NULL);
+        types.register(DNSType.WKS);
+        types.register(DNSType.PTR);
+        types.register(DNSType.HINFO);
+        types.register(DNSType.MINFO);
+        types.register(DNSType.MX);
+        types.register(DNSType.TXT);
+
+        types.register(DNSType.AAAA);
+
+        types.register(DNSType.AXFR);
+        types.register(DNSType.MAILB);
+        types.register(DNSType.MAILA);
+        types.register(DNSType.ALL);
 
         internetConverters.put(DNSType.A_VALUE, new AValueConverter());
         internetConverters.put(DNSType.NS_VALUE, new DomainNameValueConverter());
@@ -86,7 +90,7 @@ public class DNSEngine {
     @SuppressWarnings({"unused", "WeakerAccess"})
     public DNSClass registerClass(short number, String mnemonic) {
         DNSClass valueMnemonic = new DNSClass(number, mnemonic.toUpperCase());
-        return validateAndRegisterInMap(classes, valueMnemonic);
+        return classes.register(valueMnemonic);
     }
 
     @SuppressWarnings({"unused", "WeakerAccess"})
@@ -96,16 +100,13 @@ public class DNSEngine {
 
     @SuppressWarnings({"unused", "WeakerAccess"})
     public DNSClass getClass(String mnemonic) {
-        for(DNSClass o: classes.values())
-            if(o.getMnemonic().equals(mnemonic))
-                return o;
-        return null;
+        return classes.get(mnemonic);
     }
 
     @SuppressWarnings({"unused", "WeakerAccess"})
     public DNSType registerType(short number, String mnemonic) {
         DNSType valueMnemonic = new DNSType(number, mnemonic.toUpperCase());
-        return validateAndRegisterInMap(types, valueMnemonic);
+        return types.register(valueMnemonic);
     }
 
     @SuppressWarnings({"unused", "WeakerAccess"})
@@ -115,10 +116,7 @@ public class DNSEngine {
 
     @SuppressWarnings({"unused", "WeakerAccess"})
     public DNSType getType(String mnemonic) {
-        for(DNSType o: types.values())
-            if(o.getMnemonic().equals(mnemonic))
-                return o;
-        return null;
+        return types.get(mnemonic);
     }
 
     @SuppressWarnings({"unused", "WeakerAccess"})
@@ -126,12 +124,9 @@ public class DNSEngine {
         if(dnsClass.equals(DNSClass.IN)) {
             internetConverters.put(dnsType.getValue(), converter);
         } else {
-            Map<DNSType, RRValueConverter> converterMap = converters.get(dnsClass);
-            if(converterMap == null) {
-                converterMap = new HashMap<>();
-                converters.put(dnsClass, converterMap);
+            synchronized(converters) {
+                converters.computeIfAbsent(dnsClass, c -> new HashMap<>()).put(dnsType, converter);
             }
-            converterMap.put(dnsType, converter);
         }
     }
 
@@ -142,6 +137,28 @@ public class DNSEngine {
         return new ResourceRecord(name, dnsType, dnsClass, ttl, converter, rawData);
     }
 
+    /**
+     * Creates a resource record from its RDATA in wire format, as written by
+     * {@link ResourceRecord#writeRawData(byte[], int)}. The RDATA must not contain compressed names.
+     * @param name the owner name of the record.
+     * @param typeValue the numeric value of the record's type, unknown types are registered.
+     * @param classValue the numeric value of the record's class, unknown classes are registered.
+     * @param ttl the TTL of the record in seconds.
+     * @param buffer the array containing the RDATA.
+     * @param offset the position of the RDATA in the array.
+     * @param length the length of the RDATA.
+     * @return the new record.
+     */
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public ResourceRecord createResourceRecordFromRawData(String name, short typeValue, short classValue, long ttl,
+            byte[] buffer, int offset, int length) {
+        DNSType type = getRegisterType(typeValue);
+        DNSClass dnsClass = getRegisterClass(classValue);
+        RRValueConverter converter = getConverter(dnsClass, type);
+        Object data = converter.getData(buffer, offset, length, new HashMap<>());
+        return new ResourceRecord(name, type, dnsClass, ttl, converter, data);
+    }
+
     @SuppressWarnings({"unused", "WeakerAccess"})
     public Question createQuestion(String qName, DNSType qType, DNSClass qClass) {
         if(!Utils.isValidDnsName(qName))
@@ -212,28 +229,92 @@ public class DNSEngine {
                 additionals);
     }
 
+    /**
+     * Creates a view of the message between the position and the limit of a buffer, decoding its records only when
+     * they are requested (see {@link DNSMessageView}). The position of the buffer is not changed.
+     * @param buffer the buffer containing the message, heap or direct.
+     * @return the view of the message.
+     */
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public DNSMessageView createMessageView(ByteBuffer buffer) {
+        return new DNSMessageView(this, buffer);
+    }
+
+    /**
+     * Writes a message, preceded by its length as used in TCP, into a new heap buffer of the exact size. The message
+     * is written once, into an array reused by the calling thread and big enough for its maximum length (see
+     * {@link DNSMessage#getMaxWireLength()}), and then copied.
+     * @param dnsMessage the message to write.
+     * @return a buffer with the length and the message, from its position 0 to its limit.
+     */
     @SuppressWarnings({"unused", "WeakerAccess"})
     public ByteBuffer createBufferFromMessage(DNSMessage dnsMessage) {
+        byte[] scratch = getScratch(dnsMessage.getMaxWireLength() + 2);
+        int end = writeWithLength(dnsMessage, scratch, 0);
+        ByteBuffer buffer = ByteBuffer.allocate(end);
+        buffer.put(scratch, 0, end);
+        buffer.flip();
+        return buffer;
+    }
 
-        int aproxSize = UDP_DATAGRAM_MAX_SIZE;
-        ByteBuffer buffer = null;
-        while(buffer == null) {
-            try {
-                byte[] testingBuffer = new byte[aproxSize];
-                int actualSize = dnsMessage.writeToBuffer(testingBuffer, 2);
-                testingBuffer[0] = (byte)((actualSize >> 8) & 0xFF);
-                testingBuffer[1] = (byte)(actualSize & 0xFF);
-                actualSize += 2;
-                buffer = ByteBuffer.allocate(actualSize);
-                buffer.put(testingBuffer, 0, actualSize);
-                buffer.position(0);
-            } catch(IndexOutOfBoundsException e) {
-                aproxSize += UDP_DATAGRAM_MAX_SIZE;
-            }
-        }
+    /**
+     * Writes a message, preceded by its length as used in TCP, into a heap buffer borrowed from a pool; the buffer
+     * should be given back to the pool once it's no longer used.
+     * @param dnsMessage the message to write.
+     * @param pool the pool the buffer is taken from.
+     * @return a buffer with the length and the message, from its position 0 to its limit.
+     */
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public ByteBuffer createBufferFromMessage(DNSMessage dnsMessage, BufferPool pool) {
+        ByteBuffer buffer = pool.acquire(dnsMessage.getMaxWireLength() + 2);
+        writeMessageToBuffer(dnsMessage, buffer);
+        buffer.flip();
         return buffer;
     }
 
+    /**
+     * Writes a message, preceded by its length as used in TCP, into a buffer supplied by the caller, heap or direct,
+     * starting at its position, which is advanced past the message. The message is written once: straight into the
+     * array of a heap buffer with room for its maximum length, otherwise into an array reused by the calling thread,
+     * and then copied.
+     * @param dnsMessage the message to write.
+     * @param buffer the buffer where the message is written.
+     * @return the number of bytes written, including the two of the length.
+     * @throws BufferOverflowException if the message doesn't fit in the remaining bytes of the buffer; nothing is
+     * written in that case.
+     */
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    public int writeMessageToBuffer(DNSMessage dnsMessage, ByteBuffer buffer) {
+        int maxLength = dnsMessage.getMaxWireLength() + 2;
+        if(buffer.hasArray() && buffer.remaining() >= maxLength) {
+            int start = buffer.arrayOffset() + buffer.position();
+            int length = writeWithLength(dnsMessage, buffer.array(), start) - start;
+            buffer.position(buffer.position() + length);
+            return length;
+        }
+        byte[] scratch = getScratch(maxLength);
+        int length = writeWithLength(dnsMessage, scratch, 0);
+        if(length > buffer.remaining()) throw new BufferOverflowException();
+        buffer.put(scratch, 0, length);
+        return length;
+    }
+
+    private static int writeWithLength(DNSMessage dnsMessage, byte[] array, int offset) {
+        int end = dnsMessage.writeToBuffer(array, offset + 2);
+        Utils.writeShort((short)(end - offset - 2), array, offset);
+        return end;
+    }
+
+    /* arrays longer than any message that can be sent aren't kept */
+    private static byte[] getScratch(int length) {
+        byte[] scratch = SCRATCH.get();
+        if(scratch.length < length) {
+            scratch = new byte[Math.max(length, Math.min(scratch.length * 2, MAX_SCRATCH_SIZE))];
+            if(scratch.length <= MAX_SCRATCH_SIZE) SCRATCH.set(scratch);
+        }
+        return scratch;
+    }
+
     private interface MessageItemReader<T> {
         ParseResult<T> readData(byte[] buffer, int offset, Map<Integer, String> names);
     }
@@ -289,8 +370,10 @@ public class DNSEngine {
         if(dnsClass.equals(DNSClass.IN)) {
             converter = internetConverters.get(dnsType.getValue());
         } else {
-            Map<DNSType, RRValueConverter> converterMap = converters.get(dnsClass);
-            converter = converterMap == null? null: converterMap.get(dnsType);
+            synchronized(converters) {
+                Map<DNSType, RRValueConverter> converterMap = converters.get(dnsClass);
+                converter = converterMap == null? null: converterMap.get(dnsType);
+            }
         }
         return converter != null? converter: defaultConverter;
     }
@@ -357,21 +440,4 @@ public class DNSEngine {
         result.bytesUsed = offset - start;
         return result;
     }
-
-    private <T extends ValueMnemonic> T validateAndRegisterInMap(Map<Short, T> predefinedList, T valueMnemonic) {
-        for(Map.Entry<Short, T> entry: predefinedList.entrySet()) {
-            if(entry.getKey().equals(valueMnemonic.getValue())) {
-                if(entry.getValue().getMnemonic().equals(valueMnemonic.getMnemonic())) {
-                    return entry.getValue();
-                } else {
-                    throw new IllegalArgumentException("type already registered with other mnemonic: "
-                            + entry.getValue());
-                }
-            } else if(entry.getValue().getMnemonic().equals(valueMnemonic.getMnemonic())) {
-                throw new IllegalArgumentException("type already registered with other number: " + entry.getValue());
-            }
-        }
-        predefinedList.put(valueMnemonic.getValue(), valueMnemonic);
-        return valueMnemonic;
-    }
 }
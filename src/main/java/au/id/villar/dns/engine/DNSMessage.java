@@ -15,14 +15,12 @@
  */
 package au.id.villar.dns.engine;
 
-import java.util.HashMap;
-import java.util.Map;
-
-
 public class DNSMessage {
 
     public static final int MESSAGE_HEADER_SIZE = 12;
 
+    private static final ThreadLocal<NameCompressor> COMPRESSORS = ThreadLocal.withInitial(NameCompressor::new);
+
     /* Fields for header message [RFC1035] */
     private final short id;         // message ID
     private final boolean qr;       // query ( 0 or false) o response (1 or true)
@@ -126,11 +124,37 @@ public class DNSMessage {
         return additionals[additionalNum];
     }
 
+    /**
+     * Works out, without writing it, how many bytes this message takes at most on the wire: its exact length when
+     * no name is compressed. Lengths of record data are computed once per record and kept.
+     * @return an upper bound of the length of this message.
+     */
+    public int getMaxWireLength() {
+        int length = MESSAGE_HEADER_SIZE;
+        for(Question q: questions) length += maxNameLength(q.getDnsName()) + 4;
+        for(ResourceRecord rr: answers) length += maxRecordLength(rr);
+        for(ResourceRecord rr: authorities) length += maxRecordLength(rr);
+        for(ResourceRecord rr: additionals) length += maxRecordLength(rr);
+        return length;
+    }
+
     public int writeToBuffer(byte[] buffer, int offset) {
+        return writeToBuffer(buffer, offset, COMPRESSORS.get());
+    }
+
+    /**
+     * Writes this message in the format used on the wire.
+     * @param buffer the array where the message is written.
+     * @param offset position in the array where the message starts.
+     * @param compressor compresses the names in the message, it is reset before writing; use
+     *                   {@link NameCompressor#NONE} to write names in full.
+     * @return the position in the array after the message.
+     */
+    public int writeToBuffer(byte[] buffer, int offset, NameCompressor compressor) {
         short aux;
         int usedBytes;
-        int start = offset;
-        Map<String, Integer> nameLinks = new HashMap<>();
+
+        compressor.reset(offset);
 
         Utils.writeShort(id, buffer, offset++);
         aux = (short) ((qr ? 1 : 0) << 15);
@@ -152,21 +176,30 @@ public class DNSMessage {
         Utils.writeShort((short) additionals.length, buffer, offset);
         offset += 2;
         for (Question q : questions) {
-            usedBytes = q.writeRawData(buffer, offset, offset - start, nameLinks);
+            usedBytes = q.writeRawData(buffer, offset, compressor);
             offset += usedBytes;
         }
         for (ResourceRecord rr : answers) {
-            usedBytes = rr.writeRawData(buffer, offset, offset - start, nameLinks);
+            usedBytes = rr.writeRawData(buffer, offset, compressor);
             offset += usedBytes;
         }
         for (ResourceRecord rr : authorities) {
-            usedBytes = rr.writeRawData(buffer, offset, offset - start, nameLinks);
+            usedBytes = rr.writeRawData(buffer, offset, compressor);
             offset += usedBytes;
         }
         for (ResourceRecord rr : additionals) {
-            usedBytes = rr.writeRawData(buffer, offset, offset - start, nameLinks);
+            usedBytes = rr.writeRawData(buffer, offset, compressor);
             offset += usedBytes;
         }
         return offset;
     }
+
+    private static int maxRecordLength(ResourceRecord rr) {
+        return maxNameLength(rr.getDnsName()) + 10 + rr.getRawDataLength();
+    }
+
+    /* a label length byte per dot, plus the first label length and the final empty label */
+    private static int maxNameLength(String name) {
+        return name.length() + 2;
+    }
 }
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.engine;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only view of a DNS message held in a {@link ByteBuffer}, heap or direct. Only the header is parsed when the
+ * view is created; the position of each question and record is found, skipping names without decoding them, the
+ * first time a record at or after it is requested, and records are decoded only when requested (and then kept).
+ * Reading the response code or the number of records of a section costs no more than reading the header.
+ * <p>
+ * Decoding names and data needs the message in an array indexed from its first byte, as compression pointers are
+ * offsets from the start of the message: the array of a heap buffer is used directly when the message starts at
+ * its first element, otherwise the message is copied once, the first time something is decoded. The buffer must not
+ * be modified while the view is in use. Instances are not thread safe.
+ */
+public final class DNSMessageView {
+
+    private static final int ANSWERS = 0;
+    private static final int AUTHORITIES = 1;
+    private static final int ADDITIONALS = 2;
+    /* the smallest question has a root name, a type and a class; the smallest record adds a TTL and a data length */
+    private static final int MIN_QUESTION_SIZE = 5;
+    private static final int MIN_RECORD_SIZE = 11;
+
+    private final DNSEngine engine;
+    private final ByteBuffer buffer;
+    private final short id;
+    private final int flags;
+    private final int numQuestions;
+    private final int[] sectionCounts = new int[3];
+
+    /* offsets of questions and records, in message order, found so far; only as many as the message can hold */
+    private final int[] offsets;
+    private final int maxQuestions;
+    private final int maxRecords;
+    private int offsetsFound;
+    private int nextOffset = DNSMessage.MESSAGE_HEADER_SIZE;
+
+    private byte[] array;
+    private Map<Integer, String> names;
+    private Question[] questions;
+    private ResourceRecord[] records;
+
+    DNSMessageView(DNSEngine engine, ByteBuffer message) {
+        if(message.remaining() < DNSMessage.MESSAGE_HEADER_SIZE)
+            throw new IllegalArgumentException("Message shorter than its header");
+        this.engine = engine;
+        this.buffer = message.slice();
+        this.id = buffer.getShort(0);
+        this.flags = buffer.getShort(2) & 0xFFFF;
+        this.numQuestions = buffer.getShort(4) & 0xFFFF;
+        this.sectionCounts[ANSWERS] = buffer.getShort(6) & 0xFFFF;
+        this.sectionCounts[AUTHORITIES] = buffer.getShort(8) & 0xFFFF;
+        this.sectionCounts[ADDITIONALS] = buffer.getShort(10) & 0xFFFF;
+        // the counts aren't trusted: a short message claiming thousands of records must not make arrays that big
+        int body = buffer.limit() - DNSMessage.MESSAGE_HEADER_SIZE;
+        this.maxQuestions = Math.min(numQuestions, body / MIN_QUESTION_SIZE);
+        this.maxRecords = Math.min(sectionCounts[ANSWERS] + sectionCounts[AUTHORITIES] + sectionCounts[ADDITIONALS],
+                body / MIN_RECORD_SIZE);
+        this.offsets = new int[maxQuestions + maxRecords];
+    }
+
+    public short getId() {
+        return id;
+    }
+
+    public boolean isResponse() {
+        return (flags & 0x8000) != 0;
+    }
+
+    public Opcode getOpcode() {
+        return Opcode.getOpcode((byte)((flags >> 11) & 0xF));
+    }
+
+    public boolean isAuthoritative() {
+        return (flags & 0x0400) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (flags & 0x0200) != 0;
+    }
+
+    public boolean isRecursionDesired() {
+        return (flags & 0x0100) != 0;
+    }
+
+    public boolean isRecursionAvailable() {
+        return (flags & 0x0080) != 0;
+    }
+
+    public byte getZ() {
+        return (byte)((flags >> 4) & 0x7);
+    }
+
+    public ResponseCode getResponseCode() {
+        return ResponseCode.getResponseCode((byte)(flags & 0xF));
+    }
+
+    /** @return The number of questions according to the header. */
+    public int getNumQuestions() {
+        return numQuestions;
+    }
+
+    /** @return The number of answers according to the header. */
+    public int getNumAnswers() {
+        return sectionCounts[ANSWERS];
+    }
+
+    /** @return The number of authority records according to the header. */
+    public int getNumAuthorities() {
+        return sectionCounts[AUTHORITIES];
+    }
+
+    /** @return The number of additional records according to the header. */
+    public int getNumAdditionals() {
+        return sectionCounts[ADDITIONALS];
+    }
+
+    /**
+     * @param index The position of the question, starting from 0.
+     * @return The question, decoded the first time it is requested.
+     * @throws IndexOutOfBoundsException if there is no such question, or the message ends before it.
+     */
+    public Question getQuestion(int index) {
+        checkIndex(index, numQuestions);
+        int offset = offsetOf(index);
+        if(questions == null) questions = new Question[maxQuestions];
+        Question question = questions[index];
+        if(question == null) {
+            question = engine.createQuestionFromBuffer(getArray(), offset, getNames()).value;
+            questions[index] = question;
+        }
+        return question;
+    }
+
+    /**
+     * @param index The position of the answer, starting from 0.
+     * @return The answer, decoded the first time it is requested.
+     * @throws IndexOutOfBoundsException if there is no such answer, or the message ends before it.
+     */
+    public ResourceRecord getAnswer(int index) {
+        return getRecord(ANSWERS, index);
+    }
+
+    /**
+     * @param index The position of the authority record, starting from 0.
+     * @return The authority record, decoded the first time it is requested.
+     * @throws IndexOutOfBoundsException if there is no such record, or the message ends before it.
+     */
+    public ResourceRecord getAuthority(int index) {
+        return getRecord(AUTHORITIES, index);
+    }
+
+    /**
+     * @param index The position of the additional record, starting from 0.
+     * @return The additional record, decoded the first time it is requested.
+     * @throws IndexOutOfBoundsException if there is no such record, or the message ends before it.
+     */
+    public ResourceRecord getAdditional(int index) {
+        return getRecord(ADDITIONALS, index);
+    }
+
+    /**
+     * Reads the type of the answer without decoding it.
+     * @param index The position of the answer, starting from 0.
+     * @return The numeric value of the type of the answer.
+     */
+    public short getAnswerType(int index) {
+        return getRecordType(ANSWERS, index);
+    }
+
+    /**
+     * Reads the type of the authority record without decoding it, useful to look for SOA or NS records.
+     * @param index The position of the record, starting from 0.
+     * @return The numeric value of the type of the record.
+     */
+    public short getAuthorityType(int index) {
+        return getRecordType(AUTHORITIES, index);
+    }
+
+    /**
+     * Reads the owner name of the answer without decoding the rest of it, and without copying the message.
+     * @param index The position of the answer, starting from 0.
+     * @return The owner name of the answer.
+     */
+    public DomainName getAnswerName(int index) {
+        return getRecordName(ANSWERS, index);
+    }
+
+    /**
+     * Reads the owner name of the authority record without decoding the rest of it, and without copying the message.
+     * @param index The position of the record, starting from 0.
+     * @return The owner name of the record.
+     */
+    public DomainName getAuthorityName(int index) {
+        return getRecordName(AUTHORITIES, index);
+    }
+
+    /**
+     * Decodes the whole message.
+     * @return A message with all the questions and records of this view.
+     */
+    public DNSMessage toMessage() {
+        Question[] allQuestions = new Question[numQuestions];
+        for(int index = 0; index < numQuestions; index++) allQuestions[index] = getQuestion(index);
+        ResourceRecord[][] sections = new ResourceRecord[3][];
+        for(int section = ANSWERS; section <= ADDITIONALS; section++) {
+            sections[section] = new ResourceRecord[sectionCounts[section]];
+            for(int index = 0; index < sectionCounts[section]; index++) {
+                sections[section][index] = getRecord(section, index);
+            }
+        }
+        return new DNSMessage(id, isResponse(), getOpcode(), isAuthoritative(), isTruncated(),
+                isRecursionDesired(), isRecursionAvailable(), getZ(), getResponseCode(), allQuestions,
+                sections[ANSWERS], sections[AUTHORITIES], sections[ADDITIONALS]);
+    }
+
+    private ResourceRecord getRecord(int section, int index) {
+        checkIndex(index, sectionCounts[section]);
+        int position = recordPosition(section, index);
+        int offset = offsetOf(position);
+        if(records == null) records = new ResourceRecord[maxRecords];
+        ResourceRecord record = records[position - numQuestions];
+        if(record == null) {
+            record = engine.createResourceRecordFromBuffer(getArray(), offset, getNames()).value;
+            records[position - numQuestions] = record;
+        }
+        return record;
+    }
+
+    private short getRecordType(int section, int index) {
+        checkIndex(index, sectionCounts[section]);
+        int offset = offsetOf(recordPosition(section, index));
+        return buffer.getShort(skipName(offset));
+    }
+
+    private DomainName getRecordName(int section, int index) {
+        checkIndex(index, sectionCounts[section]);
+        return DomainName.fromBuffer(buffer, offsetOf(recordPosition(section, index))).value;
+    }
+
+    private int recordPosition(int section, int index) {
+        int position = numQuestions + index;
+        for(int previous = ANSWERS; previous < section; previous++) position += sectionCounts[previous];
+        return position;
+    }
+
+    /* finds the offsets of the items up to the given one, skipping the names and data of those before it */
+    private int offsetOf(int position) {
+        while(offsetsFound <= position) {
+            int offset = nextOffset;
+            int end = skipName(offset) + 4;
+            if(offsetsFound >= numQuestions) {
+                if(end + 6 > buffer.limit())
+                    throw new IndexOutOfBoundsException("Message truncated at record " + offsetsFound);
+                end += 6 + (buffer.getShort(end + 4) & 0xFFFF);
+            }
+            if(end > buffer.limit()) throw new IndexOutOfBoundsException("Message truncated at item " + offsetsFound);
+            offsets[offsetsFound++] = offset;
+            nextOffset = end;
+        }
+        return offsets[position];
+    }
+
+    /* returns the offset after the name starting at the given offset */
+    private int skipName(int offset) {
+        while(true) {
+            int length = buffer.get(offset) & 0xFF;
+            if(length == 0) return offset + 1;
+            if((length & 0xC0) == 0xC0) return offset + 2;
+            offset += length + 1;
+        }
+    }
+
+    private byte[] getArray() {
+        if(array == null) {
+            if(buffer.hasArray() && buffer.arrayOffset() == 0) {
+                array = buffer.array();
+            } else {
+                array = new byte[buffer.limit()];
+                ByteBuffer copy = buffer.duplicate();
+                copy.position(0);
+                copy.get(array);
+            }
+        }
+        return array;
+    }
+
+    private Map<Integer, String> getNames() {
+        if(names == null) names = new HashMap<>();
+        return names;
+    }
+
+    private static void checkIndex(int index, int count) {
+        if(index < 0 || index >= count) throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+    }
+
+}
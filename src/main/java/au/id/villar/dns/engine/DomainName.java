@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Domain name kept as the labels of its uncompressed wire format, with the offset of every label and a case
+ * insensitive hash worked out once. Names are read straight from a message, following compression pointers, into a
+ * single array of the right size, without going through intermediate strings; comparisons, hashing and suffix
+ * matching work on that array, ignoring case as names do (RFC-4343). The textual form is only built if requested.
+ * Instances are immutable.
+ */
+public final class DomainName {
+
+    /** The root name, its textual form is the empty string. */
+    public static final DomainName ROOT = new DomainName(new byte[0], new byte[0]);
+
+    private static final int MAX_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    /* length prefixed labels, without the final empty label */
+    private final byte[] labels;
+    /* unsigned offsets of each label in labels */
+    private final byte[] offsets;
+    private final int hash;
+    private String text;
+
+    private DomainName(byte[] labels, byte[] offsets) {
+        this.labels = labels;
+        this.offsets = offsets;
+        int h = 0;
+        for(byte b: labels) h = 31 * h + toLowerCase(b);
+        this.hash = h;
+    }
+
+    /**
+     * @param name A domain name in textual form, it may end with a dot.
+     * @return The name.
+     * @throws IllegalArgumentException if the name has empty labels or is too long.
+     */
+    public static DomainName of(String name) {
+        if(name.isEmpty() || name.equals(".")) return ROOT;
+        byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1); // TODO DNS i18n
+        int length = bytes[bytes.length - 1] == '.'? bytes.length: bytes.length + 1;
+        if(length + 1 > MAX_LENGTH) throw new IllegalArgumentException("Domain name too long: " + name);
+        int count = 1;
+        for(int pos = 0; pos < length - 1; pos++) if(bytes[pos] == '.') count++;
+        byte[] labels = new byte[length];
+        byte[] offsets = new byte[count];
+        int labelStart = 0;
+        int label = 0;
+        for(int pos = 0; pos < length; pos++) {
+            if(pos == length - 1 || bytes[pos] == '.') {
+                int labelLength = pos - labelStart;
+                if(labelLength == 0 || labelLength > MAX_LABEL_LENGTH)
+                    throw new IllegalArgumentException("Invalid label in domain name: " + name);
+                labels[labelStart] = (byte)labelLength;
+                System.arraycopy(bytes, labelStart, labels, labelStart + 1, labelLength);
+                offsets[label++] = (byte)labelStart;
+                labelStart = pos + 1;
+            }
+        }
+        DomainName domainName = new DomainName(labels, offsets);
+        if(bytes.length == length) domainName.text = name;
+        return domainName;
+    }
+
+    /**
+     * Reads a domain name from a DNS message.
+     * @param message An array holding the message from its first element, as pointers are relative to it.
+     * @param offset The position where the name starts.
+     * @return The name, and the number of bytes it takes at {@code offset}.
+     * @throws IllegalArgumentException if the name is malformed, too long or its pointers form a loop.
+     * @throws IndexOutOfBoundsException if the message ends before the name.
+     */
+    public static ParseResult<DomainName> fromBuffer(byte[] message, int offset) {
+        return fromBuffer(ByteBuffer.wrap(message), offset);
+    }
+
+    /**
+     * Reads a domain name from a DNS message without modifying the buffer.
+     * @param message A buffer holding the message from its first element, as pointers are relative to it.
+     * @param offset The position where the name starts.
+     * @return The name, and the number of bytes it takes at {@code offset}.
+     * @throws IllegalArgumentException if the name is malformed, too long or its pointers form a loop.
+     * @throws IndexOutOfBoundsException if the message ends before the name.
+     */
+    public static ParseResult<DomainName> fromBuffer(ByteBuffer message, int offset) {
+
+        // first pass: measures the name, so the second one can copy it into arrays of the right size
+        int length = 0;
+        int count = 0;
+        int bytesUsed = -1;
+        int pos = offset;
+        int lowestJump = offset;
+        int labelLength;
+        while((labelLength = message.get(pos) & 0xFF) != 0) {
+            if((labelLength & 0xC0) == 0xC0) {
+                if(bytesUsed == -1) bytesUsed = pos - offset + 2;
+                pos = message.getShort(pos) & 0x3FFF;
+                // pointers must go backwards, otherwise they could loop
+                if(pos >= lowestJump) throw new IllegalArgumentException("Invalid pointer in domain name at " + offset);
+                lowestJump = pos;
+                continue;
+            }
+            if(labelLength > MAX_LABEL_LENGTH)
+                throw new IllegalArgumentException("Invalid label length in domain name at " + offset);
+            length += labelLength + 1;
+            count++;
+            if(length + 1 > MAX_LENGTH) throw new IllegalArgumentException("Domain name too long at " + offset);
+            pos += labelLength + 1;
+        }
+        if(bytesUsed == -1) bytesUsed = pos - offset + 1;
+
+        ParseResult<DomainName> result = new ParseResult<>();
+        result.bytesUsed = bytesUsed;
+        if(count == 0) {
+            result.value = ROOT;
+            return result;
+        }
+
+        byte[] labels = new byte[length];
+        byte[] offsets = new byte[count];
+        int index = 0;
+        int label = 0;
+        pos = offset;
+        while((labelLength = message.get(pos) & 0xFF) != 0) {
+            if((labelLength & 0xC0) == 0xC0) {
+                pos = message.getShort(pos) & 0x3FFF;
+                continue;
+            }
+            offsets[label++] = (byte)index;
+            labels[index++] = (byte)labelLength;
+            for(int c = 1; c <= labelLength; c++) labels[index++] = message.get(pos + c);
+            pos += labelLength + 1;
+        }
+        result.value = new DomainName(labels, offsets);
+        return result;
+    }
+
+    /** @return The number of labels, 0 for the root. */
+    public int getLabelCount() {
+        return offsets.length;
+    }
+
+    /**
+     * @param index The position of the label, 0 being the leftmost one.
+     * @return The label.
+     */
+    public String getLabel(int index) {
+        int start = offsets[index] & 0xFF;
+        return new String(labels, start + 1, labels[start], StandardCharsets.ISO_8859_1);
+    }
+
+    /** @return The number of bytes the name takes in a message when it's not compressed. */
+    public int getWireLength() {
+        return labels.length + 1;
+    }
+
+    /**
+     * @param suffix Another name.
+     * @return {@literal true} if this name is equal to {@code suffix} or below it, ignoring case.
+     */
+    public boolean isSubdomainOf(DomainName suffix) {
+        int start = labels.length - suffix.labels.length;
+        if(start < 0) return false;
+        // the suffix has to start at a label boundary, not just match the last bytes
+        if(start > 0 && start < labels.length && !isLabelStart(start)) return false;
+        return regionMatches(labels, start, suffix.labels, 0, suffix.labels.length);
+    }
+
+    /**
+     * @param count The number of labels to keep.
+     * @return The name made of the rightmost {@code count} labels of this one.
+     */
+    public DomainName getSuffix(int count) {
+        if(count == offsets.length) return this;
+        if(count == 0) return ROOT;
+        int first = offsets.length - count;
+        int start = offsets[first] & 0xFF;
+        byte[] suffixLabels = new byte[labels.length - start];
+        System.arraycopy(labels, start, suffixLabels, 0, suffixLabels.length);
+        byte[] suffixOffsets = new byte[count];
+        for(int c = 0; c < count; c++) suffixOffsets[c] = (byte)((offsets[first + c] & 0xFF) - start);
+        return new DomainName(suffixLabels, suffixOffsets);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof DomainName)) return false;
+        DomainName other = (DomainName)o;
+        return hash == other.hash && labels.length == other.labels.length
+                && regionMatches(labels, 0, other.labels, 0, labels.length);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /** @return The name in textual form, without the final dot; the empty string for the root. */
+    @Override
+    public String toString() {
+        String value = text;
+        if(value == null) {
+            char[] chars = new char[labels.length == 0? 0: labels.length - 1];
+            int pos = 0;
+            for(int c = 0; c < offsets.length; c++) {
+                int start = offsets[c] & 0xFF;
+                if(c > 0) chars[pos++] = '.';
+                for(int i = 1; i <= labels[start]; i++) chars[pos++] = (char)(labels[start + i] & 0xFF);
+            }
+            value = new String(chars);
+            text = value;
+        }
+        return value;
+    }
+
+    private boolean isLabelStart(int position) {
+        for(byte offset: offsets) if((offset & 0xFF) == position) return true;
+        return false;
+    }
+
+    private static boolean regionMatches(byte[] a, int aStart, byte[] b, int bStart, int length) {
+        for(int c = 0; c < length; c++) {
+            if(a[aStart + c] != b[bStart + c] && toLowerCase(a[aStart + c]) != toLowerCase(b[bStart + c])) return false;
+        }
+        return true;
+    }
+
+    private static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z'? b + ('a' - 'A'): b;
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.engine;
+
+import java.util.Arrays;
+
+/**
+ * Writes domain names in a DNS message using links to names, or ending parts of names, already written (see
+ * RFC-1035, section 4.1.4). The names already written are found through an open addressing table of the message
+ * offsets where each of their suffixes starts, keyed by a case insensitive hash of the suffix; candidates are
+ * compared against the bytes of the message itself, so nothing is allocated per name. Instances can be reused for
+ * any number of messages, calling {@link #reset(int)} before writing each one, but they are not thread safe.
+ */
+public final class NameCompressor {
+
+    /** Writes names in full, without compression. This instance can be shared. */
+    public static final NameCompressor NONE = new NameCompressor(false);
+
+    private static final int MAX_LINK_OFFSET = 0x3FFF;
+    private static final int MAX_LABELS = 128;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final boolean enabled;
+    private int messageStart;
+
+    /* message offsets of suffixes already written, 0 being an empty slot as no name starts at the header */
+    private int[] offsets;
+    private int[] hashes;
+    private int size;
+
+    /* label starts and suffix hashes of the name being written */
+    private final int[] labelStarts;
+    private final int[] suffixHashes;
+
+    public NameCompressor() {
+        this(true);
+    }
+
+    private NameCompressor(boolean enabled) {
+        this.enabled = enabled;
+        this.offsets = enabled? new int[INITIAL_CAPACITY]: null;
+        this.hashes = enabled? new int[INITIAL_CAPACITY]: null;
+        this.labelStarts = enabled? new int[MAX_LABELS]: null;
+        this.suffixHashes = enabled? new int[MAX_LABELS]: null;
+    }
+
+    /**
+     * Forgets the names written so far and starts a new message.
+     * @param messageStart The position, in the array where the message is written, of the start of the message.
+     */
+    public void reset(int messageStart) {
+        if(!enabled) return;
+        this.messageStart = messageStart;
+        if(size > 0) {
+            Arrays.fill(offsets, 0);
+            size = 0;
+        }
+    }
+
+    /**
+     * Writes a domain name, linking to a name already written if possible and remembering its suffixes so later
+     * names can link to them.
+     * @param name The name to write, it may end with a dot.
+     * @param buffer The array where the message is written.
+     * @param offset The position in the array where the name starts.
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException if the name has empty labels or labels longer than 63 characters.
+     */
+    public int writeName(String name, byte[] buffer, int offset) {
+        int end = name.length();
+        if(end > 0 && name.charAt(end - 1) == '.') end--;
+        if(end == 0) {
+            buffer[offset] = 0;
+            return 1;
+        }
+        if(!enabled) return writeLabels(name, 0, end, buffer, offset);
+
+        // label starts left to right; suffix hashes right to left, so each one extends the one of the next label
+        int labels = 0;
+        labelStarts[labels++] = 0;
+        for(int index = 0; index < end; index++) {
+            if(name.charAt(index) == '.') {
+                if(labels == MAX_LABELS) throw new IllegalArgumentException("Too many labels: " + name);
+                labelStarts[labels++] = index + 1;
+            }
+        }
+        int hash = 0;
+        int label = labels - 1;
+        for(int index = end - 1; index >= 0; index--) {
+            hash = 31 * hash + toLowerCase(name.charAt(index));
+            if(index == labelStarts[label]) suffixHashes[label--] = hash;
+        }
+
+        int link = 0;
+        int firstLinked = labels;
+        for(label = 0; label < labels; label++) {
+            link = find(name, labelStarts[label], end, suffixHashes[label], buffer);
+            if(link != 0) {
+                firstLinked = label;
+                break;
+            }
+        }
+
+        int pos = offset;
+        for(label = 0; label < firstLinked; label++) {
+            int messageOffset = pos - messageStart;
+            if(messageOffset <= MAX_LINK_OFFSET) add(messageOffset, suffixHashes[label]);
+            int labelEnd = label + 1 < labels? labelStarts[label + 1] - 1: end;
+            pos += writeLabel(name, labelStarts[label], labelEnd, buffer, pos);
+        }
+        if(link != 0) {
+            buffer[pos++] = (byte)(0xC0 | link >> 8);
+            buffer[pos++] = (byte)link;
+        } else {
+            buffer[pos++] = 0;
+        }
+        return pos - offset;
+    }
+
+    private int find(String name, int from, int end, int hash, byte[] buffer) {
+        int mask = offsets.length - 1;
+        for(int slot = hash & mask; offsets[slot] != 0; slot = (slot + 1) & mask) {
+            if(hashes[slot] == hash && matches(name, from, end, buffer, messageStart + offsets[slot])) {
+                return offsets[slot];
+            }
+        }
+        return 0;
+    }
+
+    /* compares the end of a name with a name in the message, following its links */
+    private boolean matches(String name, int from, int end, byte[] buffer, int position) {
+        int index = from;
+        while(true) {
+            int length = buffer[position] & 0xFF;
+            if((length & 0xC0) == 0xC0) {
+                position = messageStart + ((length & 0x3F) << 8 | buffer[position + 1] & 0xFF);
+                continue;
+            }
+            if(length == 0) return index > end;
+            if(index > end) return false;
+            int labelEnd = name.indexOf('.', index);
+            if(labelEnd == -1 || labelEnd > end) labelEnd = end;
+            if(labelEnd - index != length) return false;
+            for(int c = 1; c <= length; c++) {
+                if(toLowerCase(buffer[position + c] & 0xFF) != toLowerCase(name.charAt(index++))) return false;
+            }
+            index++;
+            position += length + 1;
+        }
+    }
+
+    private void add(int messageOffset, int hash) {
+        if((size + 1) * 2 > offsets.length) grow();
+        int mask = offsets.length - 1;
+        int slot = hash & mask;
+        while(offsets[slot] != 0) slot = (slot + 1) & mask;
+        offsets[slot] = messageOffset;
+        hashes[slot] = hash;
+        size++;
+    }
+
+    private void grow() {
+        int[] oldOffsets = offsets;
+        int[] oldHashes = hashes;
+        offsets = new int[oldOffsets.length * 2];
+        hashes = new int[oldOffsets.length * 2];
+        size = 0;
+        for(int slot = 0; slot < oldOffsets.length; slot++) {
+            if(oldOffsets[slot] != 0) add(oldOffsets[slot], oldHashes[slot]);
+        }
+    }
+
+    private static int writeLabels(String name, int from, int end, byte[] buffer, int offset) {
+        int pos = offset;
+        int labelStart = from;
+        for(int index = from; index <= end; index++) {
+            if(index == end || name.charAt(index) == '.') {
+                pos += writeLabel(name, labelStart, index, buffer, pos);
+                labelStart = index + 1;
+            }
+        }
+        buffer[pos++] = 0;
+        return pos - offset;
+    }
+
+    private static int writeLabel(String name, int from, int end, byte[] buffer, int offset) {
+        int length = end - from;
+        if(length == 0 || length > 63) throw new IllegalArgumentException("Invalid label in domain name: " + name);
+        buffer[offset] = (byte)length;
+        // TODO DNS i18n
+        for(int index = 0; index < length; index++) buffer[offset + 1 + index] = (byte)name.charAt(from + index);
+        return length + 1;
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z'? c + ('a' - 'A'): c;
+    }
+
+}
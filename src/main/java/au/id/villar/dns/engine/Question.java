@@ -15,8 +15,6 @@
  */
 package au.id.villar.dns.engine;
 
-import java.util.Map;
-
 /**
  * Class representing a DNS Standard question (See RFC-1035)
  */
@@ -46,10 +44,10 @@ public final class Question implements DNSItem {
         return dnsClass;
     }
 
-    int writeRawData(byte[] buffer, int offset, int linkOffset, Map<String, Integer> nameLinks) {
+    int writeRawData(byte[] buffer, int offset, NameCompressor compressor) {
         int usedBytes;
 
-        usedBytes = Utils.writeDomainNameAndUpdateLinks(dnsName, buffer, offset, linkOffset, nameLinks);
+        usedBytes = compressor.writeName(dnsName, buffer, offset);
         Utils.writeShort(dnsType.getValue(), buffer, offset + usedBytes);
         usedBytes += 2;
         Utils.writeShort(dnsClass.getValue(), buffer, offset + usedBytes);
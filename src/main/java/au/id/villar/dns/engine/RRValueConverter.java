@@ -65,6 +65,30 @@ public interface RRValueConverter {
     int writeRawData(Object rawObject, byte[] array, int offset, int linkOffset,
             Map<String, Integer> nameLinks);
 
+    /**
+     * Writes the "raw" RR data to an array in the format expected in a DNS message, compressing the names in it
+     * with the given compressor. Only the types defined in RFC-1035 may have their names compressed (RFC-3597,
+     * section 4), so the default implementation writes the data without compression.
+     * @param rawObject  "raw" RR data to be "serialized"
+     * @param array array where the internal data is to be written.
+     * @param offset the array's offset where the write operation starts.
+     * @param compressor the compressor of the message being written.
+     * @return the number of bytes written.
+     */
+    default int writeRawData(Object rawObject, byte[] array, int offset, NameCompressor compressor) {
+        return writeRawData(rawObject, array, offset, 0, null);
+    }
+
+    /**
+     * Length of the "raw" RR data when written without name compression, computed without writing it.
+     * @param rawObject "raw" RR data to be measured
+     * @return the number of bytes {@link #writeRawData(Object, byte[], int, int, Map)} writes with no name links, or
+     * -1 if this converter can't tell it without writing the data, which is what the default implementation returns.
+     */
+    default int getRawDataLength(Object rawObject) {
+        return -1;
+    }
+
     /**
      *
      * @param rawObject1
@@ -15,16 +15,22 @@
  */
 package au.id.villar.dns.engine;
 
-import java.util.Map;
+import java.util.HashMap;
 
 public final class ResourceRecord implements DNSItem {
 
+    private static final int MAX_RAW_DATA_LENGTH = 0xFFFF;
+    /* for converters unable to tell the length of their data without writing it */
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[MAX_RAW_DATA_LENGTH]);
+
     private final String dnsName;
     private final DNSType dnsType;
     private final DNSClass dnsClass;
     private final long ttl;
     private final RRValueConverter converter;
     private final Object data;
+    private int rawDataLength = -1;
+    private byte[] wireData;
 
     ResourceRecord(String dnsName, DNSType dnsType, DNSClass dnsClass, long ttl, RRValueConverter converter, Object data) {
         this.dnsName = dnsName;
@@ -51,10 +57,73 @@ public final class ResourceRecord implements DNSItem {
         return ttl;
     }
 
+    /**
+     * Creates a copy of this record with a different TTL.
+     * @param secondsCache the new TTL in seconds.
+     * @return a record with the same name, type, class and data as this one, and the given TTL.
+     */
+    public ResourceRecord withSecondsCache(long secondsCache) {
+        ResourceRecord copy = new ResourceRecord(dnsName, dnsType, dnsClass, secondsCache, converter, data);
+        copy.rawDataLength = rawDataLength;
+        copy.wireData = wireData;
+        return copy;
+    }
+
+    /**
+     * Creates a copy of this record that also keeps its RDATA in wire format, without name compression. The copy is
+     * written to messages and snapshots copying those bytes instead of encoding its data again, at the cost of
+     * the memory used by them. Names in the RDATA of the copy are not compressed when written to a message.
+     * @return a record with the same contents as this one keeping its RDATA in wire format, or this record if it
+     * already does.
+     */
+    public ResourceRecord withWireData() {
+        if(wireData != null) return this;
+        byte[] bytes = new byte[getRawDataLength()];
+        converter.writeRawData(data, bytes, 0, 0, null);
+        ResourceRecord copy = new ResourceRecord(dnsName, dnsType, dnsClass, ttl, converter, data);
+        copy.rawDataLength = bytes.length;
+        copy.wireData = bytes;
+        return copy;
+    }
+
+    /**
+     * Tells if this record keeps its RDATA in wire format, see {@link #withWireData()}.
+     * @return true if the RDATA is kept in wire format.
+     */
+    public boolean hasWireData() {
+        return wireData != null;
+    }
+
     public <T> T getData(Class<T> tClass) {
         return converter.convertValue(data, tClass);
     }
 
+    /**
+     * Length in bytes of the RDATA part of this record when written without name compression.
+     * @return the RDATA length.
+     */
+    public int getRawDataLength() {
+        int length = rawDataLength;
+        if(length == -1) {
+            length = converter.getRawDataLength(data);
+            if(length == -1) length = converter.writeRawData(data, SCRATCH.get(), 0, 0, new HashMap<>());
+            rawDataLength = length;
+        }
+        return length;
+    }
+
+    /**
+     * Writes the RDATA part of this record, without name compression, as it would appear in a DNS message.
+     * @param buffer array where the data is to be written.
+     * @param offset the array's offset where the write operation starts.
+     * @return the number of bytes written.
+     * @throws IndexOutOfBoundsException if the array is not big enough.
+     */
+    public int writeRawData(byte[] buffer, int offset) {
+        if(wireData != null) return copyWireData(buffer, offset);
+        return converter.writeRawData(data, buffer, offset, 0, null);
+    }
+
     public boolean dataIsEqual(ResourceRecord other) {
         return converter.areEqual(data, other.data);
     }
@@ -70,12 +139,12 @@ public final class ResourceRecord implements DNSItem {
                 '}';
     }
 
-    int writeRawData(byte[] buffer, int offset, int linkOffset, Map<String, Integer> nameLinks) {
+    int writeRawData(byte[] buffer, int offset, NameCompressor compressor) {
 
         int start = offset;
         int usedBytes;
 
-        usedBytes = Utils.writeDomainNameAndUpdateLinks(dnsName, buffer, offset, linkOffset, nameLinks);
+        usedBytes = compressor.writeName(dnsName, buffer, offset);
         offset += usedBytes;
         Utils.writeShort(dnsType.getValue(), buffer, offset);
         offset += 2;
@@ -83,10 +152,16 @@ public final class ResourceRecord implements DNSItem {
         offset += 2;
         Utils.writeInt((int) ttl, buffer, offset);
         offset += 6;
-        usedBytes = converter.writeRawData(data, buffer, offset, linkOffset + offset, nameLinks);
+        usedBytes = wireData != null? copyWireData(buffer, offset):
+                converter.writeRawData(data, buffer, offset, compressor);
         if (usedBytes < 0) return -1;
         offset -= 2;
         Utils.writeShort((short) usedBytes, buffer, offset);
         return offset - start + 2 + usedBytes;
     }
+
+    private int copyWireData(byte[] buffer, int offset) {
+        System.arraycopy(wireData, 0, buffer, offset, wireData.length);
+        return wireData.length;
+    }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.engine;
+
+/**
+ * Table indexed by the 16 bits of a short (types and classes of records), without boxing. It is split in 256 pages
+ * of 256 entries created when first needed, so a lookup is two array reads. Tables are copied on write: writes are
+ * rare (registering types or converters) while lookups happen for every record parsed, and they never lock.
+ */
+final class ShortTable<V> {
+
+    private volatile Object[][] pages = new Object[256][];
+
+    @SuppressWarnings("unchecked")
+    V get(short key) {
+        Object[] page = pages[(key >> 8) & 0xFF];
+        return page != null? (V)page[key & 0xFF]: null;
+    }
+
+    synchronized void put(short key, V value) {
+        Object[][] updated = pages.clone();
+        int pageIndex = (key >> 8) & 0xFF;
+        Object[] page = updated[pageIndex];
+        page = page != null? page.clone(): new Object[256];
+        page[key & 0xFF] = value;
+        updated[pageIndex] = page;
+        pages = updated;
+    }
+
+}
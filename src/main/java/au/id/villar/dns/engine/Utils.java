@@ -45,7 +45,7 @@ public class Utils {
         // TODO dns i18n
         ParseResult<String> result = new ParseResult<>();
         StringBuilder sBuilder = new StringBuilder();
-        int length = buffer[offset++];
+        int length = buffer[offset++] & 0xFF;
         result.bytesUsed = length + 1;
         while(length-- > 0) sBuilder.append((char)buffer[offset++]);
         result.value = sBuilder.toString();
@@ -53,50 +53,81 @@ public class Utils {
     }
 
 
+    /**
+     * Reads a domain name from a DNS message, following links to names already in the message.
+     * @param buffer the array holding the message from its first element.
+     * @param offset position in the array where the name starts.
+     * @param previousNames names already read and their offsets, used to avoid decoding them again; it is updated
+     *                      with the name read. It can be {@literal null}.
+     * @return the name and the number of bytes it takes at {@code offset}.
+     * @throws IllegalArgumentException if a link to a name not read before doesn't point to an earlier position, as it
+     *                                  could form a loop.
+     * @see DomainName#fromBuffer(byte[], int)
+     */
     public static ParseResult<String> getDomainName(byte[] buffer, int offset,
                                                     Map<Integer, String> previousNames) {
         // TODO dns i18n
         ParseResult<String> result = new ParseResult<>();
-        StringBuilder sBuilder = new StringBuilder(); // domainname
-        int length = 0;                               // length used in raw data
+        int length = 0;             // length used in raw data
+        int chars = 0;              // length of the labels read, with their dots
         int strOffset = offset;
-        boolean isPointer;
         boolean pointerUsed = false;
+        int lowestJump = offset;
+        String previous = null;
 
+        // first pass: measures the name, so the second one can fill a single array of the right size
         while(buffer[strOffset] != 0) {
-            // leer label y sumar la longitud empleada en rawData
-            isPointer = ((buffer[strOffset] & 0xC000) == 0xC000);
-            if(isPointer) {
+            if((buffer[strOffset] & 0xC0) == 0xC0) {
                 strOffset = (getInt(buffer, strOffset, 2) & 0x3FFF);
                 if(!pointerUsed) length += 2;
                 pointerUsed = true;
-                if(previousNames != null && previousNames.containsKey(strOffset)) {
-                    result.bytesUsed = length;
-                    if(length == 2) {
-                        result.value = previousNames.get(strOffset);
-                        return result;
-                    } else {
-                        sBuilder.append(previousNames.get(strOffset));
-                        result.value = sBuilder.toString();
-                        previousNames.put(strOffset, result.value);
-                        return result;
-                    }
-                }
+                if(previousNames != null && (previous = previousNames.get(strOffset)) != null) break;
+                if(strOffset >= lowestJump) throw new IllegalArgumentException("Invalid pointer in name at " + offset);
+                lowestJump = strOffset;
             } else {
                 if(!pointerUsed) length += buffer[strOffset] + 1;
+                chars += buffer[strOffset] + 1;
+                strOffset += buffer[strOffset] + 1;
             }
-            for(int i = buffer[strOffset++]; i > 0; i--)
-                sBuilder.append((char)buffer[strOffset++]);
-            sBuilder.append('.');
         }
-        if(sBuilder.length() > 0) sBuilder.deleteCharAt(sBuilder.length() - 1);
         result.bytesUsed = length + (pointerUsed? 0: 1);
-        result.value = sBuilder.toString();
+
+        if(chars == 0 && previous != null) {
+            result.value = previous;
+            return result;
+        }
+
+        char[] name = new char[previous != null && !previous.isEmpty()? chars + previous.length():
+                Math.max(chars - 1, 0)];
+        int pos = 0;
+        strOffset = offset;
+        while(pos < chars) {
+            if((buffer[strOffset] & 0xC0) == 0xC0) {
+                strOffset = (getInt(buffer, strOffset, 2) & 0x3FFF);
+                continue;
+            }
+            for(int i = buffer[strOffset++]; i > 0; i--) name[pos++] = (char)(buffer[strOffset++] & 0xFF);
+            if(pos < name.length) name[pos++] = '.';
+            else pos++;
+        }
+        if(previous != null) previous.getChars(0, previous.length(), name, name.length - previous.length());
+        result.value = new String(name);
         if(previousNames != null)
             previousNames.put(offset, result.value);
         return result;
     }
 
+    /**
+     * Writes a domain name in the format used in DNS messages, using links to names already written when
+     * possible (see RFC-1035, section 4.1.4).
+     * @param domainName the name to write.
+     * @param buffer the array where the name is written.
+     * @param offset position in the array where the name starts.
+     * @param linkOffset the message offset corresponding to {@code offset}.
+     * @param nameLinks names already in the message and their offsets, it is updated with the new names written.
+     *                  If {@literal null} the name is written in full, without compression.
+     * @return the number of bytes written.
+     */
     public static int writeDomainNameAndUpdateLinks(String domainName, byte[] buffer, int offset, int linkOffset,
             Map<String, Integer> nameLinks) {
 
@@ -107,7 +138,7 @@ public class Utils {
         int pos = offset;
         byte labelLength = 0;
 
-        nameLinks.put(domainName, linkOffset);
+        if(nameLinks != null) nameLinks.put(domainName, linkOffset);
 
         for (byte b : domainNameBytes) {
             index++;
@@ -120,7 +151,7 @@ public class Utils {
                 domainName = domainName.substring(dotPos + 1);
                 if(useLink(domainName, buffer, pos, linkOffset + (pos - offset), nameLinks)) {
                     return pos - offset + 2;
-                } else {
+                } else if(nameLinks != null) {
                     nameLinks.put(domainName, linkOffset + (pos - offset));
                 }
 
@@ -135,9 +166,19 @@ public class Utils {
 
     }
 
+    /* the bytes written by writeDomainNameAndUpdateLinks when no link is used */
+    public static int domainNameLength(String domainName) {
+        return domainName.getBytes().length + 2; // TODO transform acordingly (DNS i18n)
+    }
+
+    public static int textLength(String value) {
+        return value.getBytes().length + 1; // TODO i18n
+    }
+
     public static int writeText(String value, byte[] buffer, int offset) {
         // TODO i18n
         byte[] bytes = value.getBytes();
+        if(bytes.length > 255) throw new IllegalArgumentException("character-string longer than 255 bytes");
         buffer[offset] = (byte)bytes.length;
         System.arraycopy(bytes, 0, buffer, offset + 1, bytes.length);
         return bytes.length + 1;
@@ -219,7 +260,7 @@ public class Utils {
 
     private static boolean useLink(String domainName, byte[] buffer, int offset, int linkOffset,
             Map<String, Integer> nameLinks) {
-        Integer link = nameLinks.get(domainName);
+        Integer link = nameLinks != null? nameLinks.get(domainName): null;
         if(link == null) return false;
         int newLinkOffset = link | 0xC000;
         buffer[offset] = (byte)(newLinkOffset >> 8);
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of types or classes, indexed by their numeric values in a {@link ShortTable} and by their mnemonics in a
+ * hash map. Lookups don't lock nor box; registrations are synchronized and copy the indexes.
+ */
+final class ValueRegistry<T extends ValueMnemonic> {
+
+    private final String kind;
+    private final ShortTable<T> byValue = new ShortTable<>();
+    private volatile Map<String, T> byMnemonic = new HashMap<>();
+
+    ValueRegistry(String kind) {
+        this.kind = kind;
+    }
+
+    T get(short value) {
+        return byValue.get(value);
+    }
+
+    T get(String mnemonic) {
+        return byMnemonic.get(mnemonic);
+    }
+
+    /* returns the item already registered if it has the same value and mnemonic */
+    synchronized T register(T item) {
+        T byItsValue = byValue.get(item.getValue());
+        T byItsMnemonic = byMnemonic.get(item.getMnemonic());
+        if(byItsValue != null && byItsValue.equals(item)) return byItsValue;
+        if(byItsValue != null)
+            throw new IllegalArgumentException(kind + " already registered with other mnemonic: " + byItsValue);
+        if(byItsMnemonic != null)
+            throw new IllegalArgumentException(kind + " already registered with other number: " + byItsMnemonic);
+        Map<String, T> updated = new HashMap<>(byMnemonic);
+        updated.put(item.getMnemonic(), item);
+        byValue.put(item.getValue(), item);
+        byMnemonic = updated;
+        return item;
+    }
+
+}
@@ -16,6 +16,7 @@
 package au.id.villar.dns.net;
 
 import au.id.villar.dns.DNSException;
+import au.id.villar.dns.engine.BufferPool;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -38,8 +39,18 @@ abstract class AbstractDNSQueryClient implements DNSQueryClient {
     ByteBuffer result;
     Status status;
 
+    private final BufferPool pool;
     private ResultHandler resultHandler;
 
+    AbstractDNSQueryClient() {
+        this(null);
+    }
+
+    /* responses are borrowed from the pool and given back when the result handler returns */
+    AbstractDNSQueryClient(BufferPool pool) {
+        this.pool = pool;
+    }
+
     @Override
     public boolean startQuery(ByteBuffer query, String address, int port, Selector selector,
             ResultHandler resultHandler) {
@@ -60,6 +71,7 @@ abstract class AbstractDNSQueryClient implements DNSQueryClient {
             this.query = query;
             return checkIfResultAndNotify(selector, address, port) == NO_OP;
         } catch (IOException | DNSException e) {
+            releaseResult();
             resultHandler.result(null, e instanceof DNSException? (DNSException)e: new DNSException(e));
             return true;
         }
@@ -74,6 +86,7 @@ abstract class AbstractDNSQueryClient implements DNSQueryClient {
 
         } catch(IOException | DNSException e) {
             close(channel);
+            releaseResult();
             status = Status.ERROR;
             resultHandler.result(null, e instanceof DNSException? (DNSException)e: new DNSException(e));
             return 0;
@@ -97,6 +110,14 @@ abstract class AbstractDNSQueryClient implements DNSQueryClient {
         }
     }
 
+    ByteBuffer allocate(int capacity) {
+        return pool != null? pool.acquire(capacity): ByteBuffer.allocate(capacity);
+    }
+
+    void release(ByteBuffer buffer) {
+        if(pool != null) pool.release(buffer);
+    }
+
     void checkIdMatch(int responseOffset) throws DNSException {
         byte[] query = this.query.array();
         byte[] response = this.result.array();
@@ -108,10 +129,21 @@ abstract class AbstractDNSQueryClient implements DNSQueryClient {
     private int checkIfResultAndNotify(Selector selector, String address, int port)
             throws IOException, DNSException {
         int ops = internalDoIO(selector, address, port);
-        if(ops == NO_OP) resultHandler.result(result, null);
+        if(ops == NO_OP) {
+            try {
+                resultHandler.result(result, null);
+            } finally {
+                releaseResult();
+            }
+        }
         return ops;
     }
 
+    private void releaseResult() {
+        release(result);
+        result = null;
+    }
+
     private IOException close(Channel channel) {
         try {
             if(channel != null && channel.isOpen()) channel.close();
@@ -16,6 +16,7 @@
 package au.id.villar.dns.net;
 
 import au.id.villar.dns.DNSException;
+import au.id.villar.dns.engine.BufferPool;
 import au.id.villar.dns.engine.Utils;
 
 import java.io.Closeable;
@@ -44,16 +45,30 @@ public class DNSNetClient implements Closeable {
 
     private static final int DNS_PORT = 53;
 
+    private final BufferPool pool;
     private final UDPDNSQueryClient udpClient;
     private final TCPDNSQueryClient tcpClient;
     private boolean needsTCP;
 
     /** Constructor */
     public DNSNetClient() {
+        this.pool = null;
         this.udpClient = new UDPDNSQueryClient();
         this.tcpClient = new TCPDNSQueryClient();
     }
 
+    /**
+     * Creates a client that borrows the buffers for responses from a pool. They are given back to the pool as soon
+     * as the {@link ResultHandler} returns, so handlers must not keep them; {@link #query(ByteBuffer, String, long)}
+     * returns a copy.
+     * @param pool The pool where buffers are taken from.
+     */
+    public DNSNetClient(BufferPool pool) {
+        this.pool = pool;
+        this.udpClient = new UDPDNSQueryClient(pool);
+        this.tcpClient = new TCPDNSQueryClient(pool);
+    }
+
     /**
      * Executes a query synchronously.
      * @param question A buffer containing the raw DNS query message, prefixed with a two-byte number specifying the
@@ -73,7 +88,7 @@ public class DNSNetClient implements Closeable {
         long start = System.currentTimeMillis();
         boolean udpDone = false;
         boolean done = udpClient.startQuery(question, dnsServerAddress, DNS_PORT, null, (r, e) -> {
-            holder.result = r;
+            holder.result = keep(r);
             holder.exception = e;
         });
         while(!done && !Thread.interrupted()) {
@@ -86,7 +101,7 @@ public class DNSNetClient implements Closeable {
                     question.position(0);
                     done = tcpClient.startQuery(question, dnsServerAddress, DNS_PORT, null, (r, e) -> {
                         if(r != null) r.position(2);
-                        holder.result = r;
+                        holder.result = keep(r);
                         holder.exception = e;
                     });
                 }
@@ -199,6 +214,15 @@ public class DNSNetClient implements Closeable {
         }
     }
 
+    /* copies a pooled response so it can be used after the handler returns */
+    private ByteBuffer keep(ByteBuffer result) {
+        if(pool == null || result == null) return result;
+        ByteBuffer copy = ByteBuffer.allocate(result.limit());
+        copy.put(result.array(), 0, result.limit());
+        copy.position(result.position());
+        return copy;
+    }
+
     private static boolean udpIsTruncated(ByteBuffer udpResult) {
         return udpResult != null && (Utils.getInt(udpResult.array(), 2, 2) & 0x0200) != 0;
     }
@@ -16,6 +16,7 @@
 package au.id.villar.dns.net;
 
 import au.id.villar.dns.DNSException;
+import au.id.villar.dns.engine.BufferPool;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -27,6 +28,13 @@ class TCPDNSQueryClient extends AbstractDNSQueryClient {
 
     private ByteBuffer buffer;
 
+    TCPDNSQueryClient() {
+    }
+
+    TCPDNSQueryClient(BufferPool pool) {
+        super(pool);
+    }
+
     @Override
     protected int internalDoIO(Selector selector, String address, int port) throws IOException, DNSException {
         SocketChannel tcpChannel = (SocketChannel)channel;
@@ -61,7 +69,7 @@ class TCPDNSQueryClient extends AbstractDNSQueryClient {
                     status = Status.SENDING;
                     return SelectionKey.OP_WRITE;
                 }
-                buffer = ByteBuffer.allocate(UDP_DATAGRAM_MAX_SIZE * 2);
+                buffer = allocate(UDP_DATAGRAM_MAX_SIZE * 2);
 
             case RECEIVING:
 
@@ -96,9 +104,10 @@ class TCPDNSQueryClient extends AbstractDNSQueryClient {
     }
 
     private void enlargeBuffer() {
-        ByteBuffer newBuffer = ByteBuffer.allocate(buffer.capacity() + UDP_DATAGRAM_MAX_SIZE);
+        ByteBuffer newBuffer = allocate(buffer.capacity() * 2);
         buffer.flip();
         newBuffer.put(buffer);
+        release(buffer);
         buffer = newBuffer;
     }
 
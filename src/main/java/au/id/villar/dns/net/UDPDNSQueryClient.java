@@ -16,6 +16,7 @@
 package au.id.villar.dns.net;
 
 import au.id.villar.dns.DNSException;
+import au.id.villar.dns.engine.BufferPool;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -29,6 +30,13 @@ class UDPDNSQueryClient extends AbstractDNSQueryClient {
     private long udpTimestamp;
     private ByteBuffer buffer;
 
+    UDPDNSQueryClient() {
+    }
+
+    UDPDNSQueryClient(BufferPool pool) {
+        super(pool);
+    }
+
     @Override
     protected int internalDoIO(Selector selector, String address, int port) throws IOException, DNSException {
 
@@ -52,7 +60,7 @@ class UDPDNSQueryClient extends AbstractDNSQueryClient {
                     status = Status.SENDING;
                     return SelectionKey.OP_WRITE;
                 }
-                buffer = ByteBuffer.allocate(UDP_DATAGRAM_MAX_SIZE);
+                buffer = allocate(UDP_DATAGRAM_MAX_SIZE);
 
             case RECEIVING:
 
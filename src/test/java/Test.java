@@ -16,6 +16,7 @@
 import au.id.villar.dns.AnswerProcess;
 import au.id.villar.dns.DNSException;
 import au.id.villar.dns.Resolver;
+import au.id.villar.dns.RootHints;
 import au.id.villar.dns.TestUtils;
 import au.id.villar.dns.cache.DNSCache;
 import au.id.villar.dns.cache.SimpleDNSCache;
@@ -30,26 +31,9 @@ public class Test {
 
     public static void main(String[] args) throws InterruptedException, DNSException, TimeoutException {
 
-        List<String> rootServers = Arrays.asList(
-                    "198.41.0.4",
-                    "192.228.79.201",
-                    "192.33.4.12",
-                    "199.7.91.13",
-                    "192.203.230.10",
-                    "192.5.5.241",
-                    "192.112.36.4",
-                    "128.63.2.53",
-                    "192.36.148.17",
-                    "192.58.128.30",
-                    "193.0.14.129",
-                    "199.7.83.42",
-                    "202.12.27.33"
-        );
-
         DNSEngine engine = new DNSEngine();
         DNSCache cache = new SimpleDNSCache(1000);
-        for(String root: rootServers) cache.addResourceRecord(engine.createResourceRecord("", DNSType.A, DNSClass.IN, 0, root));
-        cache.addResourceRecord(engine.createResourceRecord("", DNSType.NS, DNSClass.IN, 0, ""));
+        RootHints.getDefault(engine).pinInto(cache);
 
         AnswerProcess process = new AnswerProcess(engine, cache);
         List<ResourceRecord> response = process.lookUp("villar.me", DNSType.ALL, 10_000_000);
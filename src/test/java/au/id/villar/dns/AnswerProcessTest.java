@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.dns;
+
+import au.id.villar.dns.cache.ConcurrentDNSCache;
+import au.id.villar.dns.cache.DNSCache;
+import au.id.villar.dns.cache.DelegationCache;
+import au.id.villar.dns.converter.SoaValueConverter;
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.Question;
+import au.id.villar.dns.engine.ResourceRecord;
+import au.id.villar.dns.engine.ResponseCode;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class AnswerProcessTest {
+
+    private final DNSEngine engine = new DNSEngine();
+
+    @Test
+    public void cachedNxDomainAnswersAnyType() throws Exception {
+        RecordingCache cache = new RecordingCache(new ConcurrentDNSCache());
+        Question question = engine.createQuestion("nx.example.com", DNSType.A, DNSClass.IN);
+        cache.addNegativeAnswer(question, ResponseCode.NAME_ERROR, soa());
+
+        try(AnswerProcess process = new AnswerProcess(engine, cache)) {
+            assertTrue(process.lookUp("nx.example.com", DNSType.MX, 1000).isEmpty());
+        }
+        assertEquals(Collections.singletonList(engine.createQuestion("nx.example.com", DNSType.MX, DNSClass.IN)),
+                cache.lookUps);
+    }
+
+    @Test
+    public void cachedNoDataAnswersOnlyItsType() throws Exception {
+        RecordingCache cache = new RecordingCache(new ConcurrentDNSCache());
+        Question question = engine.createQuestion("www.example.com", DNSType.AAAA, DNSClass.IN);
+        cache.addNegativeAnswer(question, ResponseCode.NO_ERROR, soa());
+
+        try(AnswerProcess process = new AnswerProcess(engine, cache)) {
+            assertTrue(process.lookUp("www.example.com", DNSType.AAAA, 1000).isEmpty());
+            assertEquals(Collections.singletonList(question), cache.lookUps);
+
+            cache.lookUps.clear();
+            assertTrue(process.lookUp("www.example.com", DNSType.A, 1000).isEmpty());
+            assertTrue("name servers not looked for", cache.lookUps.size() > 1);
+        }
+    }
+
+    @Test
+    public void negativeAnswersAreOnlyCachedWithinTheZoneOfTheServer() {
+        Question question = engine.createQuestion("nx.example.com", DNSType.A, DNSClass.IN);
+        assertTrue(AnswerProcess.isNegativeAnswerInBailiwick(question, soa(), "example.com"));
+        assertTrue(AnswerProcess.isNegativeAnswerInBailiwick(question, soa(), "com"));
+        assertFalse(AnswerProcess.isNegativeAnswerInBailiwick(question, soa(), "other.com"));
+        assertFalse(AnswerProcess.isNegativeAnswerInBailiwick(question, null, "example.com"));
+        assertFalse(AnswerProcess.isNegativeAnswerInBailiwick(
+                engine.createQuestion("www.other.com", DNSType.A, DNSClass.IN), soa(), "com"));
+    }
+
+    @Test
+    public void staleRecordsAreServedWhenTheLookUpFails() throws Exception {
+        ConcurrentDNSCache concurrentCache = new ConcurrentDNSCache();
+        concurrentCache.setServeStale(60);
+        concurrentCache.addResourceRecord(
+                engine.createResourceRecord("www.example.com", DNSType.A, DNSClass.IN, 1, "10.0.0.1"));
+        RecordingCache cache = new RecordingCache(concurrentCache);
+        List<Question> refreshed = new CopyOnWriteArrayList<>();
+        Thread.sleep(1100);
+        cache.failing = true;
+
+        try(AnswerProcess process = new AnswerProcess(engine, cache, refreshed::add)) {
+            List<ResourceRecord> records = process.lookUp("www.example.com", DNSType.A, 1000);
+            assertEquals(1, records.size());
+            assertEquals("10.0.0.1", records.get(0).getData(String.class));
+            assertEquals(30, records.get(0).getSecondsCache());
+            assertEquals(Collections.singletonList(engine.createQuestion("www.example.com", DNSType.A, DNSClass.IN)),
+                    refreshed);
+
+            try {
+                process.refresh("www.example.com", DNSType.A, 1000);
+                fail("refresh answered with stale records");
+            } catch(DNSException e) {
+                assertEquals(1, refreshed.size());
+            }
+
+            try {
+                process.lookUp("other.example.com", DNSType.A, 1000);
+                fail("failure without stale records not reported");
+            } catch(DNSException e) {
+                assertEquals(1, refreshed.size());
+            }
+        }
+    }
+
+    @Test
+    public void searchGoesOnFromTheParentZoneWhenTheDelegationFails() throws Exception {
+        RecordingCache cache = new RecordingCache(new ConcurrentDNSCache());
+        DelegationCache delegationCache = new DelegationCache();
+        // nothing listens on this address, so the query fails as soon as the port is found unreachable
+        delegationCache.addDelegation("com",
+                Collections.singletonList(engine.createResourceRecord("example.com", DNSType.NS, DNSClass.IN, 300,
+                        "ns.example.com")),
+                Collections.singletonList(engine.createResourceRecord("ns.example.com", DNSType.A, DNSClass.IN, 300,
+                        "127.0.0.2")));
+
+        try(AnswerProcess process = new AnswerProcess(engine, cache)) {
+            process.setDelegationCache(delegationCache);
+            process.lookUp("www.example.com", DNSType.A, 5000);
+            fail("failure of all the name servers not reported");
+        } catch(DNSException e) {
+            assertTrue("parent zone not tried",
+                    cache.lookUps.contains(engine.createQuestion("com", DNSType.NS, DNSClass.IN)));
+            assertNull(delegationCache.findClosestDelegation("www.example.com"));
+        }
+    }
+
+    private ResourceRecord soa() {
+        return engine.createResourceRecord("example.com", DNSType.SOA, DNSClass.IN, 300,
+                new SoaValueConverter.SoaData("ns.example.com", "admin.example.com", 1, 3600, 600, 86400, 300));
+    }
+
+    /* a cache recording the questions looked up asynchronously, as AnswerProcess does, and that can fail them */
+    private static class RecordingCache implements DNSCache {
+
+        private final DNSCache cache;
+        private final List<Question> lookUps = new CopyOnWriteArrayList<>();
+        private volatile boolean failing;
+
+        RecordingCache(DNSCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public void addResourceRecord(ResourceRecord resourceRecord) {
+            cache.addResourceRecord(resourceRecord);
+        }
+
+        @Override
+        public CompletionStage<List<ResourceRecord>> getResourceRecords(Question question) {
+            lookUps.add(question);
+            if(!failing) return cache.getResourceRecords(question);
+            CompletableFuture<List<ResourceRecord>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new DNSException("cache unavailable"));
+            return failed;
+        }
+
+        @Override
+        public void addNegativeAnswer(Question question, ResponseCode responseCode, ResourceRecord soa) {
+            cache.addNegativeAnswer(question, responseCode, soa);
+        }
+
+        @Override
+        public ResponseCode getNegativeAnswer(Question question) {
+            return cache.getNegativeAnswer(question);
+        }
+
+        @Override
+        public List<ResourceRecord> getStaleResourceRecords(Question question) {
+            return cache.getStaleResourceRecords(question);
+        }
+
+        @Override
+        public void clear() {
+            cache.clear();
+        }
+    }
+
+}
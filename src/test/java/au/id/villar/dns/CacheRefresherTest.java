@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.dns;
+
+import au.id.villar.dns.cache.ConcurrentDNSCache;
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.Question;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CacheRefresherTest {
+
+    @Test
+    public void recordsNearExpirationAreRefreshedOnce() throws Exception {
+        DNSEngine engine = new DNSEngine();
+        AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+        ConcurrentDNSCache cache = new ConcurrentDNSCache(clock::get);
+        List<Runnable> tasks = new ArrayList<>();
+        CacheRefresher refresher = new CacheRefresher(engine, cache, tasks::add, 10, 1000, clock::get);
+        cache.setRefreshHandler(refresher);
+        cache.addResourceRecord(engine.createResourceRecord("www.example.com", DNSType.A, DNSClass.IN, 2, "10.0.0.1"));
+        Question question = engine.createQuestion("www.example.com", DNSType.A, DNSClass.IN);
+
+        assertEquals(1, cache.getResourceRecords(question, 0).size());
+        assertEquals(0, refresher.getRequestedCount());
+
+        clock.addAndGet(1900);
+        for(int n = 0; n < 5; n++) assertEquals(1, cache.getResourceRecords(question, 0).size());
+        assertEquals(1, refresher.getRequestedCount());
+        assertEquals(0, refresher.getDroppedCount());
+        assertEquals(1, tasks.size());
+
+        tasks.get(0).run();
+        assertEquals(1, refresher.getCompletedCount() + refresher.getFailedCount());
+    }
+
+    @Test
+    public void refreshesOverTheRateAreDropped() {
+        DNSEngine engine = new DNSEngine();
+        AtomicLong clock = new AtomicLong(1_000_000);
+        List<Runnable> tasks = new ArrayList<>();
+        CacheRefresher refresher =
+                new CacheRefresher(engine, new ConcurrentDNSCache(), tasks::add, 2, 1000, clock::get);
+        for(int n = 0; n < 5; n++) refresher.refresh(engine.createQuestion("name" + n, DNSType.A, DNSClass.IN));
+        assertEquals(5, refresher.getRequestedCount());
+        assertEquals(2, tasks.size());
+        assertEquals(3, refresher.getDroppedCount());
+
+        clock.addAndGet(1000);
+        refresher.refresh(engine.createQuestion("name0", DNSType.A, DNSClass.IN));
+        assertEquals(3, tasks.size());
+    }
+
+}
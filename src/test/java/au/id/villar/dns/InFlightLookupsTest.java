@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.dns;
+
+import au.id.villar.dns.cache.DNSCache;
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.Question;
+import au.id.villar.dns.engine.ResourceRecord;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class InFlightLookupsTest {
+
+    private final DNSEngine engine = new DNSEngine();
+
+    @Test
+    public void followersGetTheResultOfTheLeader() throws Exception {
+        PendingCache cache = new PendingCache();
+        InFlightLookups lookups = new InFlightLookups();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<List<ResourceRecord>> leader = executor.submit(() -> lookUp(cache, lookups, 5000));
+            waitUntil(() -> lookups.size() == 1);
+            Future<List<ResourceRecord>> follower1 = executor.submit(() -> lookUp(cache, lookups, 5000));
+            Future<List<ResourceRecord>> follower2 = executor.submit(() -> lookUp(cache, lookups, 5000));
+            waitUntil(() -> lookups.getCoalescedCount() == 2);
+
+            cache.answer.complete(Collections.singletonList(
+                    engine.createResourceRecord("www.example.com", DNSType.A, DNSClass.IN, 100, "10.0.0.1")));
+
+            for(Future<List<ResourceRecord>> lookUp: Arrays.asList(leader, follower1, follower2)) {
+                List<ResourceRecord> result = lookUp.get(5, TimeUnit.SECONDS);
+                assertEquals(1, result.size());
+                assertEquals("10.0.0.1", result.get(0).getData(String.class));
+            }
+            assertEquals(1, cache.lookUps);
+            assertEquals(0, lookups.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failureOfTheLeaderIsGivenToFollowers() throws Exception {
+        PendingCache cache = new PendingCache();
+        InFlightLookups lookups = new InFlightLookups();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<ResourceRecord>> leader = executor.submit(() -> lookUp(cache, lookups, 5000));
+            waitUntil(() -> lookups.size() == 1);
+            Future<List<ResourceRecord>> follower = executor.submit(() -> lookUp(cache, lookups, 5000));
+            waitUntil(() -> lookups.getCoalescedCount() == 1);
+
+            cache.answer.completeExceptionally(new DNSException("cache unavailable"));
+
+            for(Future<List<ResourceRecord>> lookUp: Arrays.asList(leader, follower)) {
+                try {
+                    lookUp.get(5, TimeUnit.SECONDS);
+                    fail("failure not propagated");
+                } catch(ExecutionException e) {
+                    assertTrue(e.getCause() instanceof DNSException);
+                }
+            }
+            assertEquals(0, lookups.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void timeoutOfTheLeaderIsGivenToFollowers() throws Exception {
+        PendingCache cache = new PendingCache();
+        InFlightLookups lookups = new InFlightLookups();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<ResourceRecord>> leader = executor.submit(() -> lookUp(cache, lookups, 300));
+            waitUntil(() -> lookups.size() == 1);
+            Future<List<ResourceRecord>> follower = executor.submit(() -> lookUp(cache, lookups, 5000));
+
+            for(Future<List<ResourceRecord>> lookUp: Arrays.asList(leader, follower)) {
+                try {
+                    lookUp.get(5, TimeUnit.SECONDS);
+                    fail("timeout not propagated");
+                } catch(ExecutionException e) {
+                    assertTrue(e.getCause() instanceof TimeoutException);
+                }
+            }
+            assertEquals(1, lookups.getCoalescedCount());
+            assertEquals(0, lookups.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void followerResolvesItselfIfTheLeaderIsInterrupted() throws Exception {
+        PendingCache cache = new PendingCache();
+        InFlightLookups lookups = new InFlightLookups();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<ResourceRecord>> leader = executor.submit(() -> lookUp(cache, lookups, 5000));
+            waitUntil(() -> lookups.size() == 1);
+            Future<List<ResourceRecord>> follower = executor.submit(() -> lookUp(cache, lookups, 5000));
+            waitUntil(() -> lookups.getCoalescedCount() == 1);
+
+            leader.cancel(true);
+            waitUntil(() -> cache.lookUps == 2);
+            cache.answer.complete(Collections.singletonList(
+                    engine.createResourceRecord("www.example.com", DNSType.A, DNSClass.IN, 100, "10.0.0.1")));
+
+            assertEquals(1, follower.get(5, TimeUnit.SECONDS).size());
+            assertEquals(0, lookups.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<ResourceRecord> lookUp(DNSCache cache, InFlightLookups lookups, long timeout) throws Exception {
+        try(AnswerProcess process = new AnswerProcess(engine, cache, null, lookups)) {
+            return process.lookUp("www.example.com", DNSType.A, timeout);
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean()) {
+            assertTrue("condition not met", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /* a cache that answers all lookups when the test completes "answer" */
+    private static class PendingCache implements DNSCache {
+
+        private final CompletableFuture<List<ResourceRecord>> answer = new CompletableFuture<>();
+        private volatile int lookUps;
+
+        @Override
+        public void addResourceRecord(ResourceRecord resourceRecord) {
+        }
+
+        @Override
+        public synchronized CompletionStage<List<ResourceRecord>> getResourceRecords(Question question) {
+            lookUps++;
+            return answer;
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+
+}
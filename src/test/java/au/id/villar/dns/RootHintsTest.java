@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns;
+
+import au.id.villar.dns.cache.ConcurrentDNSCache;
+import au.id.villar.dns.cache.DNSCache;
+import au.id.villar.dns.cache.SimpleDNSCache;
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.ResourceRecord;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RootHintsTest {
+
+    @Test
+    public void defaultHintsAreRead() {
+        DNSEngine engine = new DNSEngine();
+        RootHints hints = RootHints.getDefault(engine);
+        assertEquals(39, hints.getRecords().size());
+        assertEquals(13, hints.getAddresses(true, false).size());
+        assertEquals(26, hints.getAddresses(true, true).size());
+        assertEquals("198.41.0.4", hints.getAddresses(true, false).get(0));
+        ResourceRecord ns = hints.getRecords().get(0);
+        assertEquals("", ns.getDnsName());
+        assertEquals("A.ROOT-SERVERS.NET", ns.getData(String.class));
+    }
+
+    @Test
+    public void invalidHintsAreRejected() {
+        DNSEngine engine = new DNSEngine();
+        try {
+            RootHints.read(new StringReader(". 1000 NS a.root.\na.root. 1000 MX 10 mail\n"), engine);
+            fail("MX record accepted");
+        } catch(Exception e) {
+            assertTrue(e.getMessage().contains("line 2"));
+        }
+        try {
+            RootHints.read(new StringReader("; only comments\n\na.root. 1000 IN A 10.0.0.1\n"), engine);
+            fail("hints without name servers accepted");
+        } catch(Exception e) {
+            assertTrue(e instanceof DNSException);
+        }
+    }
+
+    @Test
+    public void pinnedHintsAreNeitherEvictedNorExpired() throws Exception {
+        DNSEngine engine = new DNSEngine();
+        RootHints hints = RootHints.read(new StringReader(
+                ".          0   NS a.root.\n" +
+                "a.root.    0   IN A  10.0.0.1 ; expired as soon as added\n" +
+                "a.root.    0   AAAA  2001:503:ba3e::2:30\n"), engine);
+        for(DNSCache cache: new DNSCache[] {new SimpleDNSCache(2), new ConcurrentDNSCache(4096)}) {
+            hints.pinInto(cache);
+            for(int n = 0; n < 200; n++) {
+                cache.addResourceRecord(engine.createResourceRecord("name" + n, DNSType.A, DNSClass.IN, 1000,
+                        "10.0.1." + (n & 0xFF)));
+            }
+            cache.addResourceRecord(engine.createResourceRecord("a.root", DNSType.A, DNSClass.IN, 1000, "10.0.0.1"));
+            cache.addResourceRecord(engine.createResourceRecord("a.root", DNSType.A, DNSClass.IN, 1000, "10.0.0.2"));
+
+            assertEquals(1, cache.getResourceRecords(engine.createQuestion("", DNSType.NS, DNSClass.IN), 0).size());
+            List<ResourceRecord> records =
+                    cache.getResourceRecords(engine.createQuestion("A.ROOT", DNSType.A, DNSClass.IN), 0);
+            assertEquals(2, records.size());
+            assertEquals(3, cache.getResourceRecords(engine.createQuestion("a.root", DNSType.ALL, DNSClass.IN), 0)
+                    .size());
+
+            cache.clear();
+            assertEquals(0, cache.getResourceRecords(engine.createQuestion("", DNSType.NS, DNSClass.IN), 0).size());
+        }
+    }
+
+}
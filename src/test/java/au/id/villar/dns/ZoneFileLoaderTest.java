@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns;
+
+import au.id.villar.dns.cache.ConcurrentDNSCache;
+import au.id.villar.dns.converter.MxValueConverter;
+import au.id.villar.dns.converter.SoaValueConverter;
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSMessage;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.Opcode;
+import au.id.villar.dns.engine.Question;
+import au.id.villar.dns.engine.ResourceRecord;
+import au.id.villar.dns.engine.ResponseCode;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ZoneFileLoaderTest {
+
+    private static final String ZONE =
+            "$ORIGIN example.com.\n" +
+            "$TTL 1h\n" +
+            "@   IN  SOA ns1 hostmaster (\n" +
+            "        2016010101 ; serial\n" +
+            "        7200 3600 1w 300 )\n" +
+            "    IN  NS  ns1\n" +
+            "    IN  NS  ns2.example.net.\n" +
+            "    IN  MX  10 mail\n" +
+            "ns1 600 A   10.0.0.1\n" +
+            "    IN  AAAA 2001:db8::1\n" +
+            "mail    A   10.0.0.2\n" +
+            "txt     TXT \"hello; world\" \"second\"\n" +
+            "$ORIGIN sub\n" +
+            "www     CNAME @\n";
+
+    @Test
+    public void masterFileIsLoaded() throws Exception {
+        DNSEngine engine = new DNSEngine();
+        ConcurrentDNSCache cache = new ConcurrentDNSCache();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ZoneFileLoader loader = new ZoneFileLoader(engine, executor, 2, 3);
+            assertEquals(9, loader.load(new StringReader(ZONE), "", cache));
+        } finally {
+            executor.shutdown();
+        }
+
+        List<ResourceRecord> records =
+                cache.getResourceRecords(engine.createQuestion("example.com", DNSType.SOA, DNSClass.IN), 0);
+        assertEquals(1, records.size());
+        SoaValueConverter.SoaData soa = records.get(0).getData(SoaValueConverter.SoaData.class);
+        assertEquals("ns1.example.com", soa.getDomainName());
+        assertEquals(2016010101L, soa.getSerial());
+        assertEquals(7 * 24 * 3600, soa.getExpire());
+        assertTrue(records.get(0).getSecondsCache() > 3590);
+
+        assertEquals(2, cache.getResourceRecords(engine.createQuestion("example.com", DNSType.NS, DNSClass.IN), 0)
+                .size());
+        records = cache.getResourceRecords(engine.createQuestion("example.com", DNSType.MX, DNSClass.IN), 0);
+        assertEquals("mail.example.com", records.get(0).getData(MxValueConverter.MxData.class).getMailServer());
+        records = cache.getResourceRecords(engine.createQuestion("ns1.example.com", DNSType.ALL, DNSClass.IN), 0);
+        assertEquals(2, records.size());
+        assertTrue(records.get(0).getSecondsCache() <= 600);
+        records = cache.getResourceRecords(engine.createQuestion("txt.example.com", DNSType.TXT, DNSClass.IN), 0);
+        assertEquals("hello; world second", records.get(0).getData(String.class));
+        records = cache.getResourceRecords(
+                engine.createQuestion("www.sub.example.com", DNSType.CNAME, DNSClass.IN), 0);
+        assertEquals("sub.example.com", records.get(0).getData(String.class));
+    }
+
+    @Test
+    public void errorsReportTheirLine() throws Exception {
+        DNSEngine engine = new DNSEngine();
+        ZoneFileLoader loader = new ZoneFileLoader(engine, Runnable::run, 1, 10);
+        assertError(loader, "a 100 A 10.0.0.1\nb 100 MX mail\n", "line 2");
+        assertError(loader, "a A 10.0.0.1\n", "line 1");
+        assertError(loader, "a 100 SOA ns mail ( 1 2 3 4 5\n", "line 1");
+        assertError(loader, "$INCLUDE other.zone\n", "line 1");
+    }
+
+    @Test
+    public void txtCharacterStringsKeepTheirBoundaries() throws Exception {
+        DNSEngine engine = new DNSEngine();
+        ConcurrentDNSCache cache = new ConcurrentDNSCache();
+        String first = repeat('a', 200);
+        String second = repeat('b', 255);
+        ZoneFileLoader loader = new ZoneFileLoader(engine, Runnable::run, 1, 10);
+        assertEquals(1, loader.load(new StringReader("long 100 TXT \"" + first + "\" \"" + second + "\"\n"),
+                "example.com", cache));
+
+        ResourceRecord record = cache.getResourceRecords(
+                engine.createQuestion("long.example.com", DNSType.TXT, DNSClass.IN), 0).get(0);
+        assertEquals(Arrays.asList(first, second), record.getData(List.class));
+
+        DNSMessage message = engine.createMessage((short)1, true, Opcode.QUERY, false, false, false, false, (byte)0,
+                ResponseCode.NO_ERROR, new Question[0], new ResourceRecord[] {record}, null, null);
+        ByteBuffer wire = engine.createBufferFromMessage(message);
+        wire.position(2);
+        ResourceRecord parsed = engine.createMessageView(wire).getAnswer(0);
+        assertEquals(Arrays.asList(first, second), parsed.getData(List.class));
+        assertEquals(first + " " + second, parsed.getData(String.class));
+
+        assertError(loader, "long 100 TXT \"" + first + second + "\"\n", "line 1");
+    }
+
+    private static String repeat(char c, int times) {
+        char[] chars = new char[times];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void assertError(ZoneFileLoader loader, String zone, String expected) throws Exception {
+        try {
+            loader.load(new StringReader(zone), "test", new ConcurrentDNSCache());
+            fail("invalid zone loaded: " + zone);
+        } catch(DNSException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(expected));
+        }
+    }
+
+}
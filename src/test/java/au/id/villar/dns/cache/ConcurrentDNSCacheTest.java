@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.DNSException;
+import au.id.villar.dns.converter.SoaValueConverter;
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.Question;
+import au.id.villar.dns.engine.ResourceRecord;
+import au.id.villar.dns.engine.ResponseCode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentDNSCacheTest {
+
+    @Test
+    public void addAndGetRRs() throws InterruptedException, DNSException, TimeoutException {
+        List<ResourceRecord> records;
+        DNSCache cache = new ConcurrentDNSCache();
+        DNSEngine engine = new DNSEngine();
+        cache.addResourceRecord(engine.createResourceRecord("test", DNSType.A, DNSClass.IN, 100000, "192.168.0.1"));
+        cache.addResourceRecord(engine.createResourceRecord("test", DNSType.NS, DNSClass.IN, 100000, "ns.test"));
+        cache.addResourceRecord(engine.createResourceRecord("another", DNSType.A, DNSClass.IN, 100000, "192.168.0.10"));
+        cache.addResourceRecord(engine.createResourceRecord("another", DNSType.A, DNSClass.IN, 100000, "192.168.0.20"));
+        cache.addResourceRecord(engine.createResourceRecord("another", DNSType.A, DNSClass.IN, 100000, "192.168.0.10"));
+
+        records = cache.getResourceRecords(engine.createQuestion("whatever", DNSType.A, DNSClass.IN), 100_000L);
+        assertNotNull("records shouldn't be null", records);
+        assertEquals("no record must be found for 'whatever'", 0, records.size());
+
+        records = cache.getResourceRecords(engine.createQuestion("test", DNSType.MX, DNSClass.IN), 100_000L);
+        assertEquals(0, records.size());
+
+        records = cache.getResourceRecords(engine.createQuestion("test", DNSType.A, DNSClass.ANY), 100_000L);
+        assertEquals(1, records.size());
+
+        records = cache.getResourceRecords(engine.createQuestion("test", DNSType.ALL, DNSClass.IN), 100_000L);
+        assertEquals(2, records.size());
+
+        records = cache.getResourceRecords(engine.createQuestion("test", DNSType.A, DNSClass.IN), 100_000L);
+        assertEquals(1, records.size());
+        assertEquals("192.168.0.1", records.get(0).getData(String.class));
+
+        records = cache.getResourceRecords(engine.createQuestion("another", DNSType.A, DNSClass.IN), 100_000L);
+        assertEquals(2, records.size());
+        assertEquals("192.168.0.10", records.get(1).getData(String.class));
+        assertEquals("192.168.0.20", records.get(0).getData(String.class));
+
+        cache.clear();
+        records = cache.getResourceRecords(engine.createQuestion("another", DNSType.A, DNSClass.IN), 100_000L);
+        assertEquals(0, records.size());
+    }
+
+    @Test
+    public void negativeAnswers() {
+        DNSCache cache = new ConcurrentDNSCache();
+        DNSEngine engine = new DNSEngine();
+        ResourceRecord soa = engine.createResourceRecord("example", DNSType.SOA, DNSClass.IN, 3600,
+                new SoaValueConverter.SoaData("ns.example", "admin.example", 1, 7200, 900, 86400, 300));
+
+        cache.addNegativeAnswer(engine.createQuestion("missing.example", DNSType.A, DNSClass.IN),
+                ResponseCode.NAME_ERROR, soa);
+        cache.addNegativeAnswer(engine.createQuestion("www.example", DNSType.AAAA, DNSClass.IN),
+                ResponseCode.NO_ERROR, soa);
+        cache.addNegativeAnswer(engine.createQuestion("nosoa.example", DNSType.A, DNSClass.IN),
+                ResponseCode.NAME_ERROR, null);
+
+        assertEquals(ResponseCode.NAME_ERROR,
+                cache.getNegativeAnswer(engine.createQuestion("MISSING.example", DNSType.MX, DNSClass.IN)));
+        assertEquals(ResponseCode.NO_ERROR,
+                cache.getNegativeAnswer(engine.createQuestion("www.example", DNSType.AAAA, DNSClass.IN)));
+        assertNull(cache.getNegativeAnswer(engine.createQuestion("www.example", DNSType.A, DNSClass.IN)));
+        assertNull(cache.getNegativeAnswer(engine.createQuestion("nosoa.example", DNSType.A, DNSClass.IN)));
+
+        cache.addResourceRecord(engine.createResourceRecord("www.example", DNSType.AAAA, DNSClass.IN, 100, "0:0:0:0:0:0:0:1"));
+        assertNull(cache.getNegativeAnswer(engine.createQuestion("www.example", DNSType.AAAA, DNSClass.IN)));
+
+        cache.clear();
+        assertNull(cache.getNegativeAnswer(engine.createQuestion("missing.example", DNSType.A, DNSClass.IN)));
+    }
+
+    @Test
+    public void concurrentAdds() throws InterruptedException, DNSException, TimeoutException {
+        DNSCache cache = new ConcurrentDNSCache();
+        DNSEngine engine = new DNSEngine();
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for(int n = 0; n < 250; n++) {
+                    cache.addResourceRecord(engine.createResourceRecord("host" + n, DNSType.A, DNSClass.IN, 100000,
+                            "10.0." + thread + "." + n));
+                }
+            }));
+        }
+        for(Thread thread: threads) thread.start();
+        for(Thread thread: threads) thread.join();
+
+        for(int n = 0; n < 250; n++) {
+            List<ResourceRecord> records = cache.getResourceRecords(
+                    engine.createQuestion("host" + n, DNSType.A, DNSClass.IN), 0);
+            assertEquals(8, records.size());
+        }
+    }
+
+    @Test
+    public void expiredRecordsAreRemoved() throws InterruptedException, DNSException, TimeoutException {
+        ConcurrentDNSCache cache = new ConcurrentDNSCache();
+        DNSEngine engine = new DNSEngine();
+        cache.addResourceRecord(engine.createResourceRecord("short", DNSType.A, DNSClass.IN, 0, "10.0.0.1"));
+        cache.addResourceRecord(engine.createResourceRecord("long", DNSType.A, DNSClass.IN, 100000, "10.0.0.2"));
+        cache.addResourceRecord(engine.createResourceRecord("long", DNSType.A, DNSClass.IN, 2, "10.0.0.3"));
+
+        assertEquals(0, cache.getResourceRecords(engine.createQuestion("short", DNSType.A, DNSClass.IN), 0).size());
+        assertEquals(2, cache.getResourceRecords(engine.createQuestion("long", DNSType.A, DNSClass.IN), 0).size());
+
+        cache.expireRecords(System.currentTimeMillis() + 5_000);
+        assertEquals(2, cache.getExpiredCount());
+        List<ResourceRecord> records =
+                cache.getResourceRecords(engine.createQuestion("long", DNSType.ALL, DNSClass.IN), 0);
+        assertEquals(1, records.size());
+        assertEquals("10.0.0.2", records.get(0).getData(String.class));
+    }
+
+    @Test
+    public void refreshIsRequestedNearExpiration() throws InterruptedException, DNSException, TimeoutException {
+        AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+        ConcurrentDNSCache cache = new ConcurrentDNSCache(clock::get);
+        DNSEngine engine = new DNSEngine();
+        List<Question> refreshed = new ArrayList<>();
+        cache.setRefreshHandler(refreshed::add);
+        Question question = engine.createQuestion("popular", DNSType.A, DNSClass.IN);
+        cache.addResourceRecord(engine.createResourceRecord("popular", DNSType.A, DNSClass.IN, 1, "10.0.0.1"));
+
+        cache.getResourceRecords(question, 0);
+        assertEquals(0, refreshed.size());
+
+        clock.addAndGet(950);
+        assertEquals(1, cache.getResourceRecords(question, 0).size());
+        cache.getResourceRecords(question, 0);
+        assertEquals(1, refreshed.size());
+        assertEquals(question, refreshed.get(0));
+        assertEquals(1, cache.getRefreshCount());
+
+        cache.addResourceRecord(engine.createResourceRecord("popular", DNSType.A, DNSClass.IN, 100, "10.0.0.1"));
+        cache.getResourceRecords(question, 0);
+        assertEquals(1, refreshed.size());
+    }
+
+    @Test
+    public void staleRecordsAreServed() throws InterruptedException, DNSException, TimeoutException {
+        ConcurrentDNSCache cache = new ConcurrentDNSCache();
+        DNSEngine engine = new DNSEngine();
+        Question question = engine.createQuestion("stale", DNSType.A, DNSClass.IN);
+        cache.addResourceRecord(engine.createResourceRecord("stale", DNSType.A, DNSClass.IN, 100, "10.0.0.1"));
+        assertEquals(0, cache.getStaleResourceRecords(question).size());
+        cache.clear();
+
+        cache.setServeStale(60);
+        cache.addResourceRecord(engine.createResourceRecord("stale", DNSType.A, DNSClass.IN, 0, "10.0.0.2"));
+        assertEquals(0, cache.getResourceRecords(question, 0).size());
+        List<ResourceRecord> records = cache.getStaleResourceRecords(question);
+        assertEquals(1, records.size());
+        assertEquals("10.0.0.2", records.get(0).getData(String.class));
+        assertEquals(30, records.get(0).getSecondsCache());
+
+        cache.expireRecords(System.currentTimeMillis() + 120_000);
+        assertEquals(0, cache.getStaleResourceRecords(question).size());
+    }
+
+    @Test
+    public void popularRecordsSurviveScans() throws InterruptedException, DNSException, TimeoutException {
+        ConcurrentDNSCache cache = new ConcurrentDNSCache(10_000);
+        DNSEngine engine = new DNSEngine();
+        for(int n = 0; n < 20; n++) {
+            cache.addResourceRecord(engine.createResourceRecord("hot" + n, DNSType.A, DNSClass.IN, 100000, "10.0.0.1"));
+        }
+        for(int round = 0; round < 10; round++) {
+            for(int n = 0; n < 20; n++) {
+                cache.getResourceRecords(engine.createQuestion("hot" + n, DNSType.A, DNSClass.IN), 0);
+            }
+        }
+        for(int n = 0; n < 1000; n++) {
+            cache.addResourceRecord(engine.createResourceRecord("scan" + n, DNSType.A, DNSClass.IN, 100000,
+                    "10.0.0.2"));
+        }
+
+        int hotFound = 0;
+        for(int n = 0; n < 20; n++) {
+            hotFound += cache.getResourceRecords(engine.createQuestion("hot" + n, DNSType.A, DNSClass.IN), 0).size();
+        }
+        assertEquals(20, hotFound);
+        assertTrue(cache.getEstimatedSize() <= 10_000);
+        assertTrue(cache.getEvictionCount() > 900);
+    }
+
+    @Test
+    public void statsAreCollected() throws InterruptedException, DNSException, TimeoutException {
+        ConcurrentDNSCache cache = new ConcurrentDNSCache(5_000);
+        DNSEngine engine = new DNSEngine();
+        Question question = engine.createQuestion("stats", DNSType.A, DNSClass.IN);
+        cache.addResourceRecord(engine.createResourceRecord("stats", DNSType.A, DNSClass.IN, 1000, "10.0.0.1"));
+        cache.addResourceRecord(engine.createResourceRecord("stats", DNSType.A, DNSClass.IN, 1000, "10.0.0.2"));
+        cache.addResourceRecord(engine.createResourceRecord("stats", DNSType.A, DNSClass.IN, 1000, "10.0.0.2"));
+        assertEquals(2, cache.getResourceRecords(question, 0).size());
+        assertEquals(0, cache.getResourceRecords(engine.createQuestion("none", DNSType.A, DNSClass.IN), 0).size());
+        cache.addNegativeAnswer(engine.createQuestion("none", DNSType.A, DNSClass.IN), ResponseCode.NAME_ERROR,
+                engine.createResourceRecord("", DNSType.SOA, DNSClass.IN, 100,
+                        new SoaValueConverter.SoaData("ns", "mail", 1, 1, 1, 1, 100)));
+        assertNotNull(cache.getNegativeAnswer(engine.createQuestion("none", DNSType.A, DNSClass.IN)));
+
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(0.5, stats.getHitRate(), 0.0001);
+        assertEquals(1, stats.getNegativeHitCount());
+        assertEquals(3, stats.getInsertCount());
+        assertEquals(2, stats.getRecordCount());
+        assertEquals(cache.getEstimatedSize(), stats.getByteCount());
+        assertEquals(2, stats.getLatencyCount());
+        assertTrue(stats.getLatencyPercentile(50) <= stats.getLatencyPercentile(100));
+
+        for(int n = 0; n < 200; n++) {
+            cache.addResourceRecord(engine.createResourceRecord("name" + n, DNSType.A, DNSClass.IN, 1000, "10.0.1.1"));
+        }
+        cache.clear();
+        stats = cache.getStats();
+        assertTrue(stats.getEvictionCount() > 0);
+        assertEquals(202, stats.getEvictionCount() + stats.getRemovalCount(CacheStats.RemovalCause.EXPLICIT));
+        assertEquals(0, stats.getRecordCount());
+        assertEquals(0, stats.getByteCount());
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.ResourceRecord;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class DelegationCacheTest {
+
+    @Test
+    public void closestDelegationIsFound() {
+        DNSEngine engine = new DNSEngine();
+        DelegationCache cache = new DelegationCache();
+        cache.addDelegation(
+                Collections.singletonList(engine.createResourceRecord("", DNSType.NS, DNSClass.IN, 1000, "a.root")),
+                Collections.emptyList());
+        cache.addDelegation(
+                Arrays.asList(
+                        engine.createResourceRecord("example.com", DNSType.NS, DNSClass.IN, 1000, "ns1.example.com"),
+                        engine.createResourceRecord("example.com", DNSType.NS, DNSClass.IN, 1000, "ns2.example.com")),
+                Arrays.asList(
+                        engine.createResourceRecord("ns1.example.com", DNSType.A, DNSClass.IN, 1000, "10.0.0.1"),
+                        engine.createResourceRecord("other.com", DNSType.A, DNSClass.IN, 1000, "10.0.0.2")));
+        cache.addDelegation(
+                Collections.singletonList(engine.createResourceRecord("gone.com", DNSType.NS, DNSClass.IN, 0, "ns.gone.com")),
+                Collections.emptyList());
+
+        DelegationCache.Delegation delegation = cache.findClosestDelegation("www.Example.COM");
+        assertEquals("example.com", delegation.getZoneName());
+        assertEquals(2, delegation.getNameServers().size());
+        assertEquals(1, delegation.getGlue().size());
+        assertEquals("10.0.0.1", delegation.getGlue().get(0).getData(String.class));
+
+        assertEquals("example.com", cache.findClosestDelegation("example.com").getZoneName());
+        assertEquals("", cache.findClosestDelegation("ample.com").getZoneName());
+        assertEquals("", cache.findClosestDelegation("www.gone.com").getZoneName());
+        assertEquals("", cache.findClosestDelegation("").getZoneName());
+
+        cache.removeDelegation("EXAMPLE.com");
+        assertEquals("", cache.findClosestDelegation("www.example.com").getZoneName());
+
+        cache.clear();
+        assertNull(cache.findClosestDelegation("www.example.com"));
+    }
+
+    @Test
+    public void referralsOutOfBailiwickAreIgnored() {
+        DNSEngine engine = new DNSEngine();
+        DelegationCache cache = new DelegationCache();
+        cache.addDelegation("example.com",
+                Collections.singletonList(engine.createResourceRecord("com", DNSType.NS, DNSClass.IN, 1000, "ns.evil.com")),
+                Collections.emptyList());
+        cache.addDelegation("example.com",
+                Collections.singletonList(engine.createResourceRecord("", DNSType.NS, DNSClass.IN, 1000, "ns.evil.com")),
+                Collections.emptyList());
+        cache.addDelegation("example.com",
+                Collections.singletonList(engine.createResourceRecord("badexample.com", DNSType.NS, DNSClass.IN, 1000, "ns.badexample.com")),
+                Collections.emptyList());
+        assertEquals(0, cache.size());
+
+        cache.addDelegation("example.com.",
+                Collections.singletonList(engine.createResourceRecord("sub.Example.com", DNSType.NS, DNSClass.IN, 1000, "ns.other.net")),
+                Collections.singletonList(engine.createResourceRecord("ns.other.net", DNSType.A, DNSClass.IN, 1000, "10.0.0.1")));
+        DelegationCache.Delegation delegation = cache.findClosestDelegation("www.sub.example.com");
+        assertEquals("sub.Example.com", delegation.getZoneName());
+        assertTrue(delegation.getGlue().isEmpty());
+
+        assertTrue(DelegationCache.isInBailiwick("a.b.c", ""));
+        assertTrue(DelegationCache.isInBailiwick("B.c.", "b.C"));
+        assertFalse(DelegationCache.isInBailiwick("ab.c", "b.c"));
+        assertFalse(DelegationCache.isInBailiwick("c", "b.c"));
+    }
+
+    @Test
+    public void expiredDelegationsAreEvictedAndSizeIsBounded() throws InterruptedException {
+        DNSEngine engine = new DNSEngine();
+        DelegationCache cache = new DelegationCache(2);
+        cache.addDelegation(
+                Collections.singletonList(engine.createResourceRecord("a.com", DNSType.NS, DNSClass.IN, 1, "ns.a.com")),
+                Collections.emptyList());
+        cache.addDelegation(
+                Collections.singletonList(engine.createResourceRecord("b.com", DNSType.NS, DNSClass.IN, 1000, "ns.b.com")),
+                Collections.emptyList());
+        cache.addDelegation(
+                Collections.singletonList(engine.createResourceRecord("c.com", DNSType.NS, DNSClass.IN, 2000, "ns.c.com")),
+                Collections.emptyList());
+        assertEquals(2, cache.size());
+        assertNull(cache.findClosestDelegation("www.a.com"));
+        assertEquals("b.com", cache.findClosestDelegation("www.b.com").getZoneName());
+
+        cache.addDelegation(
+                Collections.singletonList(engine.createResourceRecord("d.com", DNSType.NS, DNSClass.IN, 1, "ns.d.com")),
+                Collections.emptyList());
+        assertEquals(2, cache.size());
+        assertNull(cache.findClosestDelegation("www.d.com"));
+
+        cache = new DelegationCache();
+        cache.addDelegation(
+                Collections.singletonList(engine.createResourceRecord("a.com", DNSType.NS, DNSClass.IN, 1, "ns.a.com")),
+                Collections.emptyList());
+        cache.addDelegation(
+                Collections.singletonList(engine.createResourceRecord("b.com", DNSType.NS, DNSClass.IN, 1000, "ns.b.com")),
+                Collections.emptyList());
+        assertEquals(2, cache.size());
+        Thread.sleep(1100);
+        assertEquals("b.com", cache.findClosestDelegation("b.com").getZoneName());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void trieKeepsManyChildren() {
+        LabelTrie<Integer> trie = new LabelTrie<>();
+        for(int i = 0; i < 1000; i++) trie.put("n" + i + ".com", i);
+        assertEquals(1000, trie.size());
+        for(int i = 0; i < 1000; i++) assertEquals(Integer.valueOf(i), trie.get("N" + i + ".COM"));
+        assertNull(trie.get("n1000.com"));
+        assertEquals(Integer.valueOf(7), trie.findClosestEnclosing("www.n7.com", v -> true));
+    }
+
+    @Test
+    public void trieKeepsNamesApart() {
+        LabelTrie<String> trie = new LabelTrie<>();
+        trie.put("a.b.c", "abc");
+        trie.put("b.c.", "bc");
+        trie.put("ab.c", "ab-c");
+        assertEquals(3, trie.size());
+        assertEquals("bc", trie.get("B.C"));
+        assertNull(trie.get("c"));
+        assertEquals("abc", trie.findClosestEnclosing("x.a.b.c", v -> true));
+        assertEquals("bc", trie.findClosestEnclosing("x.a.b.c", v -> !v.equals("abc")));
+        assertEquals("ab-c", trie.findClosestEnclosing("ab.c", v -> true));
+        assertNull(trie.findClosestEnclosing("b.ab", v -> true));
+        assertEquals("bc", trie.remove("b.c"));
+        assertNull(trie.findClosestEnclosing("x.b.c", v -> true));
+        assertEquals(2, trie.size());
+    }
+
+}
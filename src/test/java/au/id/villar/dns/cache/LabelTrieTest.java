@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LabelTrieTest {
+
+    @Test
+    public void namesAreFoundAfterSiblingsAreRemoved() {
+        LabelTrie<Integer> trie = new LabelTrie<>();
+        for(int n = 0; n < 200; n++) trie.put("name" + n + ".example.com", n);
+        trie.put("example.com", -1);
+
+        for(int n = 0; n < 200; n += 2) assertEquals(Integer.valueOf(n), trie.remove("NAME" + n + ".example.com."));
+        assertEquals(101, trie.size());
+        for(int n = 0; n < 200; n++) {
+            String name = "name" + n + ".example.com";
+            assertEquals(n % 2 == 0? null: Integer.valueOf(n), trie.get(name));
+            assertEquals(n % 2 == 0? -1: n, (int)trie.findClosestEnclosing("www." + name, value -> true));
+        }
+        assertNull(trie.remove("name0.example.com"));
+    }
+
+    @Test
+    public void removedBranchesCanBeAddedAgain() {
+        LabelTrie<String> trie = new LabelTrie<>();
+        trie.put("a.b.c.example.com", "deep");
+        trie.put("com", "top");
+        assertEquals("deep", trie.remove("a.b.c.example.com"));
+        assertNull(trie.get("a.b.c.example.com"));
+        assertEquals("top", trie.findClosestEnclosing("a.b.c.example.com", value -> true));
+        assertEquals("top", trie.remove("com"));
+        assertEquals(0, trie.size());
+
+        trie.put("b.c.example.com", "again");
+        assertEquals("again", trie.findClosestEnclosing("a.b.c.example.com", value -> true));
+        assertEquals(1, trie.size());
+    }
+
+}
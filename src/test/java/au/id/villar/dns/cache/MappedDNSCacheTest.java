@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.DNSException;
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.ResourceRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class MappedDNSCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsAreSharedThroughTheFile()
+            throws IOException, InterruptedException, DNSException, TimeoutException {
+        DNSEngine engine = new DNSEngine();
+        Path file = folder.getRoot().toPath().resolve("dns.cache");
+        try(MappedDNSCache cache = new MappedDNSCache(engine, file, 1000)) {
+            cache.addResourceRecord(engine.createResourceRecord("test", DNSType.A, DNSClass.IN, 1000, "10.0.0.1"));
+            cache.addResourceRecord(engine.createResourceRecord("test", DNSType.A, DNSClass.IN, 1000, "10.0.0.2"));
+            cache.addResourceRecord(engine.createResourceRecord("test", DNSType.A, DNSClass.IN, 1000, "10.0.0.1"));
+            cache.addResourceRecord(engine.createResourceRecord("test", DNSType.NS, DNSClass.IN, 1000, "ns.test"));
+        }
+        try(MappedDNSCache cache = new MappedDNSCache(new DNSEngine(), file, 10)) {
+            List<ResourceRecord> records =
+                    cache.getResourceRecords(engine.createQuestion("TEST", DNSType.A, DNSClass.IN), 0);
+            assertEquals(2, records.size());
+            assertEquals(3, cache.getResourceRecords(engine.createQuestion("test", DNSType.ALL, DNSClass.IN), 0).size());
+            assertEquals(0, cache.getResourceRecords(engine.createQuestion("other", DNSType.A, DNSClass.IN), 0).size());
+            cache.clear();
+            assertEquals(0, cache.getResourceRecords(engine.createQuestion("test", DNSType.ALL, DNSClass.IN), 0).size());
+        }
+    }
+
+    @Test
+    public void fullBucketsReplaceRecordsClosestToExpire()
+            throws IOException, InterruptedException, DNSException, TimeoutException {
+        DNSEngine engine = new DNSEngine();
+        try(MappedDNSCache cache = new MappedDNSCache(engine, folder.newFile().toPath(), 16)) {
+            cache.addResourceRecord(engine.createResourceRecord("name", DNSType.A, DNSClass.IN, 10, "10.0.1.1"));
+            for(int n = 0; n < 20; n++) {
+                cache.addResourceRecord(engine.createResourceRecord("name", DNSType.A, DNSClass.IN, 1000 + n,
+                        "10.0.0." + n));
+            }
+            List<ResourceRecord> records =
+                    cache.getResourceRecords(engine.createQuestion("name", DNSType.A, DNSClass.IN), 0);
+            assertTrue(records.size() <= 16);
+            for(ResourceRecord record: records) assertNotEquals("10.0.1.1", record.getData(String.class));
+
+            CacheStats stats = cache.getStats();
+            assertEquals(21, stats.getInsertCount());
+            assertEquals(records.size(), stats.getRecordCount());
+            assertEquals(21 - records.size(), stats.getEvictionCount());
+            assertEquals(records.size() * 512L, stats.getByteCount());
+            assertEquals(1, stats.getHitCount());
+
+            cache.clear();
+            stats = cache.getStats();
+            assertEquals(0, stats.getRecordCount());
+            assertEquals(0, stats.getByteCount());
+            assertEquals(records.size(), stats.getRemovalCount(CacheStats.RemovalCause.EXPLICIT));
+        }
+    }
+
+    @Test
+    public void recordsAreSkippedIfTheyDontFitOrTheFileIsLockedInThisProcess()
+            throws IOException, InterruptedException, DNSException, TimeoutException {
+        DNSEngine engine = new DNSEngine();
+        Path file = folder.newFile().toPath();
+        StringBuilder text = new StringBuilder();
+        for(int n = 0; n < 250; n++) text.append('x');
+        try(MappedDNSCache cache = new MappedDNSCache(engine, file, 16)) {
+            cache.addResourceRecord(engine.createResourceRecord("name", DNSType.TXT, DNSClass.IN, 1000, text + "x"));
+            cache.addResourceRecord(engine.createResourceRecord("name", DNSType.TXT, DNSClass.IN, 1000,
+                    Arrays.asList(text.toString(), text.toString())));
+            assertEquals(1, cache.getResourceRecords(engine.createQuestion("name", DNSType.TXT, DNSClass.IN), 0).size());
+
+            try(FileChannel other = FileChannel.open(file, StandardOpenOption.WRITE);
+                    FileLock lock = other.lock()) {
+                assertTrue(lock.isValid());
+                cache.addResourceRecord(engine.createResourceRecord("name", DNSType.A, DNSClass.IN, 1000, "10.0.0.1"));
+            }
+            assertEquals(0, cache.getResourceRecords(engine.createQuestion("name", DNSType.A, DNSClass.IN), 0).size());
+            assertEquals(1, cache.getDroppedWriteCount());
+            assertTrue(cache.getLastWriteError() instanceof OverlappingFileLockException);
+        }
+    }
+
+    @Test
+    public void cachesOfTheSameFileInOneProcessShareIt() throws Exception {
+        DNSEngine engine = new DNSEngine();
+        Path file = folder.newFile().toPath();
+        Path samePath = file.getParent().resolve(".").resolve(file.getFileName());
+        MappedDNSCache first = new MappedDNSCache(engine, file, 16);
+        try(MappedDNSCache second = new MappedDNSCache(engine, samePath, 16)) {
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                List<Future<?>> writers = new ArrayList<>();
+                for(MappedDNSCache cache: Arrays.asList(first, second)) {
+                    writers.add(executor.submit(() -> {
+                        for(int n = 0; n < 2000; n++) {
+                            cache.addResourceRecord(engine.createResourceRecord("name", DNSType.A, DNSClass.IN,
+                                    1000, "10.0." + (n >> 8) + "." + (n & 0xFF)));
+                        }
+                    }));
+                }
+                for(Future<?> writer: writers) writer.get();
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(0, first.getDroppedWriteCount());
+            assertEquals(0, second.getDroppedWriteCount());
+
+            first.close();
+            first.close();
+            second.addResourceRecord(engine.createResourceRecord("other", DNSType.A, DNSClass.IN, 1000, "10.0.0.1"));
+            assertEquals(1, second.getResourceRecords(engine.createQuestion("other", DNSType.A, DNSClass.IN), 0)
+                    .size());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, new byte[128]);
+        new MappedDNSCache(new DNSEngine(), file, 16).close();
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.DNSException;
+import au.id.villar.dns.converter.MxValueConverter;
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.ResourceRecord;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class OffHeapDNSCacheTest {
+
+    @Test
+    public void addAndGetRRs() throws InterruptedException, DNSException, TimeoutException {
+        List<ResourceRecord> records;
+        DNSEngine engine = new DNSEngine();
+        OffHeapDNSCache cache = new OffHeapDNSCache(engine, 1024 * 1024);
+        cache.addResourceRecord(engine.createResourceRecord("test", DNSType.A, DNSClass.IN, 100000, "192.168.0.1"));
+        cache.addResourceRecord(engine.createResourceRecord("test", DNSType.MX, DNSClass.IN, 100000,
+                new MxValueConverter.MxData(10, "mail.test")));
+        cache.addResourceRecord(engine.createResourceRecord("another", DNSType.A, DNSClass.IN, 100000, "192.168.0.10"));
+        cache.addResourceRecord(engine.createResourceRecord("another", DNSType.A, DNSClass.IN, 100000, "192.168.0.20"));
+        cache.addResourceRecord(engine.createResourceRecord("another", DNSType.A, DNSClass.IN, 100000, "192.168.0.10"));
+
+        records = cache.getResourceRecords(engine.createQuestion("whatever", DNSType.A, DNSClass.IN), 0);
+        assertEquals(0, records.size());
+
+        records = cache.getResourceRecords(engine.createQuestion("TEST", DNSType.ALL, DNSClass.IN), 0);
+        assertEquals(2, records.size());
+
+        records = cache.getResourceRecords(engine.createQuestion("test", DNSType.MX, DNSClass.IN), 0);
+        assertEquals(1, records.size());
+        assertEquals("mail.test", records.get(0).getData(MxValueConverter.MxData.class).getMailServer());
+        assertEquals("test", records.get(0).getDnsName());
+
+        records = cache.getResourceRecords(engine.createQuestion("another", DNSType.A, DNSClass.IN), 0);
+        assertEquals(2, records.size());
+        assertEquals("192.168.0.10", records.get(0).getData(String.class));
+        assertEquals("192.168.0.20", records.get(1).getData(String.class));
+
+        cache.clear();
+        records = cache.getResourceRecords(engine.createQuestion("another", DNSType.A, DNSClass.IN), 0);
+        assertEquals(0, records.size());
+        cache.addResourceRecord(engine.createResourceRecord("another", DNSType.A, DNSClass.IN, 100000, "192.168.0.30"));
+        records = cache.getResourceRecords(engine.createQuestion("another", DNSType.A, DNSClass.IN), 0);
+        assertEquals(1, records.size());
+    }
+
+    @Test
+    public void oldestRecordsAreEvicted() throws InterruptedException, DNSException, TimeoutException {
+        DNSEngine engine = new DNSEngine();
+        OffHeapDNSCache cache = new OffHeapDNSCache(engine, 128 * 1024);
+        for(int n = 0; n < 20_000; n++) {
+            cache.addResourceRecord(engine.createResourceRecord("name" + n, DNSType.A, DNSClass.IN, 100000,
+                    "10.0." + (n >> 8 & 0xFF) + "." + (n & 0xFF)));
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+        assertEquals(20_000, cache.getEvictionCount() + cache.getRecordCount());
+        assertEquals(0, cache.getResourceRecords(engine.createQuestion("name0", DNSType.A, DNSClass.IN), 0).size());
+        List<ResourceRecord> records =
+                cache.getResourceRecords(engine.createQuestion("name19999", DNSType.A, DNSClass.IN), 0);
+        assertEquals(1, records.size());
+        assertEquals("10.0.78.31", records.get(0).getData(String.class));
+
+        CacheStats stats = cache.getStats();
+        assertEquals(20_000, stats.getInsertCount());
+        assertEquals(cache.getEvictionCount(), stats.getEvictionCount());
+        assertEquals(cache.getRecordCount(), stats.getRecordCount());
+        assertTrue(stats.getByteCount() > 0);
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+
+        cache.clear();
+        stats = cache.getStats();
+        assertEquals(0, stats.getRecordCount());
+        assertEquals(0, stats.getByteCount());
+    }
+
+    @Test
+    public void staleRecordsAreServed() throws InterruptedException, DNSException, TimeoutException {
+        DNSEngine engine = new DNSEngine();
+        OffHeapDNSCache cache = new OffHeapDNSCache(engine, 1024 * 1024);
+        cache.setServeStale(60);
+        cache.addResourceRecord(engine.createResourceRecord("stale", DNSType.A, DNSClass.IN, 0, "10.0.0.1"));
+        assertEquals(0, cache.getResourceRecords(engine.createQuestion("stale", DNSType.A, DNSClass.IN), 0).size());
+        List<ResourceRecord> records =
+                cache.getStaleResourceRecords(engine.createQuestion("stale", DNSType.A, DNSClass.IN));
+        assertEquals(1, records.size());
+        assertEquals(30, records.get(0).getSecondsCache());
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReadBufferTest {
+
+    @Test
+    public void itemsAreDrainedInOrderAndDroppedWhenFull() {
+        ReadBuffer<Integer> buffer = new ReadBuffer<>();
+        boolean full = false;
+        for(int n = 0; n < 20; n++) full = buffer.offer(n);
+        assertTrue(full);
+
+        List<Integer> drained = new ArrayList<>();
+        buffer.drainTo(drained::add);
+        assertEquals(16, drained.size());
+        assertEquals(Integer.valueOf(0), drained.get(0));
+        assertEquals(Integer.valueOf(15), drained.get(15));
+
+        assertFalse(buffer.offer(100));
+        drained.clear();
+        buffer.drainTo(drained::add);
+        assertEquals(Arrays.asList(100), drained);
+        drained.clear();
+        buffer.drainTo(drained::add);
+        assertTrue(drained.isEmpty());
+    }
+
+}
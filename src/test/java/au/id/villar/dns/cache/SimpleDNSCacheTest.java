@@ -17,12 +17,16 @@
 package au.id.villar.dns.cache;
 
 import au.id.villar.dns.DNSException;
+import au.id.villar.dns.converter.MxValueConverter;
 import au.id.villar.dns.engine.DNSClass;
 import au.id.villar.dns.engine.DNSEngine;
 import au.id.villar.dns.engine.DNSType;
 import au.id.villar.dns.engine.ResourceRecord;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.TimeoutException;
 
@@ -64,4 +68,64 @@ public class SimpleDNSCacheTest {
         assertEquals("192.168.0.20", records.get(0).getData(String.class));
     }
 
+    @Test
+    public void namesAreCaseInsensitive() throws InterruptedException, DNSException, TimeoutException {
+        DNSCache cache = new SimpleDNSCache(1000);
+        DNSEngine engine = new DNSEngine();
+        cache.addResourceRecord(engine.createResourceRecord("Test.Example", DNSType.A, DNSClass.IN, 100000,
+                "192.168.0.1"));
+
+        List<ResourceRecord> records = cache.getResourceRecords(
+                engine.createQuestion("test.EXAMPLE", DNSType.A, DNSClass.IN), 100_000L);
+        assertEquals(1, records.size());
+        records = cache.getResourceRecords(engine.createQuestion("test.example", DNSType.ALL, DNSClass.ANY), 100_000L);
+        assertEquals(1, records.size());
+    }
+
+    @Test
+    public void oldestRRSetsAreRemovedWhenFull() throws InterruptedException, DNSException, TimeoutException {
+        DNSCache cache = new SimpleDNSCache(2);
+        DNSEngine engine = new DNSEngine();
+        cache.addResourceRecord(engine.createResourceRecord("first", DNSType.A, DNSClass.IN, 100000, "10.0.0.1"));
+        cache.addResourceRecord(engine.createResourceRecord("second", DNSType.A, DNSClass.IN, 100000, "10.0.0.2"));
+        cache.addResourceRecord(engine.createResourceRecord("third", DNSType.A, DNSClass.IN, 100000, "10.0.0.3"));
+
+        assertEquals(0, cache.getResourceRecords(engine.createQuestion("first", DNSType.A, DNSClass.IN), 0).size());
+        assertEquals(1, cache.getResourceRecords(engine.createQuestion("second", DNSType.A, DNSClass.IN), 0).size());
+        assertEquals(1, cache.getResourceRecords(engine.createQuestion("third", DNSType.A, DNSClass.IN), 0).size());
+    }
+
+    @Test
+    public void snapshotsAreReloaded() throws InterruptedException, DNSException, TimeoutException, IOException {
+        SimpleDNSCache cache = new SimpleDNSCache(1000);
+        DNSEngine engine = new DNSEngine();
+        cache.addResourceRecord(engine.createResourceRecord("test", DNSType.A, DNSClass.IN, 1000, "192.168.0.1"));
+        cache.addResourceRecord(engine.createResourceRecord("test", DNSType.NS, DNSClass.IN, 1000, "ns.test"));
+        cache.addResourceRecord(engine.createResourceRecord("test", DNSType.MX, DNSClass.IN, 1000,
+                new MxValueConverter.MxData(10, "mail.test")));
+        cache.addResourceRecord(engine.createResourceRecord("gone", DNSType.A, DNSClass.IN, 0, "192.168.0.2"));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(3, cache.writeSnapshot(output));
+        output.write(42);
+
+        SimpleDNSCache restored = new SimpleDNSCache(1000);
+        ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+        assertEquals(3, restored.readSnapshot(input, new DNSEngine()));
+        assertEquals("data after the snapshot consumed", 42, input.read());
+        List<ResourceRecord> records =
+                restored.getResourceRecords(engine.createQuestion("test", DNSType.ALL, DNSClass.IN), 0);
+        assertEquals(3, records.size());
+        for(ResourceRecord record: records) {
+            if(record.getDnsType().equals(DNSType.A)) {
+                assertEquals("192.168.0.1", record.getData(String.class));
+            } else if(record.getDnsType().equals(DNSType.NS)) {
+                assertEquals("ns.test", record.getData(String.class));
+            } else {
+                assertEquals("mail.test", record.getData(MxValueConverter.MxData.class).getMailServer());
+            }
+            assertEquals(1000, record.getSecondsCache());
+        }
+    }
+
 }
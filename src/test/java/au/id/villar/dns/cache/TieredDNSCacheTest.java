@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.Question;
+import au.id.villar.dns.engine.ResourceRecord;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TieredDNSCacheTest {
+
+    @Test
+    public void localCopiesAreInvalidated() throws Exception {
+        DNSEngine engine = new DNSEngine();
+        ConcurrentDNSCache shared = new ConcurrentDNSCache();
+        TieredDNSCache cache = new TieredDNSCache(shared, 2);
+        Question question = engine.createQuestion("Test", DNSType.A, DNSClass.IN);
+
+        cache.addResourceRecord(engine.createResourceRecord("test", DNSType.A, DNSClass.IN, 1000, "10.0.0.1"));
+        assertEquals(1, cache.getResourceRecords(question, 0).size());
+        assertEquals(1, cache.getLocalSize());
+
+        // changes made directly in L2 are not seen until the name is invalidated
+        shared.addResourceRecord(engine.createResourceRecord("test", DNSType.A, DNSClass.IN, 1000, "10.0.0.2"));
+        assertEquals(1, cache.getResourceRecords(question, 0).size());
+        cache.invalidate("TEST");
+        assertEquals(2, cache.getResourceRecords(question, 0).size());
+
+        // an update made by another thread invalidates the copy of this one
+        CompletableFuture.runAsync(() -> cache.addResourceRecord(
+                engine.createResourceRecord("test", DNSType.A, DNSClass.IN, 1000, "10.0.0.3"))).get();
+        assertEquals(3, cache.getResourceRecords(question, 0).size());
+
+        for(int n = 0; n < 3; n++) {
+            cache.addResourceRecord(engine.createResourceRecord("name" + n, DNSType.A, DNSClass.IN, 1000, "10.0.1.1"));
+            cache.getResourceRecords(engine.createQuestion("name" + n, DNSType.A, DNSClass.IN), 0);
+        }
+        assertEquals(2, cache.getLocalSize());
+
+        cache.clear();
+        assertEquals(0, cache.getLocalSize());
+        assertEquals(0, cache.getResourceRecords(question, 0).size());
+    }
+
+    @Test
+    public void expiredCopiesAreNotServed() throws Exception {
+        DNSEngine engine = new DNSEngine();
+        ConcurrentDNSCache shared = new ConcurrentDNSCache();
+        TieredDNSCache cache = new TieredDNSCache(shared);
+        Question question = engine.createQuestion("short", DNSType.A, DNSClass.IN);
+
+        cache.addResourceRecord(engine.createResourceRecord("short", DNSType.A, DNSClass.IN, 1, "10.0.0.1"));
+        assertEquals(1, cache.getResourceRecords(question, 0).size());
+        Thread.sleep(1100);
+        assertEquals(0, cache.getResourceRecords(question, 0).size());
+        assertEquals(0, cache.getLocalSize());
+    }
+
+    @Test
+    public void copiesLoadedNearExpirationAreNotServedAfterIt() throws Exception {
+        DNSEngine engine = new DNSEngine();
+        ConcurrentDNSCache shared = new ConcurrentDNSCache();
+        TieredDNSCache cache = new TieredDNSCache(shared);
+        Question question = engine.createQuestion("short", DNSType.A, DNSClass.IN);
+
+        shared.addResourceRecord(engine.createResourceRecord("short", DNSType.A, DNSClass.IN, 2, "10.0.0.1"));
+        Thread.sleep(1500);
+        List<ResourceRecord> records = cache.getResourceRecords(question, 0);
+        assertEquals(1, records.size());
+        assertEquals(1, records.get(0).getSecondsCache());
+        Thread.sleep(600);
+        assertEquals(0, cache.getResourceRecords(question, 0).size());
+        assertEquals(0, cache.getLocalHitCount());
+    }
+
+    @Test
+    public void localHitsAreReportedToTheSharedCache() throws Exception {
+        DNSEngine engine = new DNSEngine();
+        AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+        ConcurrentDNSCache shared = new ConcurrentDNSCache(clock::get);
+        List<Question> refreshed = new ArrayList<>();
+        shared.setRefreshHandler(refreshed::add);
+        TieredDNSCache cache = new TieredDNSCache(shared);
+        Question question = engine.createQuestion("popular", DNSType.A, DNSClass.IN);
+
+        cache.addResourceRecord(engine.createResourceRecord("popular", DNSType.A, DNSClass.IN, 100, "10.0.0.1"));
+        assertEquals(1, cache.getResourceRecords(question, 0).size());
+        assertEquals(0, refreshed.size());
+
+        // L1 keeps its copy, but L2 sees the hit and asks for a refresh as the records are near their expiration
+        clock.addAndGet(95_000);
+        assertEquals(1, cache.getResourceRecords(question, 0).size());
+        assertEquals(1, cache.getLocalHitCount());
+        assertEquals(1, refreshed.size());
+        assertEquals(question, refreshed.get(0));
+
+        CacheStats stats = cache.getStats();
+        assertEquals(2, stats.getHitCount());
+        assertEquals(1, shared.getStats().getHitCount());
+        assertEquals(2, stats.getLatencyCount());
+        assertEquals(1, stats.getRecordCount());
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.dns.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    @Test
+    public void expiresOnlyDueNodes() {
+        long start = 1_000_000_000L;
+        TimerWheel<String> wheel = new TimerWheel<>(start);
+        TimerWheel.Node<String> seconds = new TimerWheel.Node<>("seconds");
+        TimerWheel.Node<String> minutes = new TimerWheel.Node<>("minutes");
+        TimerWheel.Node<String> days = new TimerWheel.Node<>("days");
+        wheel.schedule(seconds, start + 5_000);
+        wheel.schedule(minutes, start + 300_000);
+        wheel.schedule(days, start + 10L * 24 * 3600 * 1000);
+
+        List<String> expired = new ArrayList<>();
+        wheel.advance(start + 4_000, expired);
+        assertEquals(Collections.emptyList(), expired);
+
+        wheel.advance(start + 7_000, expired);
+        assertEquals(Collections.singletonList("seconds"), expired);
+
+        expired.clear();
+        wheel.advance(start + 299_000, expired);
+        assertEquals(Collections.emptyList(), expired);
+        wheel.advance(start + 302_000, expired);
+        assertEquals(Collections.singletonList("minutes"), expired);
+
+        expired.clear();
+        wheel.advance(start + 9L * 24 * 3600 * 1000, expired);
+        assertEquals(Collections.emptyList(), expired);
+        wheel.advance(start + 11L * 24 * 3600 * 1000, expired);
+        assertEquals(Collections.singletonList("days"), expired);
+    }
+
+    @Test
+    public void rescheduledAndDescheduledNodes() {
+        long start = 1_000_000_000L;
+        TimerWheel<String> wheel = new TimerWheel<>(start);
+        TimerWheel.Node<String> moved = new TimerWheel.Node<>("moved");
+        TimerWheel.Node<String> removed = new TimerWheel.Node<>("removed");
+        wheel.schedule(moved, start + 2_000);
+        wheel.schedule(removed, start + 2_000);
+        wheel.schedule(moved, start + 120_000);
+        wheel.deschedule(removed);
+        assertFalse(removed.isScheduled());
+
+        List<String> expired = new ArrayList<>();
+        wheel.advance(start + 60_000, expired);
+        assertEquals(Collections.emptyList(), expired);
+        assertTrue(moved.isScheduled());
+        wheel.advance(start + 125_000, expired);
+        assertEquals(Collections.singletonList("moved"), expired);
+        assertFalse(moved.isScheduled());
+    }
+
+}
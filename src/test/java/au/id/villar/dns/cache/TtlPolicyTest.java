@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.dns.cache;
+
+import au.id.villar.dns.engine.DNSClass;
+import au.id.villar.dns.engine.DNSEngine;
+import au.id.villar.dns.engine.DNSType;
+import au.id.villar.dns.engine.ResourceRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TtlPolicyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mostSpecificLimitsApply() {
+        DNSEngine engine = new DNSEngine();
+        TtlPolicy policy = TtlPolicy.builder()
+                .withLimits(30, 86400)
+                .withLimits(DNSType.NS, 3600, 172800)
+                .withLimits("internal.example.com", 5, 5)
+                .build();
+
+        assertEquals(30, policy.getTtl(engine.createResourceRecord("a.com", DNSType.A, DNSClass.IN, 0, "10.0.0.1")));
+        assertEquals(86400, policy.getTtl(engine.createResourceRecord("a.com", DNSType.A, DNSClass.IN, 604800,
+                "10.0.0.1")));
+        assertEquals(3600, policy.getTtl(engine.createResourceRecord("a.com", DNSType.NS, DNSClass.IN, 60, "ns.a.com")));
+        assertEquals(5, policy.getTtl(engine.createResourceRecord("host.Internal.Example.com", DNSType.NS,
+                DNSClass.IN, 60, "ns.a.com")));
+        assertEquals(30, policy.getTtl(engine.createResourceRecord("example.com", DNSType.A, DNSClass.IN, 1,
+                "10.0.0.1")));
+
+        ResourceRecord record = engine.createResourceRecord("a.com", DNSType.A, DNSClass.IN, 300, "10.0.0.1");
+        assertSame(record, policy.apply(record));
+        assertSame(record, TtlPolicy.NONE.apply(record));
+    }
+
+    @Test
+    public void policyIsAppliedOnInsert() throws Exception {
+        DNSEngine engine = new DNSEngine();
+        TtlPolicy policy = TtlPolicy.builder().withLimits(60, 3600).build();
+        ConcurrentDNSCache concurrentCache = new ConcurrentDNSCache();
+        concurrentCache.setTtlPolicy(policy);
+        OffHeapDNSCache offHeapCache = new OffHeapDNSCache(engine, 1024 * 1024);
+        offHeapCache.setTtlPolicy(policy);
+        try(MappedDNSCache mappedCache = new MappedDNSCache(engine, folder.newFile().toPath(), 16)) {
+            mappedCache.setTtlPolicy(policy);
+            for(DNSCache cache: Arrays.asList(concurrentCache, offHeapCache, mappedCache)) {
+                cache.addResourceRecord(engine.createResourceRecord("zero", DNSType.A, DNSClass.IN, 0, "10.0.0.1"));
+                List<ResourceRecord> records =
+                        cache.getResourceRecords(engine.createQuestion("zero", DNSType.A, DNSClass.IN), 0);
+                assertEquals(1, records.size());
+                assertEquals(60, records.get(0).getSecondsCache(), 1);
+            }
+        }
+    }
+
+}
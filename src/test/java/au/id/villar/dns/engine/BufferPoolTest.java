@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.engine;
+
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void buffersAreReused() {
+        BufferPool pool = new BufferPool(1, 1);
+        ByteBuffer small = pool.acquire(100);
+        ByteBuffer medium = pool.acquire(513);
+        ByteBuffer direct = pool.acquireDirect(65536);
+        assertEquals(512, small.capacity());
+        assertEquals(1024, medium.capacity());
+        assertTrue(direct.isDirect());
+        assertEquals(65536, direct.capacity());
+        assertEquals(3, pool.getAllocationCount());
+
+        small.put((byte)1).flip();
+        pool.release(small);
+        pool.release(direct);
+        ByteBuffer reused = pool.acquire(512);
+        assertSame(small, reused);
+        assertEquals(0, reused.position());
+        assertEquals(512, reused.limit());
+        assertSame(direct, pool.acquireDirect(40000));
+        assertNotSame(medium, pool.acquireDirect(1024));
+        assertEquals(4, pool.getAllocationCount());
+
+        ByteBuffer big = pool.acquire(70000);
+        assertEquals(70000, big.capacity());
+        pool.release(big);
+        pool.release(ByteBuffer.allocate(1000));
+        assertNotSame(big, pool.acquire(70000));
+        assertEquals(512, pool.acquire(10).capacity());
+        assertEquals(7, pool.getAllocationCount());
+    }
+
+    @Test
+    public void buffersOverflowToTheSharedPool() throws InterruptedException {
+        BufferPool pool = new BufferPool(1, 1);
+        ByteBuffer first = pool.acquire(2048);
+        ByteBuffer second = pool.acquire(2048);
+        ByteBuffer third = pool.acquire(2048);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+
+        AtomicReference<ByteBuffer> fromOtherThread = new AtomicReference<>();
+        Thread thread = new Thread(() -> fromOtherThread.set(pool.acquire(2048)));
+        thread.start();
+        thread.join();
+        assertSame(second, fromOtherThread.get());
+        assertSame(first, pool.acquire(2048));
+        assertEquals(3, pool.getAllocationCount());
+    }
+
+    @Test
+    public void messagesAreWrittenToPooledBuffers() {
+        DNSEngine engine = new DNSEngine();
+        BufferPool pool = new BufferPool(1, 0);
+        DNSMessage message = engine.createSimpleQueryMessage((short)5,
+                engine.createQuestion("example.com", DNSType.A, DNSClass.IN));
+        ByteBuffer buffer = engine.createBufferFromMessage(message, pool);
+        assertEquals(512, buffer.capacity());
+        assertEquals(engine.createBufferFromMessage(message), buffer);
+        pool.release(buffer);
+        assertSame(buffer, engine.createBufferFromMessage(message, pool));
+    }
+
+}
@@ -17,9 +17,15 @@ package au.id.villar.dns.engine;
 
 import org.junit.Test;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DnsEngineTest {
 
@@ -114,4 +120,76 @@ public class DnsEngineTest {
         assertEquals(0, message.getNumAdditionals());
     }
 
+    @Test
+    public void typesAndClassesAreRegistered() {
+        DNSEngine engine = new DNSEngine();
+        assertSame(DNSType.AAAA, engine.getType(DNSType.AAAA_VALUE));
+        assertSame(DNSType.AAAA, engine.getType("AAAA"));
+        assertSame(DNSClass.IN, engine.getClass("IN"));
+        assertNull(engine.getType((short)65000));
+
+        DNSType custom = engine.registerType((short)65000, "custom");
+        assertEquals("CUSTOM", custom.getMnemonic());
+        assertSame(custom, engine.getType((short)65000));
+        assertSame(custom, engine.getType("CUSTOM"));
+        assertSame(custom, engine.registerType((short)65000, "CUSTOM"));
+        assertNull(engine.getType((short)65001));
+        assertSame(DNSType.A, engine.getType(DNSType.A_VALUE));
+        try {
+            engine.registerType((short)65001, "CUSTOM");
+            fail("mnemonic registered twice");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            engine.registerType(DNSType.MX_VALUE, "OTHER");
+            fail("value registered twice");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void messagesAreWrittenOnceWithTheirExactSize() {
+        DNSEngine engine = new DNSEngine();
+        ResourceRecord[] answers = new ResourceRecord[300];
+        for(int n = 0; n < answers.length; n++) {
+            answers[n] = engine.createResourceRecord("host" + n + ".example.com", DNSType.A, DNSClass.IN, 300,
+                    "10.0." + (n >> 8) + "." + (n & 0xFF));
+        }
+        DNSMessage message = engine.createMessage((short)7, true, Opcode.QUERY, false, false, true, true, (byte)0,
+                ResponseCode.NO_ERROR,
+                new Question[] {engine.createQuestion("example.com", DNSType.A, DNSClass.IN)},
+                answers, new ResourceRecord[0], new ResourceRecord[0]);
+
+        ByteBuffer buffer = engine.createBufferFromMessage(message);
+        int length = buffer.getShort(0) & 0xFFFF;
+        assertEquals(0, buffer.position());
+        assertEquals(length + 2, buffer.limit());
+        assertEquals(length + 2, buffer.capacity());
+        assertTrue(length > 512);
+        assertTrue(length <= message.getMaxWireLength());
+        assertEquals(300, engine.createMessageFromBuffer(buffer.array(), 2).getNumAnswers());
+
+        ByteBuffer heap = ByteBuffer.allocate(length + 10);
+        heap.position(3);
+        assertEquals(length + 2, engine.writeMessageToBuffer(message, heap.slice()));
+        ByteBuffer direct = ByteBuffer.allocateDirect(length + 2);
+        assertEquals(length + 2, engine.writeMessageToBuffer(message, direct));
+        assertEquals(0, direct.remaining());
+        direct.flip();
+        heap.position(3);
+        heap.limit(length + 5);
+        assertEquals(buffer, heap);
+        assertEquals(buffer, direct);
+
+        ByteBuffer small = ByteBuffer.allocate(length + 1);
+        try {
+            engine.writeMessageToBuffer(message, small);
+            fail("The message doesn't fit");
+        } catch(BufferOverflowException e) {
+            assertEquals(0, small.position());
+        }
+    }
+
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.engine;
+
+import au.id.villar.dns.converter.MxValueConverter;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DnsMessageViewTest {
+
+    @Test
+    public void recordsAreDecodedOnAccess() {
+        DNSEngine engine = new DNSEngine();
+        DNSMessage message = engine.createMessage((short)1234, true, Opcode.QUERY, true, false, true, true, (byte)0,
+                ResponseCode.NO_ERROR,
+                new Question[] {engine.createQuestion("example.com", DNSType.MX, DNSClass.IN)},
+                new ResourceRecord[] {
+                        engine.createResourceRecord("example.com", DNSType.MX, DNSClass.IN, 300,
+                                new MxValueConverter.MxData(10, "mail.example.com")),
+                        engine.createResourceRecord("example.com", DNSType.MX, DNSClass.IN, 300,
+                                new MxValueConverter.MxData(20, "mail2.example.com"))},
+                new ResourceRecord[] {
+                        engine.createResourceRecord("example.com", DNSType.NS, DNSClass.IN, 3600, "ns.example.com")},
+                new ResourceRecord[] {
+                        engine.createResourceRecord("host.example.com", DNSType.A, DNSClass.IN, 300, "10.0.0.1")});
+        ByteBuffer wire = engine.createBufferFromMessage(message);
+        wire.position(2); // skips the length used in TCP
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(wire.remaining());
+        direct.put(wire.duplicate());
+        direct.flip();
+
+        for(ByteBuffer buffer: new ByteBuffer[] {wire, direct}) {
+            DNSMessageView view = engine.createMessageView(buffer);
+            assertEquals(1234, view.getId());
+            assertTrue(view.isResponse());
+            assertTrue(view.isAuthoritative());
+            assertEquals(ResponseCode.NO_ERROR, view.getResponseCode());
+            assertEquals(1, view.getNumQuestions());
+            assertEquals(2, view.getNumAnswers());
+            assertEquals(1, view.getNumAuthorities());
+            assertEquals(1, view.getNumAdditionals());
+
+            assertEquals("10.0.0.1", view.getAdditional(0).getData(String.class));
+            assertEquals(DNSType.NS_VALUE, view.getAuthorityType(0));
+            assertEquals(DomainName.of("Example.com"), view.getAuthorityName(0));
+            assertEquals("ns.example.com", view.getAuthority(0).getData(String.class));
+            assertEquals("mail2.example.com",
+                    view.getAnswer(1).getData(MxValueConverter.MxData.class).getMailServer());
+            assertSame(view.getAnswer(1), view.getAnswer(1));
+            assertEquals("example.com", view.getQuestion(0).getDnsName());
+
+            DNSMessage decoded = view.toMessage();
+            assertEquals(2, decoded.getNumAnswers());
+            assertEquals("mail.example.com", decoded.getAnswer(0).getData(MxValueConverter.MxData.class)
+                    .getMailServer());
+        }
+        assertEquals(2, wire.position());
+    }
+
+    @Test
+    public void truncatedMessagesFailOnAccess() {
+        DNSEngine engine = new DNSEngine();
+        DNSMessage message = engine.createMessage((short)1, true, Opcode.QUERY, false, false, false, false, (byte)0,
+                ResponseCode.NO_ERROR,
+                new Question[] {engine.createQuestion("example.com", DNSType.A, DNSClass.IN)},
+                new ResourceRecord[] {
+                        engine.createResourceRecord("example.com", DNSType.A, DNSClass.IN, 300, "10.0.0.1")},
+                null, null);
+        ByteBuffer wire = engine.createBufferFromMessage(message);
+        wire.position(2);
+        wire.limit(wire.limit() - 3);
+        DNSMessageView view = engine.createMessageView(wire);
+        assertEquals(1, view.getNumAnswers());
+        assertEquals("example.com", view.getQuestion(0).getDnsName());
+        try {
+            view.getAnswer(0);
+            fail("truncated record decoded");
+        } catch(IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void countsBeyondWhatTheMessageHoldsFailOnAccess() {
+        DNSEngine engine = new DNSEngine();
+        ByteBuffer header = ByteBuffer.allocate(DNSMessage.MESSAGE_HEADER_SIZE);
+        header.putShort((short)1).putShort((short)0x8000);
+        for(int section = 0; section < 4; section++) header.putShort((short)0xFFFF);
+        header.flip();
+
+        DNSMessageView view = engine.createMessageView(header);
+        assertEquals(0xFFFF, view.getNumQuestions());
+        assertEquals(0xFFFF, view.getNumAnswers());
+        for(int index: new int[] {0, 0xFFFE}) {
+            try {
+                view.getAnswer(index);
+                fail("record decoded from a message without records");
+            } catch(IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+        try {
+            view.getQuestion(0);
+            fail("question decoded from a message without questions");
+        } catch(IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+}
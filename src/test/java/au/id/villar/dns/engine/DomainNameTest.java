@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.engine;
+
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DomainNameTest {
+
+    /* "www.Example.com" at 0, "mail" + pointer to "example.com" at 17, root at 24, loop at 25 */
+    private static final byte[] MESSAGE = {
+            3, 'w', 'w', 'w', 7, 'E', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0,
+            4, 'm', 'a', 'i', 'l', (byte)0xC0, 4,
+            0,
+            (byte)0xC0, 25
+    };
+
+    @Test
+    public void namesAreReadFromMessages() {
+        ParseResult<DomainName> www = DomainName.fromBuffer(MESSAGE, 0);
+        assertEquals(17, www.bytesUsed);
+        assertEquals("www.Example.com", www.value.toString());
+        assertEquals(3, www.value.getLabelCount());
+        assertEquals("Example", www.value.getLabel(1));
+        assertEquals(17, www.value.getWireLength());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(MESSAGE.length);
+        direct.put(MESSAGE);
+        ParseResult<DomainName> mail = DomainName.fromBuffer(direct, 17);
+        assertEquals(7, mail.bytesUsed);
+        assertEquals("mail.Example.com", mail.value.toString());
+        assertEquals(0, direct.remaining());
+
+        ParseResult<DomainName> root = DomainName.fromBuffer(MESSAGE, 24);
+        assertEquals(1, root.bytesUsed);
+        assertSame(DomainName.ROOT, root.value);
+
+        try {
+            DomainName.fromBuffer(MESSAGE, 25);
+            fail("Pointer loops should be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void namesAreComparedIgnoringCase() {
+        DomainName name = DomainName.of("MAIL.example.COM.");
+        DomainName read = DomainName.fromBuffer(MESSAGE, 17).value;
+        assertEquals(name, read);
+        assertEquals(name.hashCode(), read.hashCode());
+        assertNotEquals(name, DomainName.of("mail.example.co"));
+
+        assertTrue(name.isSubdomainOf(DomainName.of("Example.com")));
+        assertTrue(name.isSubdomainOf(name));
+        assertTrue(name.isSubdomainOf(DomainName.ROOT));
+        assertFalse(name.isSubdomainOf(DomainName.of("ample.com")));
+        assertFalse(DomainName.of("example.com").isSubdomainOf(name));
+
+        assertEquals(DomainName.of("example.com"), name.getSuffix(2));
+        assertEquals("example.COM", name.getSuffix(2).toString());
+        assertSame(DomainName.ROOT, DomainName.of("."));
+        assertEquals("", DomainName.ROOT.toString());
+    }
+
+    @Test
+    public void previousNamesAreReused() {
+        Map<Integer, String> names = new HashMap<>();
+        assertEquals("www.Example.com", Utils.getDomainName(MESSAGE, 0, names).value);
+        ParseResult<String> mail = Utils.getDomainName(MESSAGE, 17, names);
+        assertEquals("mail.Example.com", mail.value);
+        assertEquals(7, mail.bytesUsed);
+        assertEquals("www.Example.com", names.get(0));
+        assertEquals("mail.Example.com", Utils.getDomainName(MESSAGE, 17, null).value);
+    }
+
+}
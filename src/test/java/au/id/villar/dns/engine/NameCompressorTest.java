@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.id.villar.dns.engine;
+
+
+import au.id.villar.dns.converter.MxValueConverter;
+import au.id.villar.dns.converter.SoaValueConverter;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class NameCompressorTest {
+
+    @Test
+    public void suffixesAreLinked() {
+        NameCompressor compressor = new NameCompressor();
+        byte[] buffer = new byte[64];
+        compressor.reset(3);
+
+        assertEquals(17, compressor.writeName("www.Example.com.", buffer, 15));
+        assertEquals(7, compressor.writeName("mail.example.COM", buffer, 32));
+        assertEquals(2, compressor.writeName("MAIL.example.com", buffer, 39));
+        assertEquals(8, compressor.writeName("com.au", buffer, 41));
+        assertEquals(1, compressor.writeName("", buffer, 49));
+
+        byte[] expected = {
+                3, 'w', 'w', 'w', 7, 'E', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0,
+                4, 'm', 'a', 'i', 'l', (byte)0xC0, 16,
+                (byte)0xC0, 29,
+                3, 'c', 'o', 'm', 2, 'a', 'u', 0,
+                0
+        };
+        assertArrayEquals(expected, Arrays.copyOfRange(buffer, 15, 50));
+
+        compressor.reset(0);
+        assertEquals(10, compressor.writeName("mail.com", buffer, 20));
+        assertEquals(10, NameCompressor.NONE.writeName("mail.com", buffer, 30));
+    }
+
+    @Test
+    public void messagesAreCompressed() {
+        DNSEngine engine = new DNSEngine();
+        ResourceRecord[] answers = new ResourceRecord[100];
+        for(int n = 0; n < answers.length; n++) {
+            answers[n] = engine.createResourceRecord("example.com", DNSType.MX, DNSClass.IN, 300,
+                    new MxValueConverter.MxData(n, "mail" + n + ".example.com"));
+        }
+        DNSMessage message = engine.createMessage((short)1, true, Opcode.QUERY, true, false, true, true, (byte)0,
+                ResponseCode.NO_ERROR,
+                new Question[] {engine.createQuestion("example.com", DNSType.MX, DNSClass.IN)},
+                answers,
+                new ResourceRecord[] {engine.createResourceRecord("example.com", DNSType.SOA, DNSClass.IN, 300,
+                        new SoaValueConverter.SoaData("ns.example.com", "admin.example.com", 1, 2, 3, 4, 5))},
+                new ResourceRecord[] {
+                        engine.createResourceRecord("mail7.example.com", DNSType.A, DNSClass.IN, 300, "10.0.0.7")});
+
+        byte[] compressed = new byte[8192];
+        byte[] full = new byte[8192];
+        NameCompressor compressor = new NameCompressor();
+        int compressedEnd = message.writeToBuffer(compressed, 5, compressor);
+        int fullEnd = message.writeToBuffer(full, 5, NameCompressor.NONE);
+        assertTrue(compressedEnd - 5 < (fullEnd - 5) * 2 / 3);
+        assertEquals(compressedEnd, message.writeToBuffer(new byte[8192], 5, compressor));
+        assertEquals(compressedEnd - 5, message.writeToBuffer(new byte[8192], 0));
+
+        DNSMessage read = engine.createMessageFromBuffer(Arrays.copyOfRange(compressed, 5, compressedEnd), 0);
+        assertEquals(100, read.getNumAnswers());
+        for(int n = 0; n < answers.length; n++) {
+            MxValueConverter.MxData mx = read.getAnswer(n).getData(MxValueConverter.MxData.class);
+            assertEquals("mail" + n + ".example.com", mx.getMailServer());
+            assertEquals(n, mx.getPreference());
+        }
+        SoaValueConverter.SoaData soa = read.getAuthority(0).getData(SoaValueConverter.SoaData.class);
+        assertEquals("admin.example.com", soa.getMailbox());
+        assertEquals("mail7.example.com", read.getAdditional(0).getDnsName());
+    }
+
+}
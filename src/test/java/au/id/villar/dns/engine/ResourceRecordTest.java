@@ -15,10 +15,14 @@
  */
 package au.id.villar.dns.engine;
 
+import au.id.villar.dns.converter.HinfoValueConverter;
+import au.id.villar.dns.converter.MinfoValueConverter;
+import au.id.villar.dns.converter.MxValueConverter;
+import au.id.villar.dns.converter.SoaValueConverter;
+import au.id.villar.dns.converter.WksValueConverter;
 import org.junit.Test;
 
 import java.util.Arrays;
-import java.util.HashMap;
 
 import static org.junit.Assert.*;
 
@@ -40,9 +44,60 @@ public class ResourceRecordTest {
 
         byte[] result = new byte[data.length];
 
-        int usedBytes = rrResult.value.writeRawData(result, 5, 0, new HashMap<>());
+        int usedBytes = rrResult.value.writeRawData(result, 5, new NameCompressor());
 
         assertTrue(Arrays.equals(data, result));
         assertEquals(25, usedBytes);
     }
+
+    @Test
+    public void wireDataIsCopied() {
+
+        DNSEngine engine = new DNSEngine();
+        ResourceRecord record = engine.createResourceRecord("villar.me", DNSType.MX, DNSClass.IN, 5,
+                new MxValueConverter.MxData(10, "mail.villar.me"));
+        ResourceRecord wire = record.withWireData();
+
+        assertFalse(record.hasWireData());
+        assertTrue(wire.hasWireData());
+        assertSame(wire, wire.withWireData());
+        assertTrue(wire.withSecondsCache(30).hasWireData());
+        assertEquals(record.getRawDataLength(), wire.getRawDataLength());
+
+        byte[] expected = new byte[64];
+        byte[] result = new byte[64];
+        int expectedBytes = record.writeRawData(expected, 0, NameCompressor.NONE);
+        int usedBytes = wire.writeRawData(result, 0, new NameCompressor());
+        assertEquals(expectedBytes, usedBytes);
+        assertTrue(Arrays.equals(expected, result));
+        assertEquals("mail.villar.me",
+                wire.getData(MxValueConverter.MxData.class).getMailServer());
+    }
+
+    @Test
+    public void rawDataLengthMatchesTheBytesWritten() {
+
+        DNSEngine engine = new DNSEngine();
+        ResourceRecord[] records = {
+                engine.createResourceRecord("villar.me", DNSType.A, DNSClass.IN, 5, "10.0.0.1"),
+                engine.createResourceRecord("villar.me", DNSType.AAAA, DNSClass.IN, 5, "2001:db8::1"),
+                engine.createResourceRecord("villar.me", DNSType.NS, DNSClass.IN, 5, "ns.villar.me"),
+                engine.createResourceRecord("villar.me", DNSType.NS, DNSClass.IN, 5, ""),
+                engine.createResourceRecord("villar.me", DNSType.MX, DNSClass.IN, 5,
+                        new MxValueConverter.MxData(10, "mail.villar.me")),
+                engine.createResourceRecord("villar.me", DNSType.SOA, DNSClass.IN, 5,
+                        new SoaValueConverter.SoaData("ns.villar.me", "admin.villar.me", 1, 2, 3, 4, 5)),
+                engine.createResourceRecord("villar.me", DNSType.MINFO, DNSClass.IN, 5,
+                        new MinfoValueConverter.MinfoData("admin.villar.me", "errors.villar.me")),
+                engine.createResourceRecord("villar.me", DNSType.HINFO, DNSClass.IN, 5,
+                        new HinfoValueConverter.HinfoData("x86", "linux")),
+                engine.createResourceRecord("villar.me", DNSType.TXT, DNSClass.IN, 5, "some text"),
+                engine.createResourceRecord("villar.me", DNSType.WKS, DNSClass.IN, 5,
+                        new WksValueConverter.WksData(new byte[] {10, 0, 0, 1}, 6, new byte[] {1, 2, 3}))
+        };
+        for(ResourceRecord record: records) {
+            int written = record.writeRawData(new byte[1024], 0);
+            assertEquals(record.toString(), written, record.getRawDataLength());
+        }
+    }
 }